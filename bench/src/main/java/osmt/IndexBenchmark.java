@@ -0,0 +1,83 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * IndexBenchmark - setTn/getTn on the node2tn file with sequential and random node IDs
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IndexBenchmark {
+	final static int COUNT = 1 << 20;
+	final static long MAX_ID = 50000000L;
+	
+	@Param({"sequential", "random"})
+	String pattern;
+	
+	File indexFile;
+	NodeToTileNumber n2tn;
+	long[] ids = new long[COUNT];
+	int i = 0;
+	
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		indexFile = File.createTempFile("node2tn", ".bench");
+		n2tn = new NodeToTileNumber(indexFile.getPath(), 1.0f);
+		Random random = new Random(42);
+		
+		for (int j = 0; j < COUNT; j++) {
+			ids[j] = pattern.equals("sequential") ? j * 7L + 1 : (long)(random.nextDouble() * MAX_ID) + 1;
+		}
+		n2tn.setTn(MAX_ID + 1, 1);
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		indexFile.delete();
+	}
+	
+	@Benchmark
+	public int setTn() throws Exception {
+		i = (i + 1) & (COUNT - 1);
+		return n2tn.setTn(ids[i], 52.5F, 13.4F);
+	}
+	
+	@Benchmark
+	public int getTn() throws Exception {
+		i = (i + 1) & (COUNT - 1);
+		return n2tn.getTn(ids[i]);
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * MergeSegmentsBenchmark - Merge.mergeSegments on a synthetic long way crossing many tiles
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MergeSegmentsBenchmark {
+	@Param({"1000", "20000"})
+	int refs;
+	
+	@Param({"4", "64"})
+	int tiles;
+	
+	Merge merge;
+	LinkedList<WaySegment> template, segments;
+	
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		merge = new Merge(new ArrayList<String>(), "-");
+		template = segments(refs, tiles);
+		
+		//make sure the synthetic segments merge back to the whole way
+		ArrayList<WaySegment> result = merge.mergeSegments(copy(template), false);
+		
+		if (result.size() != 1 || result.get(0).refs.size() != refs) {
+			throw new IllegalStateException("synthetic way did not merge back");
+		}
+	}
+	
+	@Setup(Level.Invocation)
+	public void copySegments() {
+		segments = copy(template);
+	}
+	
+	@Benchmark
+	public ArrayList<WaySegment> mergeSegments() {
+		return merge.mergeSegments(segments, false);
+	}
+	
+	/**
+	 * segments: build the segments Split writes for a way running through
+	 * the given number of tiles, with the same number of refs in each tile
+	 * @param refs
+	 * @param tiles
+	 * @return
+	 */
+	static LinkedList<WaySegment> segments(int refs, int tiles) {
+		LinkedList<WaySegment> result = new LinkedList<WaySegment>();
+		int perTile = refs / tiles;
+		
+		for (int t = 0; t < tiles; t++) {
+			WaySegment ws = new WaySegment();
+			ws.tn = 1000 + t;
+			long first = t * (long)perTile + 1;
+			long last = t == tiles - 1 ? refs : first + perTile - 1;
+			
+			//copy of the last node of the previous tile
+			if (t > 0) {
+				ws.refs.add(first - 1);
+				ws.refTn.add(ws.tn - 1);
+			}
+			for (long r = first; r <= last; r++) {
+				ws.refs.add(r);
+				ws.refTn.add(0);
+			}
+			//copy of the first node of the next tile
+			if (t < tiles - 1) {
+				ws.refs.add(last + 1);
+				ws.refTn.add(ws.tn + 1);
+			}
+			result.add(ws);
+		}
+		return result;
+	}
+	
+	static LinkedList<WaySegment> copy(LinkedList<WaySegment> segments) {
+		LinkedList<WaySegment> result = new LinkedList<WaySegment>();
+		
+		for (WaySegment ws : segments) {
+			result.add(new WaySegment(ws));
+		}
+		return result;
+	}
+}
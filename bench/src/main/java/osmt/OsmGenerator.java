@@ -0,0 +1,358 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * OsmGenerator - deterministic generator of synthetic OSM XML files
+ *
+ * Nodes are spread over a bbox with optional hot spots of higher density.
+ * Besides short local ways there are long ways crossing many tiles, large
+ * closed rings, and ways zigzagging along a tile boundary so they re-enter
+ * the same tiles many times.
+ */
+public class OsmGenerator {
+	final static int NODES_PER_SCALE = 100000;
+	final static float CELL = 0.05F;
+	
+	long seed = 1;
+	double scale = 1;
+	float[] bbox = {40F, -5F, 50F, 15F};
+	//lat, lon, radius (degrees), weight (share of the nodes)
+	ArrayList<float[]> hotspots = new ArrayList<float[]>();
+	
+	Random random;
+	float[] lat, lon;
+	int nodeCount;
+	ArrayList<long[]> ways;
+	
+	//statistics
+	long localWays, longWays, closedWays, reenteringWays, refCount;
+	
+	/**
+	 * Constructor
+	 * @param seed
+	 * @param scale - 1 means 100,000 nodes
+	 */
+	public OsmGenerator(long seed, double scale) {
+		this.seed = seed;
+		this.scale = scale;
+	}
+	
+	/**
+	 * addHotspot
+	 * @param lat
+	 * @param lon
+	 * @param radius
+	 * @param weight
+	 */
+	public void addHotspot(float lat, float lon, float radius, float weight) {
+		hotspots.add(new float[] {lat, lon, radius, weight});
+	}
+	
+	/**
+	 * parseHotspots: parse "LAT,LON,RADIUS,WEIGHT;..."
+	 * @param s
+	 */
+	public void parseHotspots(String s) {
+		for (String h : s.split(";")) {
+			String[] v = h.split(",");
+			addHotspot(Float.parseFloat(v[0]), Float.parseFloat(v[1]), Float.parseFloat(v[2]), Float.parseFloat(v[3]));
+		}
+	}
+	
+	static long nodeId(int index) {
+		//sparse IDs, like in real data
+		return index * 3L + 1;
+	}
+	
+	/**
+	 * generate: create nodes and ways in memory
+	 */
+	public void generate() {
+		random = new Random(seed);
+		int baseNodes = (int)(NODES_PER_SCALE * scale);
+		int longCount = Math.max(4, (int)(20 * scale));
+		
+		//long ways get their own nodes, reserve space for them
+		int capacity = baseNodes + longCount * 2000 * 2;
+		lat = new float[capacity];
+		lon = new float[capacity];
+		nodeCount = 0;
+		ways = new ArrayList<long[]>();
+		
+		float hotWeight = 0;
+		for (float[] h : hotspots) {
+			hotWeight += h[3];
+		}
+		hotWeight = Math.min(hotWeight, 0.9F);
+		
+		for (int i = 0; i < baseNodes; i++) {
+			if (!hotspots.isEmpty() && random.nextFloat() < hotWeight) {
+				float[] h = pickHotspot();
+				addNode((float)(h[0] + random.nextGaussian() * h[2]), (float)(h[1] + random.nextGaussian() * h[2]));
+			}
+			else {
+				addNode(bbox[0] + random.nextFloat() * (bbox[2] - bbox[0]), bbox[1] + random.nextFloat() * (bbox[3] - bbox[1]));
+			}
+		}
+		
+		localWays(baseNodes / 10);
+		
+		for (int i = 0; i < longCount; i++) {
+			longWay();
+		}
+		for (int i = 0; i < Math.max(2, longCount / 4); i++) {
+			ring();
+		}
+		for (int i = 0; i < Math.max(2, longCount / 2); i++) {
+			zigzag();
+		}
+	}
+	
+	float[] pickHotspot() {
+		float total = 0;
+		for (float[] h : hotspots) {
+			total += h[3];
+		}
+		float r = random.nextFloat() * total;
+		
+		for (float[] h : hotspots) {
+			r -= h[3];
+			if (r <= 0) {
+				return h;
+			}
+		}
+		return hotspots.get(hotspots.size() - 1);
+	}
+	
+	int addNode(float la, float lo) {
+		lat[nodeCount] = Math.max(bbox[0], Math.min(bbox[2], la));
+		lon[nodeCount] = Math.max(bbox[1], Math.min(bbox[3], lo));
+		return nodeCount++;
+	}
+	
+	/**
+	 * localWays: short ways between nearby nodes, some of them closed
+	 * @param count
+	 */
+	void localWays(int count) {
+		HashMap<Long, ArrayList<Integer>> grid = new HashMap<Long, ArrayList<Integer>>();
+		
+		for (int i = 0; i < nodeCount; i++) {
+			long cell = cell(lat[i], lon[i]);
+			if (!grid.containsKey(cell)) {
+				grid.put(cell, new ArrayList<Integer>());
+			}
+			grid.get(cell).add(i);
+		}
+		
+		for (int w = 0; w < count; w++) {
+			int length = 2 + random.nextInt(14);
+			ArrayList<Long> refs = new ArrayList<Long>();
+			int current = random.nextInt(nodeCount);
+			
+			while (refs.size() < length) {
+				long id = nodeId(current);
+				if (refs.contains(id)) {
+					break;
+				}
+				refs.add(id);
+				
+				//next node from a neighbouring cell
+				long cell = cell(lat[current] + (random.nextInt(3) - 1) * CELL, lon[current] + (random.nextInt(3) - 1) * CELL);
+				ArrayList<Integer> candidates = grid.get(cell);
+				if (candidates == null) {
+					break;
+				}
+				current = candidates.get(random.nextInt(candidates.size()));
+			}
+			if (refs.size() < 2) {
+				continue;
+			}
+			if (refs.size() > 2 && random.nextInt(10) == 0) {
+				refs.add(refs.get(0));
+				closedWays++;
+			}
+			addWay(refs);
+			localWays++;
+		}
+	}
+	
+	static long cell(float la, float lo) {
+		return (long)Math.floor((la + 90) / CELL) * 100000 + (long)Math.floor((lo + 180) / CELL);
+	}
+	
+	/**
+	 * longWay: a meandering way with new nodes, crossing many tiles
+	 */
+	void longWay() {
+		int length = 200 + random.nextInt(1800);
+		float step = (bbox[2] - bbox[0]) / 300;
+		float la = bbox[0] + random.nextFloat() * (bbox[2] - bbox[0]);
+		float lo = bbox[1] + random.nextFloat() * (bbox[3] - bbox[1]);
+		double heading = random.nextDouble() * 2 * Math.PI;
+		ArrayList<Long> refs = new ArrayList<Long>();
+		
+		for (int i = 0; i < length; i++) {
+			refs.add(nodeId(addNode(la, lo)));
+			heading += random.nextGaussian() * 0.2;
+			la += (float)(Math.sin(heading) * step);
+			lo += (float)(Math.cos(heading) * step);
+			
+			//turn around at the edges
+			if (la <= bbox[0] || la >= bbox[2]) {
+				heading = -heading;
+			}
+			if (lo <= bbox[1] || lo >= bbox[3]) {
+				heading = Math.PI - heading;
+			}
+		}
+		addWay(refs);
+		longWays++;
+	}
+	
+	/**
+	 * ring: a large closed way
+	 */
+	void ring() {
+		int length = 100 + random.nextInt(400);
+		float radius = 1 + random.nextFloat() * 2;
+		float la = bbox[0] + radius + random.nextFloat() * Math.max(0, bbox[2] - bbox[0] - 2 * radius);
+		float lo = bbox[1] + radius + random.nextFloat() * Math.max(0, bbox[3] - bbox[1] - 2 * radius);
+		ArrayList<Long> refs = new ArrayList<Long>();
+		
+		for (int i = 0; i < length; i++) {
+			double a = 2 * Math.PI * i / length;
+			refs.add(nodeId(addNode(la + (float)(Math.sin(a) * radius), lo + (float)(Math.cos(a) * radius))));
+		}
+		refs.add(refs.get(0));
+		addWay(refs);
+		closedWays++;
+		longWays++;
+	}
+	
+	/**
+	 * zigzag: a way following a full-degree parallel, crossing it back and forth
+	 */
+	void zigzag() {
+		int length = 50 + random.nextInt(200);
+		float la = (float)Math.floor(bbox[0] + 1 + random.nextFloat() * Math.max(0, bbox[2] - bbox[0] - 2));
+		float lo = bbox[1] + random.nextFloat() * (bbox[3] - bbox[1]) / 2;
+		float step = 0.01F + random.nextFloat() * 0.05F;
+		ArrayList<Long> refs = new ArrayList<Long>();
+		
+		for (int i = 0; i < length; i++) {
+			float offset = (i % 2 == 0 ? 1 : -1) * (0.001F + random.nextFloat() * 0.01F);
+			refs.add(nodeId(addNode(la + offset, lo + i * step)));
+		}
+		addWay(refs);
+		reenteringWays++;
+		longWays++;
+	}
+	
+	void addWay(ArrayList<Long> refs) {
+		long[] w = new long[refs.size()];
+		for (int i = 0; i < w.length; i++) {
+			w[i] = refs.get(i);
+		}
+		ways.add(w);
+		refCount += w.length;
+	}
+	
+	/**
+	 * write: write the generated data as OSM XML
+	 * @param fn
+	 * @throws IOException
+	 */
+	public void write(String fn) throws IOException {
+		Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(fn), "UTF-8"), 1 << 20);
+		
+		try {
+			w.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+			w.write("<osm version=\"0.6\" generator=\"osmt generator\">\n");
+			w.write("  <bounds minlat=\"" + bbox[0] + "\" minlon=\"" + bbox[1] + "\" maxlat=\"" + bbox[2] + "\" maxlon=\"" + bbox[3] + "\"/>\n");
+			
+			for (int i = 0; i < nodeCount; i++) {
+				String attrs = "id=\"" + nodeId(i) + "\" lat=\"" + coord(lat[i]) + "\" lon=\"" + coord(lon[i])
+						+ "\" version=\"1\" changeset=\"" + (i / 1000 + 1) + "\" user=\"gen user\" uid=\"1\" visible=\"true\" timestamp=\"2011-09-01T12:00:00Z\"";
+				
+				if (i % 9 == 0) {
+					w.write("  <node " + attrs + ">\n");
+					w.write("    <tag k=\"amenity\" v=\"bench\"/>\n");
+					w.write("    <tag k=\"name\" v=\"Node " + i + "\"/>\n");
+					w.write("  </node>\n");
+				}
+				else {
+					w.write("  <node " + attrs + "/>\n");
+				}
+			}
+			for (int i = 0; i < ways.size(); i++) {
+				w.write("  <way id=\"" + (i + 1) + "\" version=\"1\" changeset=\"1\" user=\"gen user\" uid=\"1\" visible=\"true\" timestamp=\"2011-09-01T12:00:00Z\">\n");
+				
+				for (long ref : ways.get(i)) {
+					w.write("    <nd ref=\"" + ref + "\"/>\n");
+				}
+				w.write("    <tag k=\"highway\" v=\"" + (ways.get(i).length > 100 ? "primary" : "residential") + "\"/>\n");
+				w.write("  </way>\n");
+			}
+			w.write("  <relation id=\"1\" version=\"1\" changeset=\"1\" user=\"gen user\" uid=\"1\" visible=\"true\" timestamp=\"2011-09-01T12:00:00Z\">\n");
+			w.write("    <member type=\"way\" ref=\"1\" role=\"\"/>\n");
+			w.write("    <tag k=\"type\" v=\"route\"/>\n");
+			w.write("  </relation>\n");
+			w.write("</osm>\n");
+		} finally {
+			w.close();
+		}
+	}
+	
+	static String coord(float c) {
+		return String.format(Locale.ROOT, "%.7f", c);
+	}
+	
+	public String stats() {
+		return nodeCount + " nodes, " + ways.size() + " ways (" + longWays + " long, " + closedWays + " closed, "
+				+ reenteringWays + " re-entering), " + refCount + " refs";
+	}
+	
+	/**
+	 * main
+	 *
+	 * Usage: OsmGenerator --of=FILE [--scale=1] [--seed=1] [--bbox=MINLAT,MINLON,MAXLAT,MAXLON]
+	 * [--hotspots=LAT,LON,RADIUS,WEIGHT;...]
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		HashMap<String, String> params = RoundTrip.params(args);
+		
+		if (!params.containsKey("of")) {
+			System.err.println("Usage: OsmGenerator --of=FILE [--scale=1] [--seed=1] [--bbox=MINLAT,MINLON,MAXLAT,MAXLON] [--hotspots=LAT,LON,RADIUS,WEIGHT;...]");
+			System.exit(1);
+		}
+		OsmGenerator gen = RoundTrip.generator(params);
+		gen.generate();
+		gen.write(params.get("of"));
+		System.out.println("wrote " + params.get("of") + ": " + gen.stats());
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ParseAttrBenchmark - attribute parsing of the lines seen in the split loop
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseAttrBenchmark {
+	@Param({"node", "nd", "way"})
+	String kind;
+	
+	String line, key;
+	
+	@Setup
+	public void setup() {
+		if (kind.equals("node")) {
+			line = "  <node id=\"1234567890\" lat=\"52.5170365\" lon=\"13.3888599\" version=\"12\" changeset=\"45612378\" user=\"someone\" uid=\"123456\" visible=\"true\" timestamp=\"2011-09-21T18:31:44Z\">";
+			key = "id";
+		}
+		else if (kind.equals("nd")) {
+			line = "		<nd ref=\"1234567890\" tn=\"32533\"/>";
+			key = "ref";
+		}
+		else {
+			line = "  <way id=\"123456789\" version=\"3\" changeset=\"45612378\" user=\"someone\" uid=\"123456\" visible=\"true\" timestamp=\"2011-09-21T18:31:44Z\">";
+			key = "id";
+		}
+	}
+	
+	@Benchmark
+	public HashMap<String, String> parseAttr() {
+		return Split.parseAttr(line);
+	}
+	
+	@Benchmark
+	public String getAttr() {
+		return Split.getAttr(line, key);
+	}
+}
@@ -0,0 +1,439 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * RoundTrip - end-to-end throughput test: generate (or read) an OSM file,
+ * split it, merge the tiles and check the result against the input
+ *
+ * Usage: RoundTrip [--input=FILE] [--work-dir=DIR] [--tile-size=1] [--slim]
+ * [--memory-budget=MB] [--ref-lookup=batch|direct|sort]
+ * [--scale=1] [--seed=1] [--bbox=...] [--hotspots=...]
+ * [--merge-bbox=minlat,minlon,maxlat,maxlon] [--bad-input]
+ *
+ * With --merge-bbox, the tiles of the bbox are merged too, clipped to it, and
+ * checked for the nodes of the input in it; a bbox on tile edges checks that
+ * the tiles merely touching it are neither merged nor expected. With
+ * --bad-input, the input is split once more together with a file without OSM
+ * root, which must fail instead of leaving the input waiting for its nodes.
+ */
+public class RoundTrip {
+	String workDir, inputFile;
+	float tilesize;
+	boolean slim;
+	long memoryBudget = 0;
+	int refLookup = Split.REFS_BATCH;
+	float[] mergeBbox;
+	boolean badInput;
+	
+	long nodes, ways;
+	long splitMs, mergeMs;
+	
+	/**
+	 * params: parse --key=value arguments like Main
+	 * @param args
+	 * @return
+	 */
+	static HashMap<String, String> params(String[] args) {
+		HashMap<String, String> params = new HashMap<String, String>();
+		
+		for (String arg : args) {
+			String[] keyValue = arg.replaceFirst("^--", "").split("=", 2);
+			params.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+		}
+		return params;
+	}
+	
+	/**
+	 * generator: create a generator from the parameters
+	 * @param params
+	 * @return
+	 */
+	static OsmGenerator generator(HashMap<String, String> params) {
+		long seed = params.containsKey("seed") ? Long.parseLong(params.get("seed")) : 1;
+		double scale = params.containsKey("scale") ? Double.parseDouble(params.get("scale")) : 1;
+		OsmGenerator gen = new OsmGenerator(seed, scale);
+		
+		if (params.containsKey("bbox")) {
+			String[] v = params.get("bbox").split(",");
+			for (int i = 0; i < 4; i++) {
+				gen.bbox[i] = Float.parseFloat(v[i]);
+			}
+		}
+		if (params.containsKey("hotspots")) {
+			gen.parseHotspots(params.get("hotspots"));
+		}
+		else {
+			gen.addHotspot(48.1F, 11.6F, 0.2F, 0.3F);
+			gen.addHotspot(45.5F, 9.2F, 0.3F, 0.2F);
+		}
+		return gen;
+	}
+	
+	/**
+	 * run: split and merge, print throughput
+	 * @throws Exception
+	 */
+	void run() throws Exception {
+		String tileDir = workDir + "tiles/";
+		String merged = workDir + "merged.osm";
+		new File(tileDir).mkdirs();
+		long inputBytes = new File(inputFile).length();
+		
+		long start = System.currentTimeMillis();
+		Splitter splitter = new Splitter(inputFile, tileDir);
+		splitter.setIndexFile(workDir + "node2tn");
+		splitter.setTilesize(tilesize);
+		splitter.setSlim(slim);
+		splitter.setRefLookup(refLookup);
+		if (memoryBudget > 0) {
+			splitter.setMemoryBudget(memoryBudget);
+		}
+		splitter.split();
+		splitMs = Math.max(1, System.currentTimeMillis() - start);
+		
+		ArrayList<String> tiles = new ArrayList<String>();
+		for (String fn : new File(tileDir).list()) {
+			if (fn.endsWith(".osm")) {
+				tiles.add(tileDir + fn);
+			}
+		}
+		Collections.sort(tiles);
+		
+		start = System.currentTimeMillis();
+		new Merger(tiles).merge(merged);
+		mergeMs = Math.max(1, System.currentTimeMillis() - start);
+		
+		long mergedBytes = new File(merged).length();
+		
+		System.out.println("");
+		System.out.println("split: " + splitMs + " ms, " + rate(nodes, splitMs) + " nodes/s, " + rate(ways, splitMs) + " ways/s, "
+				+ rate(inputBytes / 1048576.0, splitMs) + " MB/s, " + tiles.size() + " tiles");
+		System.out.println("merge: " + mergeMs + " ms, " + rate(nodes, mergeMs) + " nodes/s, " + rate(ways, mergeMs) + " ways/s, "
+				+ rate(mergedBytes / 1048576.0, mergeMs) + " MB/s");
+		System.out.println("peak RSS: " + peakRss() / 1048576 + " MB");
+	}
+	
+	static String rate(double count, long ms) {
+		return String.format("%.1f", count * 1000 / ms);
+	}
+	
+	/**
+	 * peakRss: VmHWM on Linux, otherwise the peak heap usage
+	 * @return bytes
+	 */
+	static long peakRss() {
+		try {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream("/proc/self/status"), "UTF-8"));
+			String line;
+			
+			try {
+				while ((line = br.readLine()) != null) {
+					if (line.startsWith("VmHWM:")) {
+						return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+					}
+				}
+			} finally {
+				br.close();
+			}
+		} catch (IOException e) {
+			//not Linux
+		}
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+	
+	/**
+	 * count: count the nodes and ways of the input without keeping them
+	 * @throws IOException
+	 */
+	void count() throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(inputFile), "UTF-8"), 1 << 20);
+		String line;
+		
+		try {
+			while ((line = br.readLine()) != null) {
+				if (line.contains("<node ")) {
+					nodes++;
+				}
+				else if (line.contains("<way ")) {
+					ways++;
+				}
+			}
+		} finally {
+			br.close();
+		}
+	}
+	
+	/**
+	 * Elements - nodes and ways of an OSM file, for comparing
+	 */
+	static class Elements {
+		HashMap<Long, String> nodes = new HashMap<Long, String>();
+		HashMap<Long, long[]> wayRefs = new HashMap<Long, long[]>();
+		HashMap<Long, String> wayContent = new HashMap<Long, String>();
+		int duplicateWays = 0;
+		
+		void read(String fn) throws IOException {
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(fn), "UTF-8"), 1 << 20);
+			String line;
+			long id = 0;
+			StringBuilder content = null;
+			ArrayList<Long> refs = new ArrayList<Long>();
+			boolean inWay = false;
+			
+			try {
+				while ((line = br.readLine()) != null) {
+					line = line.trim();
+					
+					if (line.startsWith("<node ")) {
+						id = Long.parseLong(Split.getAttr(line, "id"));
+						content = new StringBuilder(line);
+						if (line.endsWith("/>")) {
+							nodes.put(id, content.toString());
+						}
+					}
+					else if (line.startsWith("</node")) {
+						nodes.put(id, content.toString());
+					}
+					else if (line.startsWith("<way ")) {
+						id = Long.parseLong(Split.getAttr(line, "id"));
+						content = new StringBuilder(line);
+						refs.clear();
+						inWay = true;
+					}
+					else if (line.startsWith("<nd ")) {
+						refs.add(Long.parseLong(Split.getAttr(line, "ref")));
+					}
+					else if (line.startsWith("</way")) {
+						//pieces of ways which could not be merged completely come with new IDs
+						if (wayRefs.containsKey(id)) {
+							duplicateWays++;
+						}
+						long[] r = new long[refs.size()];
+						for (int i = 0; i < r.length; i++) {
+							r[i] = refs.get(i);
+						}
+						wayRefs.put(id, r);
+						wayContent.put(id, content.toString());
+						inWay = false;
+					}
+					else if (line.startsWith("<relation ")) {
+						break;
+					}
+					else if (content != null && (inWay || line.startsWith("<tag "))) {
+						content.append('\n').append(line);
+					}
+				}
+			} finally {
+				br.close();
+			}
+		}
+	}
+	
+	/**
+	 * check: compare the merged file with the input
+	 * @param merged
+	 * @return number of differences
+	 * @throws IOException
+	 */
+	long check(String merged) throws IOException {
+		Elements in = new Elements(), out = new Elements();
+		in.read(inputFile);
+		out.read(merged);
+		
+		long missingNodes = 0, differentNodes = 0, missingWays = 0, differentWays = 0;
+		
+		for (Long id : in.nodes.keySet()) {
+			if (!out.nodes.containsKey(id)) {
+				missingNodes++;
+			}
+			else if (!out.nodes.get(id).equals(in.nodes.get(id))) {
+				differentNodes++;
+			}
+		}
+		for (Long id : in.wayRefs.keySet()) {
+			if (!out.wayRefs.containsKey(id)) {
+				missingWays++;
+			}
+			else if (!Arrays.equals(out.wayRefs.get(id), in.wayRefs.get(id)) || !out.wayContent.get(id).equals(in.wayContent.get(id))) {
+				differentWays++;
+			}
+		}
+		long extraNodes = out.nodes.size() - (in.nodes.size() - missingNodes);
+		long extraWays = out.wayRefs.size() - (in.wayRefs.size() - missingWays) + out.duplicateWays;
+		
+		System.out.println("check: nodes " + missingNodes + " missing, " + differentNodes + " different, " + extraNodes + " extra; ways "
+				+ missingWays + " missing, " + differentWays + " different, " + extraWays + " extra");
+		
+		return missingNodes + differentNodes + extraNodes + missingWays + differentWays + extraWays;
+	}
+	
+	/**
+	 * checkBbox: merge the tiles of the bbox and compare the nodes in it with the input
+	 * @param merged
+	 * @return number of differences
+	 * @throws IOException
+	 */
+	long checkBbox(String merged) throws IOException {
+		String tileDir = workDir + "tiles/";
+		Merger.fromDirectory(tileDir, mergeBbox, tilesize).merge(merged);
+		
+		Elements in = new Elements(), out = new Elements();
+		in.read(inputFile);
+		out.read(merged);
+		
+		long missingNodes = 0, extraNodes = 0;
+		
+		for (Long id : in.nodes.keySet()) {
+			String node = in.nodes.get(id);
+			float lat = Float.parseFloat(Split.getAttr(node, "lat")), lon = Float.parseFloat(Split.getAttr(node, "lon"));
+			boolean inside = lat >= mergeBbox[0] && lon >= mergeBbox[1] && lat <= mergeBbox[2] && lon <= mergeBbox[3];
+			
+			if (inside && !out.nodes.containsKey(id)) {
+				missingNodes++;
+			}
+			else if (!inside && out.nodes.containsKey(id)) {
+				extraNodes++;
+			}
+		}
+		System.out.println("check bbox: nodes " + missingNodes + " missing, " + extraNodes + " extra");
+		
+		return missingNodes + extraNodes;
+	}
+	
+	/**
+	 * checkBadInput: split the input together with a file without OSM root, which must fail, not hang
+	 * @return number of differences
+	 * @throws Exception
+	 */
+	long checkBadInput() throws Exception {
+		String bad = workDir + "bad.osm";
+		Writer w = new OutputStreamWriter(new FileOutputStream(bad), "UTF-8");
+		
+		try {
+			w.write("<?xml version='1.0' encoding='UTF-8'?>\n<none/>\n");
+		} finally {
+			w.close();
+		}
+		new File(workDir + "bad/").mkdirs();
+		final Splitter splitter = new Splitter(Arrays.asList(inputFile, bad), workDir + "bad/");
+		splitter.setTilesize(tilesize);
+		splitter.setRefLookup(refLookup);
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		Future<Manifest> f = pool.submit(new Callable<Manifest>() {
+			public Manifest call() throws IOException {
+				return splitter.split();
+			}
+		});
+		
+		try {
+			f.get(10, TimeUnit.MINUTES);
+			System.out.println("check bad input: the split did not fail");
+			return 1;
+		} catch (ExecutionException e) {
+			System.out.println("check bad input: failed with \"" + e.getCause().getMessage() + "\"");
+			return 0;
+		} catch (TimeoutException e) {
+			System.out.println("check bad input: the split hangs");
+			return 1;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+	
+	public static void main(String[] args) throws Exception {
+		HashMap<String, String> params = params(args);
+		RoundTrip rt = new RoundTrip();
+		
+		rt.workDir = params.containsKey("work-dir") ? params.get("work-dir") : "roundtrip";
+		if (!rt.workDir.endsWith("/")) {
+			rt.workDir += "/";
+		}
+		new File(rt.workDir).mkdirs();
+		rt.tilesize = params.containsKey("tile-size") ? Float.parseFloat(params.get("tile-size")) : 1.0f;
+		rt.slim = params.containsKey("slim");
+		if ("sort".equals(params.get("ref-lookup"))) {
+			rt.refLookup = Split.REFS_SORT;
+		}
+		else if ("direct".equals(params.get("ref-lookup"))) {
+			rt.refLookup = Split.REFS_DIRECT;
+		}
+		if (params.containsKey("memory-budget")) {
+			rt.memoryBudget = Long.parseLong(params.get("memory-budget")) * 1048576;
+		}
+		
+		rt.badInput = params.containsKey("bad-input");
+		if (params.containsKey("merge-bbox")) {
+			String[] v = params.get("merge-bbox").split(",");
+			rt.mergeBbox = new float[4];
+			for (int i = 0; i < 4; i++) {
+				rt.mergeBbox[i] = Float.parseFloat(v[i]);
+			}
+		}
+		
+		if (params.containsKey("input")) {
+			rt.inputFile = params.get("input");
+		}
+		else {
+			rt.inputFile = rt.workDir + "input.osm";
+			OsmGenerator gen = generator(params);
+			gen.generate();
+			gen.write(rt.inputFile);
+			System.out.println("generated " + rt.inputFile + ": " + gen.stats());
+		}
+		
+		//count the input first, the rates need it
+		rt.count();
+		rt.run();
+		
+		long differences = rt.check(rt.workDir + "merged.osm");
+		
+		if (rt.mergeBbox != null) {
+			differences += rt.checkBbox(rt.workDir + "bbox.osm");
+		}
+		if (rt.badInput) {
+			differences += rt.checkBadInput();
+		}
+		System.exit(differences == 0 ? 0 : 1);
+	}
+}
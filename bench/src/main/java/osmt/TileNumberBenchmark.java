@@ -0,0 +1,74 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TileNumberBenchmark - tile number arithmetic of NodeToTileNumber
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileNumberBenchmark {
+	final static int COUNT = 4096;
+	
+	@Param({"0.25", "1"})
+	float tilesize;
+	
+	float[] lat = new float[COUNT], lon = new float[COUNT];
+	int[] tn = new int[COUNT];
+	int i = 0;
+	NodeToTileNumber grid;
+	
+	@Setup
+	public void setup() {
+		grid = new NodeToTileNumber(tilesize);
+		Random random = new Random(42);
+		
+		for (int j = 0; j < COUNT; j++) {
+			lat[j] = random.nextFloat() * 180 - 90;
+			lon[j] = random.nextFloat() * 360 - 180;
+			tn[j] = grid.calcTn(lat[j], lon[j]);
+		}
+	}
+	
+	@Benchmark
+	public int calcTn() {
+		i = (i + 1) & (COUNT - 1);
+		return grid.calcTn(lat[i], lon[i]);
+	}
+	
+	@Benchmark
+	public float[] getBounds() {
+		i = (i + 1) & (COUNT - 1);
+		return grid.getBounds(tn[i]);
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TileWriteBenchmark - write paths of Tile for temporary and output files
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileWriteBenchmark {
+	final static String NODE = "  <node id=\"1234567890\" lat=\"52.5170365\" lon=\"13.3888599\" version=\"12\" changeset=\"45612378\" user=\"someone\" uid=\"123456\" visible=\"true\" timestamp=\"2011-09-21T18:31:44Z\"/>";
+	final static String WAY = "  <way id=\"123456789\" version=\"3\" changeset=\"45612378\" user=\"someone\" uid=\"123456\" visible=\"true\" timestamp=\"2011-09-21T18:31:44Z\">";
+	
+	File dataDir;
+	Tile tile;
+	Element node, way;
+	
+	@Setup(Level.Iteration)
+	public void setup() throws Exception {
+		dataDir = Files.createTempDirectory("osmt-bench").toFile();
+		tile = new Tile(32533, dataDir.getPath() + "/", 1.0f);
+		tile.openTileWriter();
+		tile.writeOpening();
+		
+		node = Element.parse(NODE);
+		way = Element.parse(WAY);
+		for (long ref = 1234567890L; ref < 1234567900L; ref++) {
+			way.refs.add(ref);
+			way.refTn.add(0);
+		}
+		way.addTag("    <tag k=\"highway\" v=\"residential\"/>");
+	}
+	
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		tile.closeTmpWriters();
+		tile.writeClosingTags();
+		tile.closeSegments();
+		tile.removeTmpFiles();
+		
+		for (File f : dataDir.listFiles()) {
+			f.delete();
+		}
+		dataDir.delete();
+	}
+	
+	@Benchmark
+	public void writeTmpNode() throws IOException {
+		tile.writeTmpNode(node);
+	}
+	
+	@Benchmark
+	public void writeTmpWay() throws IOException {
+		tile.writeTmpWay(way);
+	}
+	
+	@Benchmark
+	public void writeLine() throws IOException {
+		tile.writeLine(NODE);
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Analyze - predict the tiles of a split for candidate tile sizes
+ *
+ * Reads the input once and keeps the coordinates of every n-th node (by ID)
+ * only. Ways are placed in the tiles of their sampled refs, so the way
+ * counts and the crossing ratio are estimates, too; ways without a sampled
+ * ref are accounted for by scaling.
+ */
+public class Analyze {
+	public final static float[] CANDIDATES = {0.1F, 0.25F, 0.5F, 1F, 2F, 5F, 10F};
+	
+	//rough heap cost per node of Split: TreeMap entry, Long and String (normal) or TreeSet entry and Long (slim)
+	final static int NODES_MAP_ENTRY = 100;
+	final static int NODES_SET_ENTRY = 56;
+	//writer buffers and collections of a Tile
+	final static int TILE_OVERHEAD = 32768;
+	//files a tile keeps open: nodes, nodes-extra, ways and segments
+	final static int FILES_PER_TILE = 4;
+	//files needed besides the tiles: input, index, jar, JVM
+	final static int FILES_RESERVED = 64;
+	
+	String inputFileName;
+	int sampleRate;
+	float[] candidates;
+	
+	//sampled nodes, sorted by ID
+	long[] ids = new long[1024];
+	float[] lats = new float[1024], lons = new float[1024];
+	int sampledNodes = 0;
+	
+	//sampled refs of the ways (indexes into ids), wayStart[i] is the first ref of way i
+	int[] wayRefs = new int[1024];
+	int[] wayStart = new int[1024];
+	int sampledWays = 0, sampledRefs = 0;
+	
+	long nodeCount = 0, wayCount = 0, ndCount = 0, nodeChars = 0, wayChars = 0;
+	boolean unsorted = false;
+	
+	ArrayList<TileStats> results = new ArrayList<TileStats>();
+	PrintStream log = System.out;
+	
+	/**
+	 * Constructor
+	 * @param inputFileName
+	 * @param sampleRate - keep every sampleRate-th node
+	 * @param candidates - tile sizes to predict, or null for the defaults
+	 */
+	public Analyze(String inputFileName, int sampleRate, float[] candidates) {
+		this.inputFileName = inputFileName;
+		this.sampleRate = sampleRate;
+		this.candidates = candidates != null ? candidates : CANDIDATES;
+	}
+	
+	/**
+	 * analyze: scan the input and compute the statistics of all candidates
+	 * @throws IOException
+	 */
+	public void analyze() throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(inputFileName), "UTF-8"), 1 << 20);
+		String line, target = "";
+		long lastId = Long.MIN_VALUE;
+		
+		log.println("analyzing " + inputFileName + " (sampling every " + sampleRate + ". node) ...");
+		
+		try {
+			while ((line = br.readLine()) != null) {
+				if (line.contains("<node ")) {
+					target = "nodes";
+					nodeCount++;
+					
+					long id = Long.parseLong(Split.getAttr(line, "id"));
+					if (id < lastId) unsorted = true;
+					lastId = id;
+					
+					if (id % sampleRate == 0) {
+						addNode(id, Float.parseFloat(Split.getAttr(line, "lat")), Float.parseFloat(Split.getAttr(line, "lon")));
+					}
+				}
+				else if (line.contains("<way ")) {
+					target = "ways";
+					wayCount++;
+					
+					if (sampledWays == 0 || sampledRefs > wayStart[sampledWays - 1]) {
+						startWay();
+					}
+				}
+				else if (line.contains("<nd ") && target.equals("ways")) {
+					long ref = Long.parseLong(Split.getAttr(line, "ref"));
+					ndCount++;
+					
+					if (ref % sampleRate == 0) {
+						int i = Arrays.binarySearch(ids, 0, sampledNodes, ref);
+						if (i >= 0) addRef(i);
+					}
+				}
+				else if (line.contains("<relation ")) {
+					break;
+				}
+				
+				if (target.equals("nodes")) {
+					nodeChars += line.length() + 1;
+				}
+				else if (target.equals("ways")) {
+					wayChars += line.length() + 1;
+				}
+			}
+		} finally {
+			br.close();
+		}
+		
+		//drop the last way if it has no sampled refs
+		if (sampledWays > 0 && sampledRefs == wayStart[sampledWays - 1]) {
+			sampledWays--;
+		}
+		
+		if (unsorted) {
+			System.err.println("Warning: nodes are not sorted by ID, way statistics are incomplete");
+		}
+		
+		for (float tilesize : candidates) {
+			results.add(stats(tilesize));
+		}
+	}
+	
+	/**
+	 * addNode: keep a sampled node
+	 */
+	void addNode(long id, float lat, float lon) {
+		if (sampledNodes == ids.length) {
+			ids = Arrays.copyOf(ids, ids.length * 2);
+			lats = Arrays.copyOf(lats, ids.length);
+			lons = Arrays.copyOf(lons, ids.length);
+		}
+		ids[sampledNodes] = id;
+		lats[sampledNodes] = lat;
+		lons[sampledNodes] = lon;
+		sampledNodes++;
+	}
+	
+	/**
+	 * startWay: start the refs of the next way
+	 */
+	void startWay() {
+		if (sampledWays == wayStart.length) {
+			wayStart = Arrays.copyOf(wayStart, wayStart.length * 2);
+		}
+		wayStart[sampledWays++] = sampledRefs;
+	}
+	
+	/**
+	 * addRef: add a sampled ref to the current way
+	 * @param index - index of the node in ids
+	 */
+	void addRef(int index) {
+		if (sampledRefs == wayRefs.length) {
+			wayRefs = Arrays.copyOf(wayRefs, wayRefs.length * 2);
+		}
+		wayRefs[sampledRefs++] = index;
+	}
+	
+	/**
+	 * stats: predict the tiles for a tile size
+	 * @param tilesize
+	 * @return
+	 */
+	TileStats stats(float tilesize) {
+		//tn -> {nodes, ways, extra nodes}, in samples
+		HashMap<Integer, long[]> tiles = new HashMap<Integer, long[]>();
+		int[] tns = new int[sampledNodes];
+		long crossingWays = 0, multiRefWays = 0;
+		
+		for (int i = 0; i < sampledNodes; i++) {
+			tns[i] = NodeToTileNumber.calcTn(lats[i], lons[i], tilesize, tilesize);
+			tile(tiles, tns[i])[0]++;
+		}
+		
+		for (int w = 0; w < sampledWays; w++) {
+			int start = wayStart[w], end = w + 1 < sampledWays ? wayStart[w + 1] : sampledRefs;
+			ArrayList<Integer> wayTiles = new ArrayList<Integer>();
+			int previousTn = 0;
+			
+			for (int r = start; r < end; r++) {
+				int tn = tns[wayRefs[r]];
+				
+				if (!wayTiles.contains(tn)) {
+					wayTiles.add(tn);
+					tile(tiles, tn)[1]++;
+				}
+				//every change of tiles copies a node in both directions
+				if (previousTn != 0 && tn != previousTn) {
+					tile(tiles, tn)[2]++;
+					tile(tiles, previousTn)[2]++;
+				}
+				previousTn = tn;
+			}
+			if (end - start > 1) {
+				multiRefWays++;
+				if (wayTiles.size() > 1) crossingWays++;
+			}
+		}
+		
+		//scale samples to the input; node copies happen between consecutive refs,
+		//a gap between sampled refs stands for sampleRate of them
+		double wayScale = sampledWays > 0 ? (double)wayCount / sampledWays : 0;
+		long gaps = sampledRefs - sampledWays;
+		double copyScale = gaps > 0 ? (double)(ndCount - wayCount) / sampleRate / gaps : 0;
+		double avgNode = nodeCount > 0 ? (double)nodeChars / nodeCount : 0;
+		double avgWay = wayCount > 0 ? (double)wayChars / wayCount : 0;
+		
+		TileStats s = new TileStats();
+		s.tilesize = tilesize;
+		s.tiles = tiles.size();
+		
+		long extraNodes = 0;
+		for (long[] t : tiles.values()) {
+			long nodes = t[0] * sampleRate;
+			long ways = Math.round(t[1] * wayScale);
+			long extra = Math.round(t[2] * copyScale);
+			long bytes = Math.round((nodes + extra) * avgNode + ways * avgWay);
+			
+			s.maxNodes = Math.max(s.maxNodes, nodes);
+			s.maxWays = Math.max(s.maxWays, ways);
+			s.maxBytes = Math.max(s.maxBytes, bytes);
+			extraNodes += extra;
+		}
+		s.avgNodes = s.tiles > 0 ? nodeCount / s.tiles : 0;
+		s.crossingRatio = multiRefWays > 0 ? (double)crossingWays / multiRefWays : 0;
+		s.extraNodes = extraNodes;
+		s.files = (long)s.tiles * FILES_PER_TILE + FILES_RESERVED;
+		s.heapSlim = (nodeCount + extraNodes) * NODES_SET_ENTRY + (long)s.tiles * TILE_OVERHEAD;
+		s.heap = Math.round((nodeCount + extraNodes) * (avgNode + NODES_MAP_ENTRY)) + (long)s.tiles * TILE_OVERHEAD;
+		return s;
+	}
+	
+	static long[] tile(HashMap<Integer, long[]> tiles, int tn) {
+		long[] t = tiles.get(tn);
+		
+		if (t == null) {
+			t = new long[3];
+			tiles.put(tn, t);
+		}
+		return t;
+	}
+	
+	/**
+	 * maxFiles: the limit of open files of this process
+	 * @return
+	 */
+	static long maxFiles() {
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		
+		if (os instanceof com.sun.management.UnixOperatingSystemMXBean) {
+			return ((com.sun.management.UnixOperatingSystemMXBean)os).getMaxFileDescriptorCount();
+		}
+		return Long.MAX_VALUE;
+	}
+	
+	/**
+	 * recommend: the largest candidate whose tiles fit the budget and the
+	 * file limit, or the smallest one within the file limit if none fits
+	 * @param tileBudget - maximum bytes per tile
+	 * @param slim
+	 * @return tile size, or 0 if no candidate fits the file limit
+	 */
+	public float recommend(long tileBudget, boolean slim) {
+		long maxFiles = maxFiles();
+		long maxHeap = Runtime.getRuntime().maxMemory();
+		TileStats best = null, fallback = null;
+		
+		for (TileStats s : results) {
+			if (s.files > maxFiles || (slim ? s.heapSlim : s.heap) > maxHeap) {
+				continue;
+			}
+			if (s.maxBytes <= tileBudget && (best == null || s.tilesize > best.tilesize)) {
+				best = s;
+			}
+			if (fallback == null || s.tilesize < fallback.tilesize) {
+				fallback = s;
+			}
+		}
+		if (best == null && fallback != null) {
+			System.err.println("Warning: no tile size keeps the tiles within the budget");
+			best = fallback;
+		}
+		return best != null ? best.tilesize : 0;
+	}
+	
+	/**
+	 * printReport: print the statistics of all candidates
+	 * @param tileBudget - maximum bytes per tile
+	 * @param slim
+	 */
+	public void printReport(long tileBudget, boolean slim) {
+		log.println("");
+		log.println(nodeCount + " nodes, " + wayCount + " ways; " + sampledNodes + " nodes and " + sampledWays + " ways sampled");
+		log.println("");
+		log.println(String.format("%9s %8s %12s %12s %12s %9s %12s %10s %10s %9s",
+				"tile size", "tiles", "max nodes", "avg nodes", "max ways", "crossing", "node copies", "max MB", "heap MB", "files"));
+		
+		for (TileStats s : results) {
+			log.println(String.format("%9s %8d %12d %12d %12d %8.2f%% %12d %10d %10d %9d",
+					s.tilesize, s.tiles, s.maxNodes, s.avgNodes, s.maxWays, s.crossingRatio * 100, s.extraNodes,
+					s.maxBytes / 1048576, (slim ? s.heapSlim : s.heap) / 1048576, s.files));
+		}
+		log.println("");
+		log.println("(max per tile; heap " + (slim ? "with" : "without") + " --slim; files open at once, limit is " + maxFiles() + ")");
+		
+		float tilesize = recommend(tileBudget, slim);
+		if (tilesize > 0) {
+			log.println("recommended: --tile-size=" + tilesize + " (tiles up to " + tileBudget / 1048576 + " MB)");
+		}
+		else {
+			log.println("no tile size fits the limit of open files");
+		}
+	}
+}
+
+/**
+ * TileStats - predicted tiles of a tile size
+ */
+class TileStats {
+	float tilesize;
+	int tiles;
+	long maxNodes, avgNodes, maxWays, maxBytes, extraNodes, files;
+	long heap, heapSlim;
+	double crossingRatio;
+}
@@ -0,0 +1,265 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * AsyncWriter - UTF-8 writer which fills large direct buffers and hands them
+ * to a dedicated thread writing them to a channel
+ */
+public class AsyncWriter extends Writer {
+	final static int BUFFER_SIZE = 16 * 1024 * 1024;
+	final static int BUFFER_COUNT = 3;
+	
+	WritableByteChannel channel;
+	CharsetEncoder encoder;
+	ByteBuffer buffer;
+	char highSurrogate = 0;
+	int bufferCount;
+	
+	BlockingQueue<ByteBuffer> free, full;
+	Thread writerThread;
+	volatile IOException error;
+	boolean closed = false;
+	
+	//an empty buffer on the queue tells the writer thread to stop
+	final static ByteBuffer STOP = ByteBuffer.allocate(0);
+	
+	/**
+	 * Constructor
+	 * @param channel
+	 * @param bufferSize
+	 * @param bufferCount
+	 */
+	public AsyncWriter(WritableByteChannel channel, int bufferSize, int bufferCount) {
+		this.channel = channel;
+		//like OutputStreamWriter, a lone surrogate becomes '?'
+		encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.bufferCount = bufferCount;
+		
+		free = new ArrayBlockingQueue<ByteBuffer>(bufferCount);
+		full = new ArrayBlockingQueue<ByteBuffer>(bufferCount + 1);
+		
+		for (int i = 0; i < bufferCount; i++) {
+			free.add(ByteBuffer.allocateDirect(bufferSize));
+		}
+		buffer = free.poll();
+		
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				writeBuffers();
+			}
+		}, "osmt-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	
+	/**
+	 * Constructor
+	 * @param channel
+	 */
+	public AsyncWriter(WritableByteChannel channel) {
+		this(channel, BUFFER_SIZE, BUFFER_COUNT);
+	}
+	
+	/**
+	 * open: create a writer for a file, or for stdout if fn is "-"
+	 * @param fn
+	 * @return
+	 * @throws IOException
+	 */
+	public static AsyncWriter open(String fn) throws IOException {
+		if (fn.equals("-")) {
+			return new AsyncWriter(new FileOutputStream(FileDescriptor.out).getChannel());
+		}
+		return new AsyncWriter(new FileOutputStream(fn).getChannel());
+	}
+	
+	/**
+	 * writeBuffers: loop of the writer thread
+	 */
+	void writeBuffers() {
+		try {
+			while (true) {
+				ByteBuffer b = full.take();
+				
+				if (b == STOP) {
+					break;
+				}
+				try {
+					b.flip();
+					while (b.hasRemaining()) {
+						channel.write(b);
+					}
+				} catch (IOException e) {
+					error = e;
+				}
+				b.clear();
+				free.put(b);
+			}
+		} catch (InterruptedException e) {
+			error = new IOException("writer thread interrupted");
+		}
+	}
+	
+	/**
+	 * handOff: pass the current buffer to the writer thread and take a free one
+	 * @throws IOException
+	 */
+	void handOff() throws IOException {
+		checkError();
+		try {
+			full.put(buffer);
+			buffer = free.take();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for the writer thread");
+		}
+		checkError();
+	}
+	
+	void checkError() throws IOException {
+		if (error != null) {
+			throw error;
+		}
+	}
+	
+	@Override
+	public void write(String s) throws IOException {
+		encode(CharBuffer.wrap(s));
+	}
+	
+	@Override
+	public void write(String s, int off, int len) throws IOException {
+		encode(CharBuffer.wrap(s, off, off + len));
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		encode(CharBuffer.wrap(cbuf, off, len));
+	}
+	
+	/**
+	 * encode: encode chars into the current buffer, handing off full buffers
+	 * @param in
+	 * @throws IOException
+	 */
+	void encode(CharBuffer in) throws IOException {
+		if (closed) {
+			throw new IOException("writer closed");
+		}
+		
+		//a surrogate pair split between two writes
+		if (highSurrogate != 0 && in.hasRemaining()) {
+			CharBuffer pair = CharBuffer.wrap(new char[] {highSurrogate, in.get()});
+			highSurrogate = 0;
+			encode(pair);
+		}
+		
+		while (true) {
+			CoderResult result = encoder.encode(in, buffer, false);
+			
+			if (result.isOverflow()) {
+				handOff();
+			}
+			else if (result.isUnderflow()) {
+				if (in.hasRemaining()) {
+					highSurrogate = in.get();
+				}
+				break;
+			}
+			else {
+				result.throwException();
+			}
+		}
+	}
+	
+	/**
+	 * flush: hand off buffered data and wait until everything is written
+	 */
+	@Override
+	public void flush() throws IOException {
+		if (buffer.position() > 0) {
+			handOff();
+		}
+		
+		//all buffers but the current one are back in the pool when the writer thread is idle
+		ArrayList<ByteBuffer> idle = new ArrayList<ByteBuffer>();
+		
+		try {
+			for (int i = 1; i < bufferCount; i++) {
+				idle.add(free.take());
+			}
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while flushing");
+		} finally {
+			free.addAll(idle);
+		}
+		checkError();
+	}
+	
+	/**
+	 * finish: encode a trailing high surrogate and let the encoder write out its state
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		CharBuffer in = highSurrogate != 0 ? CharBuffer.wrap(new char[] {highSurrogate}) : CharBuffer.allocate(0);
+		highSurrogate = 0;
+		CoderResult result;
+		
+		while ((result = encoder.encode(in, buffer, true)).isOverflow()) {
+			handOff();
+		}
+		if (result.isError()) {
+			result.throwException();
+		}
+		while ((result = encoder.flush(buffer)).isOverflow()) {
+			handOff();
+		}
+	}
+	
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		finish();
+		flush();
+		closed = true;
+		
+		try {
+			full.put(STOP);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while closing");
+		}
+		checkError();
+		channel.close();
+	}
+}
@@ -0,0 +1,446 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * Element - a node or way in the binary format of the temporary files
+ *
+ * Record: length of the body (int), then the body: ID (long), type (byte),
+ * for nodes latitude and longitude in 1e-7 degrees (int) and their number of
+ * decimals (byte), the attributes, for ways the refs and their tile numbers,
+ * and the tags. Attributes keep their order, common keys take one byte.
+ * Values stay XML-escaped as read, so the element renders to the same XML.
+ */
+public class Element {
+	//attribute keys stored as their index
+	final static String[] KEYS = {"id", "lat", "lon", "version", "timestamp", "changeset", "uid", "user", "visible"};
+	final static int ID = 0, LAT = 1, LON = 2, OTHER_KEY = 0xff;
+	final static int SCALE = 10000000;
+	
+	public boolean way;
+	public long id;
+	public int lat, lon;
+	byte latDecimals, lonDecimals;
+	
+	//key, value, key, value, ... - the value is null if the field above holds it
+	public ArrayList<String> attrs = new ArrayList<String>();
+	public ArrayList<String> tags = new ArrayList<String>();
+	public ArrayList<Long> refs = new ArrayList<Long>();
+	public ArrayList<Integer> refTn = new ArrayList<Integer>();
+	
+	Element() {
+	}
+	
+	/**
+	 * Constructor
+	 * @param way - way or node
+	 * @param attributes - key, value, key, value, ... as returned by Split.attributes()
+	 */
+	public Element(boolean way, ArrayList<String> attributes) {
+		this.way = way;
+		
+		for (int i = 0; i + 1 < attributes.size(); i += 2) {
+			String key = attributes.get(i), value = attributes.get(i + 1);
+			
+			if (key.equals("id")) {
+				id = Long.parseLong(value);
+				attrs.add(key);
+				attrs.add(Long.toString(id).equals(value) ? null : value);
+			}
+			else if (!way && (key.equals("lat") || key.equals("lon"))) {
+				int decimals = decimals(value);
+				int fixed = decimals >= 0 ? parseFixed(value) : (int)Math.round(Double.parseDouble(value) * SCALE);
+				
+				if (key.equals("lat")) {
+					lat = fixed;
+					latDecimals = (byte)decimals;
+				}
+				else {
+					lon = fixed;
+					lonDecimals = (byte)decimals;
+				}
+				attrs.add(key);
+				//values which would not render the same are kept as they are
+				attrs.add(decimals >= 0 ? null : value);
+			}
+			else {
+				attrs.add(key);
+				attrs.add(value);
+			}
+		}
+	}
+	
+	/**
+	 * parse: create an element from its start tag
+	 * @param line - "<node ...>" or "<way ...>"
+	 * @return
+	 */
+	public static Element parse(String line) {
+		return new Element(line.contains("<way"), Split.attributes(line));
+	}
+	
+	/**
+	 * addTag: add a tag from its line
+	 * @param line - "<tag k=... v=.../>"
+	 */
+	public void addTag(String line) {
+		String[] tag = tag(line);
+		
+		if (tag != null) {
+			tags.add(tag[0]);
+			tags.add(tag[1]);
+		}
+	}
+	
+	/**
+	 * tag: parse a tag line
+	 * @param line - "<tag k=... v=.../>"
+	 * @return key and value, null without a key
+	 */
+	public static String[] tag(String line) {
+		String k = null, v = null;
+		ArrayList<String> a = Split.attributes(line);
+		
+		for (int i = 0; i + 1 < a.size(); i += 2) {
+			if (a.get(i).equals("k")) {
+				k = a.get(i + 1);
+			}
+			else if (a.get(i).equals("v")) {
+				v = a.get(i + 1);
+			}
+		}
+		return k != null ? new String[] {k, v != null ? v : ""} : null;
+	}
+	
+	/**
+	 * write: write the element as a record
+	 * @param out
+	 * @param buf - reusable buffer for the body
+	 * @throws IOException
+	 */
+	public void write(DataOutputStream out, ByteArrayOutputStream buf) throws IOException {
+		encode(buf);
+		out.writeInt(buf.size());
+		buf.writeTo(out);
+	}
+	
+	/**
+	 * toBytes: get the body of the record
+	 * @param buf - reusable buffer
+	 * @return
+	 */
+	public byte[] toBytes(ByteArrayOutputStream buf) {
+		try {
+			encode(buf);
+		} catch (IOException e) {
+			//not thrown by ByteArrayOutputStream
+			throw new RuntimeException(e);
+		}
+		return buf.toByteArray();
+	}
+	
+	void encode(ByteArrayOutputStream buf) throws IOException {
+		buf.reset();
+		DataOutputStream body = new DataOutputStream(buf);
+		
+		body.writeLong(id);
+		body.writeByte(way ? 1 : 0);
+		
+		if (!way) {
+			body.writeInt(lat);
+			body.writeInt(lon);
+			body.writeByte(latDecimals);
+			body.writeByte(lonDecimals);
+		}
+		body.writeByte(attrs.size() / 2);
+		
+		for (int i = 0; i < attrs.size(); i += 2) {
+			String key = attrs.get(i), value = attrs.get(i + 1);
+			int code = keyCode(key);
+			
+			if (value == null) {
+				body.writeByte(code);
+			}
+			else if (code == OTHER_KEY || code <= LON) {
+				body.writeByte(OTHER_KEY);
+				body.writeUTF(key);
+				body.writeUTF(value);
+			}
+			else {
+				body.writeByte(code);
+				body.writeUTF(value);
+			}
+		}
+		if (way) {
+			body.writeInt(refs.size());
+			
+			for (int i = 0; i < refs.size(); i++) {
+				body.writeLong(refs.get(i));
+				body.writeInt(i < refTn.size() ? refTn.get(i) : 0);
+			}
+		}
+		body.writeShort(tags.size() / 2);
+		
+		for (String s : tags) {
+			body.writeUTF(s);
+		}
+	}
+	
+	/**
+	 * readRecord: read the body of the next record
+	 * @param in
+	 * @return the body, null at the end of the file
+	 * @throws IOException
+	 */
+	public static byte[] readRecord(DataInputStream in) throws IOException {
+		int length;
+		
+		try {
+			length = in.readInt();
+		} catch (EOFException e) {
+			return null;
+		}
+		byte[] body = new byte[length];
+		in.readFully(body);
+		return body;
+	}
+	
+	/**
+	 * id: get the ID of a record without decoding it
+	 * @param body
+	 * @return
+	 */
+	public static long id(byte[] body) {
+		long id = 0;
+		
+		for (int i = 0; i < 8; i++) {
+			id = (id << 8) | (body[i] & 0xff);
+		}
+		return id;
+	}
+	
+	/**
+	 * decode: decode the body of a record
+	 * @param body
+	 * @return
+	 * @throws IOException
+	 */
+	public static Element decode(byte[] body) throws IOException {
+		ByteBuffer in = ByteBuffer.wrap(body);
+		Element e = new Element();
+		
+		e.id = in.getLong();
+		e.way = in.get() == 1;
+		
+		if (!e.way) {
+			e.lat = in.getInt();
+			e.lon = in.getInt();
+			e.latDecimals = in.get();
+			e.lonDecimals = in.get();
+		}
+		int attrCount = in.get() & 0xff;
+		
+		for (int i = 0; i < attrCount; i++) {
+			int code = in.get() & 0xff;
+			
+			if (code == OTHER_KEY) {
+				e.attrs.add(readUTF(in));
+				e.attrs.add(readUTF(in));
+			}
+			else {
+				e.attrs.add(KEYS[code]);
+				e.attrs.add(code <= LON ? null : readUTF(in));
+			}
+		}
+		if (e.way) {
+			int refCount = in.getInt();
+			
+			for (int i = 0; i < refCount; i++) {
+				e.refs.add(in.getLong());
+				e.refTn.add(in.getInt());
+			}
+		}
+		int tagCount = in.getShort() & 0xffff;
+		
+		for (int i = 0; i < tagCount * 2; i++) {
+			e.tags.add(readUTF(in));
+		}
+		return e;
+	}
+	
+	/**
+	 * readUTF: read a string written by DataOutputStream.writeUTF()
+	 * @param in
+	 * @return
+	 * @throws IOException
+	 */
+	static String readUTF(ByteBuffer in) throws IOException {
+		int length = in.getShort() & 0xffff;
+		int start = in.position();
+		byte[] b = in.array();
+		
+		//ASCII is encoded as is, which is most keys and values
+		for (int i = start; i < start + length; i++) {
+			if (b[i] < 0 || b[i] == 0) {
+				String s = DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(b, start - 2, length + 2)));
+				in.position(start + length);
+				return s;
+			}
+		}
+		in.position(start + length);
+		return new String(b, start, length, StandardCharsets.ISO_8859_1);
+	}
+	
+	/**
+	 * render: write the element as OSM XML
+	 * @param w
+	 * @throws IOException
+	 */
+	public void render(Writer w) throws IOException {
+		StringBuilder sb = new StringBuilder(way ? "  <way" : "  <node");
+		
+		for (int i = 0; i < attrs.size(); i += 2) {
+			String key = attrs.get(i), value = attrs.get(i + 1);
+			
+			if (value == null) {
+				int code = keyCode(key);
+				value = code == ID ? Long.toString(id) : code == LAT ? formatFixed(lat, latDecimals) : formatFixed(lon, lonDecimals);
+			}
+			sb.append(' ').append(key).append("=\"").append(value).append('"');
+		}
+		if (!way && tags.isEmpty()) {
+			w.write(sb.append("/>\n").toString());
+			return;
+		}
+		sb.append(">\n");
+		
+		//<nd>s as the tiles have always had them, tags as in planet files
+		for (int i = 0; i < refs.size(); i++) {
+			sb.append("		<nd ref=\"").append(refs.get(i));
+			
+			if (refTn.get(i) != 0) {
+				sb.append("\" tn=\"").append(refTn.get(i));
+			}
+			sb.append("\"/>\n");
+		}
+		for (int i = 0; i < tags.size(); i += 2) {
+			sb.append("    <tag k=\"").append(tags.get(i)).append("\" v=\"").append(tags.get(i + 1)).append("\"/>\n");
+		}
+		sb.append(way ? "  </way>\n" : "  </node>\n");
+		w.write(sb.toString());
+	}
+	
+	static int keyCode(String key) {
+		for (int i = 0; i < KEYS.length; i++) {
+			if (KEYS[i].equals(key)) {
+				return i;
+			}
+		}
+		return OTHER_KEY;
+	}
+	
+	/**
+	 * decimals: get the number of decimals of a coordinate
+	 * @param s
+	 * @return 0 to 7, or -1 if formatFixed() would not render the value the same
+	 */
+	static int decimals(String s) {
+		int start = s.startsWith("-") ? 1 : 0;
+		int dot = s.indexOf('.');
+		int end = dot < 0 ? s.length() : dot;
+		boolean zero = true;
+		
+		//no empty or zero-padded integer part, no trailing dot, at most 7 decimals
+		if (end == start || end - start > 3 || (end - start > 1 && s.charAt(start) == '0')
+				|| dot == s.length() - 1 || (dot >= 0 && s.length() - dot - 1 > 7)) {
+			return -1;
+		}
+		for (int i = start; i < s.length(); i++) {
+			char c = s.charAt(i);
+			
+			if (i != dot && (c < '0' || c > '9')) {
+				return -1;
+			}
+			zero &= c == '0' || c == '.';
+		}
+		//"-0" would lose its sign
+		if (start == 1 && zero) {
+			return -1;
+		}
+		return dot < 0 ? 0 : s.length() - dot - 1;
+	}
+	
+	/**
+	 * parseFixed: parse a coordinate checked by decimals() without rounding
+	 * @param s
+	 * @return degrees * 1e7
+	 */
+	static int parseFixed(String s) {
+		boolean negative = s.startsWith("-");
+		int digits = 0;
+		long v = 0;
+		boolean fraction = false;
+		
+		for (int i = negative ? 1 : 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			
+			if (c == '.') {
+				fraction = true;
+				continue;
+			}
+			v = v * 10 + (c - '0');
+			
+			if (fraction) {
+				digits++;
+			}
+		}
+		for (; digits < 7; digits++) {
+			v *= 10;
+		}
+		return (int)(negative ? -v : v);
+	}
+	
+	/**
+	 * formatFixed: format a coordinate with a number of decimals
+	 * @param v - degrees * 1e7
+	 * @param decimals
+	 * @return
+	 */
+	static String formatFixed(int v, int decimals) {
+		StringBuilder sb = new StringBuilder();
+		long a = Math.abs((long)v);
+		
+		if (v < 0) {
+			sb.append('-');
+		}
+		sb.append(a / SCALE);
+		
+		if (decimals > 0) {
+			String fraction = Long.toString(SCALE + a % SCALE).substring(1);
+			sb.append('.').append(fraction, 0, decimals);
+		}
+		return sb.toString();
+	}
+}
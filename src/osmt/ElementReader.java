@@ -0,0 +1,274 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ElementReader - streams the nodes, ways and relations of an OSM file in file order
+ *
+ * The file is read and parsed by a thread of its own, a few batches ahead
+ * of the caller, so several files are parsed in parallel with bounded
+ * memory. Each element comes with a hash of its canonical content:
+ * attributes but the ID and tags in key order, relation members in their order. Way
+ * refs are not hashed but kept, so they can be compared as sequences.
+ */
+public class ElementReader {
+	public final static int NODE = 0, WAY = 1, RELATION = 2;
+	final static String[] TYPES = {"node", "way", "relation"};
+	final static int BATCH = 4096, BATCHES = 4;
+	final static long FNV_BASIS = 0xcbf29ce484222325L, FNV_PRIME = 0x100000001b3L;
+	
+	String fn;
+	boolean keepXml;
+	BufferedReader br;
+	AtomicLong bytesRead = new AtomicLong();
+	ArrayBlockingQueue<ArrayList<Block>> queue = new ArrayBlockingQueue<ArrayList<Block>>(BATCHES);
+	ArrayList<Block> batch;
+	int i = 0, batchSize;
+	volatile IOException error;
+	Thread thread;
+	
+	/**
+	 * Constructor - starts reading
+	 * @param fn - the file, or Split.STDIN
+	 * @param keepXml - keep the text of each element
+	 * @throws IOException
+	 */
+	public ElementReader(String fn, boolean keepXml) throws IOException {
+		this.fn = fn;
+		this.keepXml = keepXml;
+		//texts take more memory, keep fewer elements ahead
+		batchSize = keepXml ? BATCH / 8 : BATCH;
+		InputStream in = fn.equals(Split.STDIN) ? System.in : new FileInputStream(fn);
+		br = new BufferedReader(new InputStreamReader(new CountingInputStream(in, bytesRead), "UTF-8"), 65536);
+		
+		thread = new Thread("osmt-reader") {
+			public void run() {
+				read();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * next: get the next element
+	 * @return null after the last
+	 * @throws IOException
+	 */
+	public Block next() throws IOException {
+		if (batch == null || i == batch.size()) {
+			try {
+				batch = queue.take();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted reading " + fn);
+			}
+			i = 0;
+			
+			if (batch.isEmpty()) {
+				//stay at the end
+				queue.offer(batch);
+				
+				if (error != null) {
+					throw error;
+				}
+				return null;
+			}
+		}
+		return batch.get(i++);
+	}
+	
+	/**
+	 * close: stop reading and close the file
+	 */
+	public void close() {
+		thread.interrupt();
+		
+		try {
+			br.close();
+		} catch (IOException e) {
+		}
+	}
+	
+	/**
+	 * read: parse the file into batches, an empty one at the end
+	 */
+	void read() {
+		ArrayList<Block> blocks = new ArrayList<Block>(batchSize);
+		
+		try {
+			try {
+				String line;
+				Block b = null;
+				ArrayList<String> keyed = new ArrayList<String>();
+				StringBuilder xml = new StringBuilder();
+				ArrayList<Long> refs = new ArrayList<Long>();
+				
+				while ((line = br.readLine()) != null) {
+					String s = line.trim();
+					
+					if (b == null) {
+						int type = s.startsWith("<node ") ? NODE : s.startsWith("<way ") ? WAY : s.startsWith("<relation ") ? RELATION : -1;
+						
+						if (type < 0) {
+							if (s.startsWith("</osm>")) {
+								break;
+							}
+							continue;
+						}
+						b = new Block();
+						b.type = type;
+						keyed.clear();
+						refs.clear();
+						xml.setLength(0);
+						ArrayList<String> attributes = Split.attributes(s);
+						
+						//the ID is not hashed, so pieces of a way with new IDs hash the same
+						for (int j = 0; j + 1 < attributes.size(); j += 2) {
+							if (attributes.get(j).equals("id")) {
+								b.id = Long.parseLong(attributes.get(j + 1));
+								continue;
+							}
+							if (attributes.get(j).equals("version")) {
+								b.version = Long.parseLong(attributes.get(j + 1));
+							}
+							keyed.add(attributes.get(j) + "=" + attributes.get(j + 1));
+						}
+						Collections.sort(keyed);
+						b.hash = hash(FNV_BASIS, TYPES[type]);
+						
+						for (String a : keyed) {
+							b.hash = hash(b.hash, a);
+						}
+						keyed.clear();
+					}
+					else if (s.startsWith("<tag ")) {
+						String[] tag = Element.tag(s);
+						
+						if (tag != null) {
+							keyed.add(tag[0] + "=" + tag[1]);
+						}
+					}
+					else if (s.startsWith("<nd ")) {
+						refs.add(Long.parseLong(Split.getAttr(s, "ref")));
+					}
+					else if (s.startsWith("<member ")) {
+						//in order, unlike tags
+						ArrayList<String> attributes = Split.attributes(s);
+						b.hash = hash(b.hash, Split.value(attributes, "type") + " " + Split.value(attributes, "ref") + " " + Split.value(attributes, "role"));
+					}
+					if (keepXml) {
+						xml.append(line).append('\n');
+					}
+					
+					//end of the element
+					if (!s.startsWith("</" + TYPES[b.type] + ">") && !(s.startsWith("<" + TYPES[b.type] + " ") && s.endsWith("/>"))) {
+						continue;
+					}
+					Collections.sort(keyed);
+					
+					for (String t : keyed) {
+						b.hash = hash(b.hash, t);
+					}
+					if (b.type == WAY) {
+						b.refs = new long[refs.size()];
+						
+						for (int j = 0; j < b.refs.length; j++) {
+							b.refs[j] = refs.get(j);
+						}
+					}
+					if (keepXml) {
+						b.xml = xml.toString();
+					}
+					blocks.add(b);
+					b = null;
+					
+					if (blocks.size() == batchSize) {
+						queue.put(blocks);
+						blocks = new ArrayList<Block>(batchSize);
+					}
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (RuntimeException e) {
+				error = new IOException("error parsing " + fn + ": " + e, e);
+			}
+			if (!blocks.isEmpty()) {
+				queue.put(blocks);
+			}
+			queue.put(new ArrayList<Block>());
+		} catch (InterruptedException e) {
+			//closed
+		} finally {
+			try {
+				br.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * hash: add a string to a 64-bit FNV-1a hash, followed by a separator
+	 * @param h
+	 * @param s
+	 * @return
+	 */
+	static long hash(long h, String s) {
+		for (int j = 0; j < s.length(); j++) {
+			h = (h ^ s.charAt(j)) * FNV_PRIME;
+		}
+		return (h ^ 0xffff) * FNV_PRIME;
+	}
+	
+	/**
+	 * Block - an element as read
+	 */
+	public static class Block implements Comparable<Block> {
+		public int type;
+		public long id;
+		//0 without a version attribute
+		public long version;
+		//attributes, tags and members, not refs
+		public long hash;
+		//refs of a way, null otherwise
+		public long[] refs;
+		//text with the child elements, if kept
+		public String xml;
+		
+		/**
+		 * compareTo: order of OSM files, by type, then by ID
+		 * @param o
+		 * @return
+		 */
+		public int compareTo(Block o) {
+			if (type != o.type) {
+				return type - o.type;
+			}
+			return id < o.id ? -1 : id > o.id ? 1 : 0;
+		}
+		
+		public String toString() {
+			return TYPES[type] + " " + id;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * Events - JFR events of the split and merge hot paths
+ *
+ * They cost next to nothing unless a recording is running, e.g.
+ * java -XX:StartFlightRecording=filename=osmt.jfr -jar osmt.jar --split ...
+ * and show up under "OSMT" in JDK Mission Control or with
+ * jfr print --categories OSMT osmt.jfr
+ *
+ * Tile flushes and remote node copies happen once per line or node, so
+ * only the slow ones are recorded by default. Lower the thresholds with
+ * e.g. -XX:StartFlightRecording=...,+osmt.TileFlush#threshold=0ms (JDK 17).
+ */
+class Events {
+	
+	/**
+	 * TileFlush - a writer of a tile was flushed to disk
+	 */
+	@Name("osmt.TileFlush")
+	@Label("Tile Flush")
+	@Category({"OSMT", "Split"})
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static class TileFlush extends Event {
+		@Label("Tile Number")
+		int tn;
+		
+		@Label("File")
+		@Description("tile, nodes, nodes-extra or ways")
+		String file;
+		
+		@Label("Size")
+		@Description("Bytes flushed, for temporary files the number of characters")
+		@DataAmount
+		long bytes;
+	}
+	
+	/**
+	 * IndexGrowth - the node2tn index file was extended
+	 */
+	@Name("osmt.IndexGrowth")
+	@Label("Index Growth")
+	@Category({"OSMT", "Split"})
+	static class IndexGrowth extends Event {
+		@Label("Old Length")
+		@DataAmount
+		long oldLength;
+		
+		@Label("New Length")
+		@DataAmount
+		long newLength;
+	}
+	
+	/**
+	 * IndexLookups - a block of node2tn lookups
+	 *
+	 * One event per BLOCK lookups and one for the rest when the index is
+	 * closed; an event for each lookup would be more expensive than the
+	 * lookup itself.
+	 */
+	@Name("osmt.IndexLookups")
+	@Label("Index Lookups")
+	@Category({"OSMT", "Split"})
+	@StackTrace(false)
+	static class IndexLookups extends Event {
+		final static int BLOCK = 65536;
+		
+		@Label("Lookups")
+		int lookups;
+		
+		@Label("Lookup Time")
+		@Description("Time spent in the lookups of the block")
+		@Timespan
+		long lookupNanos;
+		
+		@Label("Unknown Nodes")
+		@Description("Lookups of nodes without a tile number")
+		int misses;
+		
+		@Label("Min Node ID")
+		long minId = Long.MAX_VALUE;
+		
+		@Label("Max Node ID")
+		long maxId = Long.MIN_VALUE;
+	}
+	
+	/**
+	 * RemoteNodeCopy - a node was copied to a neighbouring tile
+	 */
+	@Name("osmt.RemoteNodeCopy")
+	@Label("Remote Node Copy")
+	@Category({"OSMT", "Split"})
+	@StackTrace(false)
+	@Threshold("1 ms")
+	static class RemoteNodeCopy extends Event {
+		@Label("Node ID")
+		long nodeId;
+		
+		@Label("From Tile")
+		int fromTn;
+		
+		@Label("To Tile")
+		int toTn;
+		
+		@Label("Slim")
+		@Description("Read from the temporary file instead of the memory")
+		boolean slim;
+	}
+	
+	/**
+	 * MergePass - one pass of Merge over a tile
+	 */
+	@Name("osmt.MergePass")
+	@Label("Merge Pass")
+	@Category({"OSMT", "Merge"})
+	@StackTrace(false)
+	static class MergePass extends Event {
+		@Label("Pass")
+		String pass;
+		
+		@Label("Tile Number")
+		int tn;
+		
+		@Label("Elements")
+		@Description("Nodes in the 1st pass, ways in the 2nd pass")
+		long elements;
+	}
+	
+	/**
+	 * MergeSegments - merging the segments of a large split way
+	 */
+	@Name("osmt.MergeSegments")
+	@Label("Merge Segments")
+	@Category({"OSMT", "Merge"})
+	@StackTrace(false)
+	static class MergeSegments extends Event {
+		//smaller ways are not recorded
+		final static int MIN_REFS = 1000;
+		
+		@Label("Way ID")
+		long wayId;
+		
+		@Label("Segments")
+		int segments;
+		
+		@Label("Refs")
+		int refs;
+		
+		@Label("Pieces")
+		@Description("Ways written for the split way, 1 if it was merged completely")
+		int pieces;
+	}
+}
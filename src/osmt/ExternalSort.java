@@ -0,0 +1,310 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * ExternalSort - sorts (key, value) pairs of longs by key with bounded memory
+ *
+ * Pairs are collected in arrays of chunkSize; full chunks are sorted and
+ * written to run files, which sorted() merges. Beyond FAN_IN runs, groups of
+ * FAN_IN are merged into longer runs first, so a merge never reads more
+ * than FAN_IN files at a time. All I/O is sequential.
+ */
+public class ExternalSort {
+	//runs read at once by a merge
+	final static int FAN_IN = 64;
+	
+	String prefix;
+	int chunkSize;
+	long[] keys, values;
+	int n = 0;
+	ArrayList<String> runs = new ArrayList<String>();
+	//runs written so far, for their names
+	int runCount = 0;
+	long count = 0;
+	
+	/**
+	 * Constructor
+	 * @param prefix - file name prefix of the runs
+	 * @param chunkSize - pairs sorted in memory at once
+	 */
+	public ExternalSort(String prefix, int chunkSize) {
+		this.prefix = prefix;
+		this.chunkSize = chunkSize;
+		keys = new long[Math.min(chunkSize, 1024)];
+		values = new long[keys.length];
+	}
+	
+	/**
+	 * add: add a pair
+	 * @param key
+	 * @param value
+	 * @throws IOException
+	 */
+	public void add(long key, long value) throws IOException {
+		if (n == keys.length) {
+			if (n == chunkSize) {
+				spill();
+			}
+			else {
+				long[] k = new long[Math.min(chunkSize, n * 2)], v = new long[k.length];
+				System.arraycopy(keys, 0, k, 0, n);
+				System.arraycopy(values, 0, v, 0, n);
+				keys = k;
+				values = v;
+			}
+		}
+		keys[n] = key;
+		values[n] = value;
+		n++;
+		count++;
+	}
+	
+	public long size() {
+		return count;
+	}
+	
+	void spill() throws IOException {
+		sort(keys, values, 0, n - 1);
+		String fn = prefix + runCount++ + ".sort";
+		DataOutputStream out = Tile.openTmp(fn);
+		
+		try {
+			for (int i = 0; i < n; i++) {
+				out.writeLong(keys[i]);
+				out.writeLong(values[i]);
+			}
+		} finally {
+			out.close();
+		}
+		runs.add(fn);
+		n = 0;
+	}
+	
+	/**
+	 * sorted: iterate the pairs by key; no pairs may be added afterwards
+	 * @return
+	 * @throws IOException
+	 */
+	public Cursor sorted() throws IOException {
+		if (runs.isEmpty()) {
+			sort(keys, values, 0, n - 1);
+			return new Cursor(null);
+		}
+		if (n > 0) {
+			spill();
+		}
+		keys = values = null;
+		
+		while (runs.size() > FAN_IN) {
+			ArrayList<String> merged = new ArrayList<String>();
+			
+			for (int i = 0; i < runs.size(); i += FAN_IN) {
+				merged.add(merge(runs.subList(i, Math.min(i + FAN_IN, runs.size()))));
+			}
+			runs = merged;
+		}
+		return new Cursor(open(runs));
+	}
+	
+	/**
+	 * merge: merge runs into a new one and remove them
+	 * @param group
+	 * @return file name of the new run
+	 * @throws IOException
+	 */
+	String merge(List<String> group) throws IOException {
+		if (group.size() == 1) {
+			return group.get(0);
+		}
+		String fn = prefix + runCount++ + ".sort";
+		Cursor c = new Cursor(open(group));
+		
+		try {
+			DataOutputStream out = Tile.openTmp(fn);
+			
+			try {
+				while (c.next()) {
+					out.writeLong(c.key);
+					out.writeLong(c.value);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			c.close();
+		}
+		for (String run : group) {
+			new File(run).delete();
+		}
+		return fn;
+	}
+	
+	/**
+	 * open: open runs for a merge
+	 * @param fns
+	 * @return readers of the runs which are not empty
+	 * @throws IOException
+	 */
+	static PriorityQueue<RunReader> open(List<String> fns) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		
+		try {
+			for (String fn : fns) {
+				RunReader r = new RunReader(Tile.readTmp(fn));
+				if (r.next()) {
+					queue.add(r);
+				}
+				else {
+					r.in.close();
+				}
+			}
+		} catch (IOException e) {
+			for (RunReader r : queue) {
+				r.in.close();
+			}
+			throw e;
+		}
+		return queue;
+	}
+	
+	/**
+	 * delete: remove the run files
+	 */
+	public void delete() {
+		for (String fn : runs) {
+			new File(fn).delete();
+		}
+		runs.clear();
+	}
+	
+	/**
+	 * sort: quicksort of keys, moving the values along
+	 */
+	static void sort(long[] keys, long[] values, int lo, int hi) {
+		while (lo < hi) {
+			long pivot = keys[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			
+			while (i <= j) {
+				while (keys[i] < pivot) i++;
+				while (keys[j] > pivot) j--;
+				
+				if (i <= j) {
+					long k = keys[i]; keys[i] = keys[j]; keys[j] = k;
+					long v = values[i]; values[i] = values[j]; values[j] = v;
+					i++;
+					j--;
+				}
+			}
+			//recurse into the smaller part
+			if (j - lo < hi - i) {
+				sort(keys, values, lo, j);
+				lo = i;
+			}
+			else {
+				sort(keys, values, i, hi);
+				hi = j;
+			}
+		}
+	}
+	
+	/**
+	 * Cursor - the sorted pairs
+	 */
+	public class Cursor {
+		public long key, value;
+		PriorityQueue<RunReader> queue;
+		int i = 0;
+		
+		Cursor(PriorityQueue<RunReader> queue) {
+			this.queue = queue;
+		}
+		
+		/**
+		 * next: advance to the next pair
+		 * @return false at the end
+		 * @throws IOException
+		 */
+		public boolean next() throws IOException {
+			if (queue == null) {
+				if (i == n) {
+					return false;
+				}
+				key = keys[i];
+				value = values[i++];
+				return true;
+			}
+			RunReader r = queue.poll();
+			
+			if (r == null) {
+				return false;
+			}
+			key = r.key;
+			value = r.value;
+			
+			if (r.next()) {
+				queue.add(r);
+			}
+			else {
+				r.in.close();
+			}
+			return true;
+		}
+		
+		public void close() throws IOException {
+			if (queue != null) {
+				for (RunReader r : queue) {
+					r.in.close();
+				}
+				queue.clear();
+			}
+		}
+	}
+	
+	/**
+	 * RunReader - reads a run in order
+	 */
+	static class RunReader implements Comparable<RunReader> {
+		DataInputStream in;
+		long key, value;
+		
+		RunReader(DataInputStream in) {
+			this.in = in;
+		}
+		
+		boolean next() throws IOException {
+			try {
+				key = in.readLong();
+				value = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+		
+		public int compareTo(RunReader o) {
+			return key < o.key ? -1 : key > o.key ? 1 : 0;
+		}
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * FileTileSink - writes the tiles and the manifest to a directory
+ */
+class FileTileSink implements TileSink {
+	String dir;
+	
+	FileTileSink(String dir) {
+		this.dir = dir;
+	}
+	
+	public OutputStream open(int tn, String suffix) throws IOException {
+		return new FileOutputStream(dir + (tn != 0 ? tn : "") + suffix);
+	}
+	
+	public void done(Manifest.Entry entry) {
+	}
+	
+	public void finish(Manifest manifest) throws IOException {
+		manifest.write(dir + Manifest.FILE_NAME);
+	}
+}
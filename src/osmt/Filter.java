@@ -0,0 +1,180 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+/**
+ * Filter - what a split leaves out of the tiles
+ *
+ * Applied while the input is tokenized, so nothing filtered reaches a Tile.
+ * A rule is KEY or KEY=VALUE, either may end in "*" to match a prefix, e.g.
+ * "building", "highway=footway", "source*" or "note:*=*". Rules are given as
+ * comma-separated lists. Nodes are never dropped, ways may refer to them.
+ */
+public class Filter {
+	//bits of the result of matchWay()
+	public final static int DROP_MATCH = 1, KEEP_MATCH = 2;
+	
+	HashSet<String> dropAttributes = new HashSet<String>();
+	ArrayList<String[]> dropTags = new ArrayList<String[]>();
+	ArrayList<String[]> keepTags;
+	ArrayList<String[]> dropWays = new ArrayList<String[]>();
+	ArrayList<String[]> keepWays;
+	boolean noWays = false;
+	
+	/**
+	 * dropAttributes: leave out attributes of nodes and ways, e.g. "user,uid,timestamp,changeset"
+	 * @param keys - comma-separated; id, lat and lon are needed
+	 */
+	public void dropAttributes(String keys) {
+		for (String key : keys.split(",")) {
+			if (key.equals("id") || key.equals("lat") || key.equals("lon")) {
+				throw new IllegalArgumentException("attribute " + key + " cannot be dropped");
+			}
+			if (!key.isEmpty()) {
+				dropAttributes.add(key);
+			}
+		}
+	}
+	
+	/**
+	 * dropTags: leave out the tags matching any of the rules
+	 * @param rules
+	 */
+	public void dropTags(String rules) {
+		dropTags.addAll(rules(rules));
+	}
+	
+	/**
+	 * keepTags: leave out the tags matching none of the rules
+	 * @param rules
+	 */
+	public void keepTags(String rules) {
+		keepTags = rules(rules);
+	}
+	
+	/**
+	 * dropWays: leave out the ways with a tag matching any of the rules, all ways without rules
+	 * @param rules - may be empty
+	 */
+	public void dropWays(String rules) {
+		if (rules.isEmpty()) {
+			noWays = true;
+		}
+		dropWays.addAll(rules(rules));
+	}
+	
+	/**
+	 * keepWays: leave out the ways without a tag matching any of the rules
+	 * @param rules
+	 */
+	public void keepWays(String rules) {
+		keepWays = rules(rules);
+	}
+	
+	/**
+	 * selectsWays: whether ways are dropped depending on their tags, which are read after their refs
+	 * @return
+	 */
+	public boolean selectsWays() {
+		return noWays || !dropWays.isEmpty() || keepWays != null;
+	}
+	
+	/**
+	 * attributes: remove the dropped attributes
+	 * @param attributes - key, value, key, value, ... as returned by Split.attributes(), changed in place
+	 * @return attributes
+	 */
+	public ArrayList<String> attributes(ArrayList<String> attributes) {
+		if (dropAttributes.isEmpty()) {
+			return attributes;
+		}
+		int n = 0;
+		
+		for (int i = 0; i + 1 < attributes.size(); i += 2) {
+			if (!dropAttributes.contains(attributes.get(i))) {
+				attributes.set(n++, attributes.get(i));
+				attributes.set(n++, attributes.get(i + 1));
+			}
+		}
+		attributes.subList(n, attributes.size()).clear();
+		return attributes;
+	}
+	
+	/**
+	 * keepTag: whether a tag is written
+	 * @param k
+	 * @param v - XML-escaped as read
+	 * @return
+	 */
+	public boolean keepTag(String k, String v) {
+		return !matches(dropTags, k, v) && (keepTags == null || matches(keepTags, k, v));
+	}
+	
+	/**
+	 * matchWay: match a tag of a way against the way rules, before the tag rules apply
+	 * @param k
+	 * @param v
+	 * @return DROP_MATCH and KEEP_MATCH bits, to be combined for all tags of the way
+	 */
+	public int matchWay(String k, String v) {
+		return (matches(dropWays, k, v) ? DROP_MATCH : 0) | (keepWays != null && matches(keepWays, k, v) ? KEEP_MATCH : 0);
+	}
+	
+	/**
+	 * keepWay: whether a way is written
+	 * @param matches - matchWay() of all its tags or-ed
+	 * @return
+	 */
+	public boolean keepWay(int matches) {
+		return !noWays && (matches & DROP_MATCH) == 0 && (keepWays == null || (matches & KEEP_MATCH) != 0);
+	}
+	
+	static boolean matches(ArrayList<String[]> rules, String k, String v) {
+		for (String[] rule : rules) {
+			if (matches(rule[0], k) && (rule[1] == null || matches(rule[1], v))) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	static boolean matches(String pattern, String s) {
+		return pattern.endsWith("*") ? s.startsWith(pattern.substring(0, pattern.length() - 1)) : pattern.equals(s);
+	}
+	
+	/**
+	 * rules: parse a comma-separated list of rules
+	 * @param list
+	 * @return key and value pattern (null for any value) of each rule
+	 */
+	static ArrayList<String[]> rules(String list) {
+		ArrayList<String[]> result = new ArrayList<String[]>();
+		
+		for (String rule : list.split(",")) {
+			int eq = rule.indexOf('=');
+			
+			if (rule.isEmpty()) {
+				continue;
+			}
+			if (eq == 0) {
+				throw new IllegalArgumentException("filter rule without key: " + rule);
+			}
+			result.add(eq > 0 ? new String[] {rule.substring(0, eq), rule.substring(eq + 1)} : new String[] {rule, null});
+		}
+		return result;
+	}
+}
@@ -0,0 +1,116 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+/**
+ * LocationStore - latitude and longitude of each node, by ID, in a memory-mapped file
+ *
+ * 8 bytes per node ID: latitude and longitude in 1e-7 degrees (int each), as
+ * in Element. The file is sparse where IDs are unused; 0/0 means unknown,
+ * like in NodeToTileNumber. Chunks are mapped when first used.
+ */
+public class LocationStore {
+	final static int CHUNK_BITS = 30;
+	final static long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+	
+	RandomAccessFile file;
+	FileChannel channel;
+	ArrayList<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+	
+	/**
+	 * Constructor
+	 * @param fn - created if missing, may be shared by several splits of the same data
+	 * @throws IOException
+	 */
+	public LocationStore(String fn) throws IOException {
+		file = new RandomAccessFile(fn, "rw");
+		channel = file.getChannel();
+	}
+	
+	/**
+	 * chunk: get the mapping holding a position, extending the file if needed
+	 * @param pos
+	 * @return
+	 * @throws IOException
+	 */
+	synchronized MappedByteBuffer chunk(long pos) throws IOException {
+		int i = (int)(pos >> CHUNK_BITS);
+		
+		while (chunks.size() <= i) {
+			chunks.add(null);
+		}
+		if (chunks.get(i) == null) {
+			chunks.set(i, channel.map(FileChannel.MapMode.READ_WRITE, (long)i << CHUNK_BITS, 1L << CHUNK_BITS));
+		}
+		return chunks.get(i);
+	}
+	
+	/**
+	 * put: store the location of a node
+	 * @param nodeId
+	 * @param lat - 1e-7 degrees
+	 * @param lon - 1e-7 degrees
+	 * @throws IOException
+	 */
+	public void put(long nodeId, int lat, int lon) throws IOException {
+		long pos = nodeId * 8;
+		
+		if (nodeId < 0) {
+			return;
+		}
+		//chunks are a multiple of 8 bytes long, an entry never spans two
+		MappedByteBuffer chunk = chunk(pos);
+		chunk.putInt((int)(pos & CHUNK_MASK), lat);
+		chunk.putInt((int)(pos & CHUNK_MASK) + 4, lon);
+	}
+	
+	/**
+	 * get: get the location of a node
+	 * @param nodeId
+	 * @param latLon - receives latitude and longitude in 1e-7 degrees
+	 * @return false if the location is unknown
+	 * @throws IOException
+	 */
+	public boolean get(long nodeId, int[] latLon) throws IOException {
+		long pos = nodeId * 8;
+		
+		if (nodeId < 0) {
+			return false;
+		}
+		MappedByteBuffer chunk = chunk(pos);
+		latLon[0] = chunk.getInt((int)(pos & CHUNK_MASK));
+		latLon[1] = chunk.getInt((int)(pos & CHUNK_MASK) + 4);
+		return latLon[0] != 0 || latLon[1] != 0;
+	}
+	
+	/**
+	 * close: write the mapped chunks back and close the file
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		for (MappedByteBuffer chunk : chunks) {
+			if (chunk != null) {
+				chunk.force();
+			}
+		}
+		chunks.clear();
+		file.close();
+	}
+}
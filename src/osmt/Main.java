@@ -20,9 +20,14 @@
 package osmt;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import com.esotericsoftware.wildcard.Paths;
+import java.util.TreeSet;
 
 public class Main {
 	final static String VERSION = "Version 1.0";
@@ -44,7 +49,7 @@ public class Main {
 	private void storeParams(String[] args) {
 		for (int i = 0; i < args.length; i++) {
 			try {
-				String[] keyValue = args[i].replace("--", "").replace("\"", "").split("=");
+				String[] keyValue = args[i].replace("--", "").replace("\"", "").split("=", 2);
 				params.put(keyValue[0], keyValue[1]);
 			}
 			catch (Exception e) {
@@ -54,24 +59,322 @@ public class Main {
 		}
 	}
 	
+	/**
+	 * bbox - parse a bbox, exits if it is invalid
+	 * @param value - MINLAT,MINLON,MAXLAT,MAXLON
+	 * @return
+	 */
+	static float[] bbox(String value) {
+		float[] bbox;
+		
+		try {
+			String[] coords = value.split(",");
+			bbox = new float[4];
+			
+			for (int i = 0; i < 4; i++) {
+				bbox[i] = Float.parseFloat(coords[i]);
+			}
+		} catch (Exception e) {
+			bbox = null;
+		}
+		if (bbox == null || bbox[0] > bbox[2] || bbox[1] > bbox[3]) {
+			System.err.println("Error: bbox must be given as MINLAT,MINLON,MAXLAT,MAXLON");
+			System.exit(1);
+		}
+		return bbox;
+	}
+	
 	/**
 	 * help - print the help text
 	 */
 	public static void help() {
 		System.out.println("Usage: osmt --split [OPTIONS] SOURCE");
+		System.out.println("or:    osmt --retile [OPTIONS] SOURCE");
 		System.out.println("or:    osmt --merge --of=DEST [OPTIONS] SOURCE");
-		System.out.println("Split SOURCE file, or merge SOURCE files to DEST file");
+		System.out.println("or:    osmt --analyze [OPTIONS] SOURCE");
+		System.out.println("or:    osmt --serve [OPTIONS] SOURCE");
+		System.out.println("or:    osmt --verify=ORIGINAL [OPTIONS] SOURCE");
+		System.out.println("Split SOURCE files (\"-\" for standard input) into one set of tiles,");
+		System.out.println("or split the tiles of the tile directory SOURCE into tiles of another size,");
+		System.out.println("or merge SOURCE files to DEST file,");
+		System.out.println("or predict the tiles of SOURCE for several tile sizes,");
+		System.out.println("or answer tile and node queries on the tile directory SOURCE over HTTP,");
+		System.out.println("or compare the merged file SOURCE with ORIGINAL, the input of the split");
 		System.out.println("");
-		System.out.println("Options (only in splitting mode):");
+		System.out.println("Options (only in splitting and retiling mode):");
 		System.out.println("--output-dir=DIR      write tiles to DIR (defaults to working directory)");
 		System.out.println("--index-file=FILE     write index file (~6 GB) to FILE (defaults to \"node2tn\" in working directory)");
-		System.out.println("--tile-size=SIZE      create tiles of SIZE degrees in width and height (defaults to 1)");
+		System.out.println("--tile-size=SIZE      create tiles of SIZE degrees in width and height (defaults to 1),");
+		System.out.println("                      or \"auto\" to analyze SOURCE first and use the recommended size,");
+		System.out.println("                      or a list of multiples of the smallest, e.g. 4,1,0.25, to create");
+		System.out.println("                      the tiles of each size in a subdirectory of DIR in one pass");
 		System.out.println("--slim                save temporary nodes on disk, not in RAM");
+		System.out.println("--memory-budget=MB    keep at most MB of nodes in RAM, spill the largest tiles to disk");
+		System.out.println("                      beyond (defaults to half of the Java heap limit)");
+		System.out.println("--ref-lookup=MODE     \"batch\" (default) to look up the tiles of the way nodes in sorted");
+		System.out.println("                      blocks, \"direct\" to look up each when it is read, or \"sort\" to");
+		System.out.println("                      sort all of them first and read the index sequentially (for");
+		System.out.println("                      spinning disks)");
+		System.out.println("--drop-attributes=LIST leave out attributes, e.g. user,uid,timestamp,changeset");
+		System.out.println("--drop-tags=RULES     leave out the tags matching any of RULES (see below)");
+		System.out.println("--keep-tags=RULES     leave out the tags matching none of RULES");
+		System.out.println("--drop-ways[=RULES]   leave out the ways with a tag matching any of RULES, or all ways");
+		System.out.println("--keep-ways=RULES     leave out the ways without a tag matching any of RULES");
+		System.out.println("                      RULES: comma-separated KEY or KEY=VALUE, \"*\" at the end of");
+		System.out.println("                      either matches a prefix, e.g. building,highway=foot*,source:*");
+		System.out.println("--location-file=FILE  store the location of each node in FILE (~8 bytes per node ID,");
+		System.out.println("                      sparse) and write the bounding box of each way to a .bboxes");
+		System.out.println("                      file per tile");
+		System.out.println("--shared-boundary     write nodes of ways crossing tiles once to boundary.osm instead");
+		System.out.println("                      of copying them into the tiles");
+		System.out.println("");
+		System.out.println("Options (only in retiling mode):");
+		System.out.println("--tiles=LIST          retile only the tiles of SOURCE with these numbers, e.g. 35241,35242");
+		System.out.println("--bbox=MINLAT,MINLON,MAXLAT,MAXLON");
+		System.out.println("                      retile only the tiles of SOURCE that intersect the box");
+		System.out.println("--threads=N           retile N groups of tiles at the same time (defaults to half of the");
+		System.out.println("                      processors)");
+		System.out.println("");
+		System.out.println("Options (only in analyzing mode, or with --tile-size=auto):");
+		System.out.println("--tile-size=S1,S2,... tile sizes to compare (defaults to " + candidates() + ")");
+		System.out.println("--tile-budget=MB      largest tile to accept for the recommendation (defaults to 256)");
+		System.out.println("--sample=N            sample every Nth node (defaults to 100)");
+		System.out.println("--slim                predict the heap of --slim splitting");
+		System.out.println("");
+		System.out.println("Options (only in merging mode):");
+		System.out.println("--of=DEST             write to DEST, or to stdout if DEST is \"-\"");
+		System.out.println("--bbox=MINLAT,MINLON,MAXLAT,MAXLON");
+		System.out.println("                      merge only the tiles of the tile directory SOURCE that");
+		System.out.println("                      intersect the box, and clip the output to it");
+		System.out.println("--tile-size=SIZE      tile size of SOURCE (defaults to the size found in the tiles)");
+		System.out.println("--sorted              merge SOURCE files sorted by ID, e.g. extracts of other tools,");
+		System.out.println("                      not tiles; nodes, ways and relations in several of them are");
+		System.out.println("                      written once, in their highest version");
+		System.out.println("--cache-dir=DIR       keep merged files and indexes of the tiles in DIR, and use them");
+		System.out.println("                      when the same or overlapping tiles are merged again");
+		System.out.println("--cache-size=MB       keep at most MB in DIR, least recently used out (defaults to 1024)");
+		System.out.println("--checksums           check the CRC32 of each tile against the manifest before merging");
+		System.out.println("");
+		System.out.println("Options (only in serving mode):");
+		System.out.println("--index-file=FILE     index file of the split, needed for node queries");
+		System.out.println("--port=PORT           listen on PORT (defaults to 8080)");
+		System.out.println("--bind=ADDRESS        listen on ADDRESS (defaults to 127.0.0.1)");
+		System.out.println("--cache-dir=DIR       as in merging mode, for /merge");
+		System.out.println("--cache-size=MB       as in merging mode");
 		System.out.println("");
 		System.out.println("Other options:");
+		System.out.println("--metrics-file=FILE   write counters, phase timers and progress to FILE while running");
+		System.out.println("--metrics-format=FMT  \"json\" (default) or \"prometheus\"");
+		System.out.println("--metrics-interval=S  update the metrics file every S seconds (defaults to 10)");
 		System.out.println("--help                print help");
 	}
 	
+	/**
+	 * candidates - the default tile sizes of the analysis, comma separated
+	 * @return
+	 */
+	static String candidates() {
+		String s = "";
+		
+		for (float f : Analyze.CANDIDATES) {
+			s += (s.isEmpty() ? "" : ",") + f;
+		}
+		return s;
+	}
+	
+	/**
+	 * serve - run the server until the JVM is stopped
+	 * @param params - remaining parameters
+	 */
+	static void serve(HashMap<String, String> params, String metricsFile, String metricsFormat, int metricsInterval) {
+		String indexFile = null, address = "127.0.0.1";
+		int port = 8080;
+		
+		if (params.containsKey("index-file") && params.get("index-file") != "") {
+			indexFile = params.get("index-file");
+			params.remove("index-file");
+		}
+		if (params.containsKey("bind") && params.get("bind") != "") {
+			address = params.get("bind");
+			params.remove("bind");
+		}
+		if (params.containsKey("port") && params.get("port") != "") {
+			try {
+				port = Integer.parseInt(params.get("port"));
+			} catch (NumberFormatException e) {
+				port = -1;
+			}
+			if (port < 0 || port > 65535) {
+				System.err.println("Error: port must be a number from 0 to 65535");
+				System.exit(1);
+			}
+			params.remove("port");
+		}
+		MergeCache cache = cache(params);
+		
+		if (params.size() != 1) {
+			System.err.println("Error: please specify exactly one tile directory");
+			System.err.println("");
+			help();
+			System.exit(1);
+		}
+		
+		final Server server;
+		try {
+			server = new Server(params.keySet().iterator().next(), indexFile);
+			server.setCache(cache);
+			server.start(address, port);
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+			return;
+		}
+		if (metricsFile != null) {
+			server.metrics.startExport(metricsFile, metricsFormat, metricsInterval);
+		}
+		
+		//the HTTP dispatcher thread keeps the JVM running
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				server.metrics.stopExport();
+				server.stop();
+			}
+		});
+	}
+	
+	/**
+	 * cache - open the merge cache of the --cache-dir and --cache-size parameters
+	 * @param params - the parameters are removed
+	 * @return null without --cache-dir
+	 */
+	static MergeCache cache(HashMap<String, String> params) {
+		long size = 1024L * 1048576;
+		
+		if (params.containsKey("cache-size") && params.get("cache-size") != "") {
+			try {
+				size = Long.parseLong(params.get("cache-size")) * 1048576;
+			} catch (NumberFormatException e) {
+				size = 0;
+			}
+			if (size < 1) {
+				System.err.println("Error: cache size must be 1 MB or more");
+				System.exit(1);
+			}
+			params.remove("cache-size");
+		}
+		if (!params.containsKey("cache-dir") || params.get("cache-dir") == "") {
+			return null;
+		}
+		String dir = params.remove("cache-dir");
+		
+		try {
+			return new MergeCache(dir, size);
+		} catch (IOException e) {
+			System.err.println("Error: " + e.getMessage());
+			System.exit(1);
+			return null;
+		}
+	}
+	
+	/**
+	 * resolveWildcards - find the files matching a pattern, with wildcards in any path segment and "**" for any number of directories
+	 * @param pattern - e.g. tiles/*.osm, or with wildcards in directory names
+	 * @return the files in sorted order
+	 * @throws IOException
+	 */
+	static ArrayList<String> resolveWildcards(String pattern) throws IOException {
+		TreeSet<String> files = new TreeSet<String>();
+		
+		resolveWildcards(pattern.startsWith("/") ? "/" : "", pattern.split("/"), 0, files);
+		return new ArrayList<String>(files);
+	}
+	
+	static void resolveWildcards(String path, String[] segments, int i, TreeSet<String> files) throws IOException {
+		if (i == segments.length) {
+			if (new File(path).isFile()) {
+				files.add(path);
+			}
+			return;
+		}
+		String segment = segments[i];
+		File dir = new File(path.isEmpty() ? "." : path);
+		
+		//empty segments of "//" or a leading "/"
+		if (segment.isEmpty()) {
+			resolveWildcards(path, segments, i + 1, files);
+			return;
+		}
+		if (!segment.contains("*") && !segment.contains("?") && !segment.contains("[") && !segment.contains("{")) {
+			resolveWildcards(join(path, segment), segments, i + 1, files);
+			return;
+		}
+		if (!dir.isDirectory()) {
+			return;
+		}
+		DirectoryStream<Path> dirStream;
+		
+		try {
+			//"**" lists the subdirectories, to look for the rest of the pattern in each
+			dirStream = Files.newDirectoryStream(dir.toPath(), segment.equals("**") ? "*" : segment);
+		} catch (IOException e) {
+			throw new IOException("cannot read directory " + dir, e);
+		}
+		try {
+			if (segment.equals("**")) {
+				resolveWildcards(path, segments, i + 1, files);
+			}
+			for (Path entry : dirStream) {
+				String name = entry.getFileName().toString();
+				
+				if (segment.equals("**")) {
+					if (Files.isDirectory(entry)) {
+						resolveWildcards(join(path, name), segments, i, files);
+					}
+				}
+				else {
+					resolveWildcards(join(path, name), segments, i + 1, files);
+				}
+			}
+		} finally {
+			dirStream.close();
+		}
+	}
+	
+	static String join(String path, String name) {
+		return path.isEmpty() ? name : path.endsWith("/") ? path + name : path + "/" + name;
+	}
+	
+	/**
+	 * verify - compare a merged file with the original and exit with 1 if they differ
+	 * @param params - remaining parameters
+	 * @param originalFile
+	 */
+	static void verify(HashMap<String, String> params, String originalFile, String metricsFile, String metricsFormat, int metricsInterval) {
+		if (params.size() != 1) {
+			System.err.println("Error: please specify exactly one merged file");
+			System.err.println("");
+			help();
+			System.exit(1);
+		}
+		Verify vrf = new Verify(originalFile, params.keySet().iterator().next());
+		long differences = 0;
+		
+		if (metricsFile != null) {
+			vrf.getMetrics().startExport(metricsFile, metricsFormat, metricsInterval);
+		}
+		try {
+			differences = vrf.verify();
+		} catch (IOException e) {
+			System.err.println("Error: Verifying failed: " + e.getMessage());
+			System.exit(1);
+		} finally {
+			vrf.getMetrics().stopExport();
+		}
+		if (differences > 0) {
+			System.exit(1);
+		}
+	}
+	
 	/**
 	 * main
 	 * @param args
@@ -85,8 +388,28 @@ public class Main {
 		String node2tnFile = "node2tn";
 		String outputDir = "";
 		float tilesize = 1.0f;
-		boolean merge = false;
+		float[] bbox = null;
+		//of the tiles to retile
+		ArrayList<Integer> retileTiles = null;
+		float[] retileBbox = null;
+		int retileThreads = 0;
+		boolean merge = false, mergeSorted = false, retile = false, checksums = false;
 		boolean slim = false;
+		boolean analyze = false, autoTilesize = false;
+		boolean serve = false;
+		String verifyOriginal = null;
+		float[] candidates = null;
+		long tileBudget = 256L * 1048576;
+		int sampleRate = 100;
+		long memoryBudget = 0;
+		int refLookup = Split.REFS_BATCH;
+		Filter filter = null;
+		String locationFile = null;
+		boolean sharedBoundary = false;
+		Merger mrg = null;
+		MergeCache cache = null;
+		String metricsFile = null, metricsFormat = "json";
+		int metricsInterval = 10;
 		
 		Main main = new Main(args);
 		
@@ -101,17 +424,69 @@ public class Main {
 			merge = false;
 			main.params.remove("split");
 		}
+		else if (main.params.containsKey("retile")) {
+			retile = true;
+			main.params.remove("retile");
+		}
 		else if (main.params.containsKey("merge")) {
 			merge = true;
 			main.params.remove("merge");
 		}
+		else if (main.params.containsKey("analyze")) {
+			analyze = true;
+			main.params.remove("analyze");
+		}
+		else if (main.params.containsKey("serve")) {
+			serve = true;
+			main.params.remove("serve");
+		}
+		else if (main.params.containsKey("verify") && main.params.get("verify") != "") {
+			verifyOriginal = main.params.get("verify");
+			main.params.remove("verify");
+		}
 		else {
-			System.err.println("Error: please specify either \"--split\" or \"--merge\"");
+			System.err.println("Error: please specify either \"--split\", \"--retile\", \"--merge\", \"--analyze\", \"--serve\" or \"--verify\"");
 			System.err.println("");
 			help();
 			System.exit(1);
 		}
 		
+		//metrics
+		if (main.params.containsKey("metrics-file") && main.params.get("metrics-file") != "") {
+			metricsFile = main.params.get("metrics-file");
+			main.params.remove("metrics-file");
+		}
+		if (main.params.containsKey("metrics-format")) {
+			metricsFormat = main.params.get("metrics-format");
+			main.params.remove("metrics-format");
+			
+			if (!metricsFormat.equals("json") && !metricsFormat.equals("prometheus")) {
+				System.err.println("Error: metrics format must be \"json\" or \"prometheus\"");
+				System.exit(1);
+			}
+		}
+		if (main.params.containsKey("metrics-interval") && main.params.get("metrics-interval") != "") {
+			metricsInterval = Integer.parseInt(main.params.get("metrics-interval"));
+			main.params.remove("metrics-interval");
+			
+			if (metricsInterval < 1) {
+				System.err.println("Error: metrics interval must be at least 1 second");
+				System.exit(1);
+			}
+		}
+		
+		//serve
+		if (serve) {
+			serve(main.params, metricsFile, metricsFormat, metricsInterval);
+			return;
+		}
+		
+		//verify
+		if (verifyOriginal != null) {
+			verify(main.params, verifyOriginal, metricsFile, metricsFormat, metricsInterval);
+			return;
+		}
+		
 		//merge arguments
 		if (merge) {
 			if (main.params.containsKey("of") && main.params.get("of") != "") {
@@ -124,6 +499,41 @@ public class Main {
 				help();
 				System.exit(1);
 			}
+			
+			if (main.params.containsKey("bbox") && main.params.get("bbox") != "") {
+				bbox = bbox(main.params.get("bbox"));
+				main.params.remove("bbox");
+				
+				if (main.params.containsKey("tile-size") && main.params.get("tile-size") != "") {
+					tilesize = Float.parseFloat(main.params.get("tile-size"));
+					main.params.remove("tile-size");
+				}
+				else {
+					tilesize = 0;
+				}
+			}
+			
+			if (main.params.containsKey("sorted")) {
+				mergeSorted = true;
+				main.params.remove("sorted");
+				
+				if (bbox != null) {
+					System.err.println("Error: --sorted cannot be used with --bbox");
+					System.exit(1);
+				}
+			}
+			
+			if (main.params.containsKey("checksums")) {
+				checksums = true;
+				main.params.remove("checksums");
+			}
+			
+			cache = cache(main.params);
+			
+			if (cache != null && mergeSorted) {
+				System.err.println("Error: --cache-dir cannot be used with --sorted");
+				System.exit(1);
+			}
 		}
 		//split arguments
 		else {
@@ -147,37 +557,238 @@ public class Main {
 			}
 			
 			if (main.params.containsKey("tile-size") && main.params.get("tile-size") != "") {
-				tilesize = Float.parseFloat(main.params.get("tile-size"));
+				String[] sizes = main.params.get("tile-size").split(",");
 				
-				if (tilesize < 0.006F) {
-					System.err.println("Error: Tile size must be 0.006 degrees or more");
-					System.exit(1);
+				if (sizes[0].equals("auto") && !analyze) {
+					if (retile) {
+						System.err.println("Error: tiles can only be retiled with a fixed tile size");
+						System.exit(1);
+					}
+					autoTilesize = true;
+				}
+				else {
+					candidates = new float[sizes.length];
+					
+					for (int i = 0; i < sizes.length; i++) {
+						candidates[i] = Float.parseFloat(sizes[i]);
+					}
+					tilesize = candidates[0];
+				}
+				
+				for (float f : (candidates != null ? candidates : Analyze.CANDIDATES)) {
+					if (f < 0.006F) {
+						System.err.println("Error: Tile size must be 0.006 degrees or more");
+						System.exit(1);
+					}
+				}
+				
+				//several levels of tiles
+				if (candidates != null && candidates.length > 1 && !analyze) {
+					float[] sorted = candidates.clone();
+					Arrays.sort(sorted);
+					
+					for (float f : sorted) {
+						if (!NodeToTileNumber.nested(sorted[0], f)) {
+							System.err.println("Error: Tile size " + f + " is not a multiple of " + sorted[0]);
+							System.exit(1);
+						}
+					}
 				}
 				main.params.remove("tile-size");
 			}
 			
+			if (main.params.containsKey("tile-budget") && main.params.get("tile-budget") != "") {
+				tileBudget = Long.parseLong(main.params.get("tile-budget")) * 1048576;
+				main.params.remove("tile-budget");
+			}
+			
+			if (main.params.containsKey("sample") && main.params.get("sample") != "") {
+				sampleRate = Integer.parseInt(main.params.get("sample"));
+				
+				if (sampleRate < 1) {
+					System.err.println("Error: sample must be 1 or more");
+					System.exit(1);
+				}
+				main.params.remove("sample");
+			}
+			
 			if (main.params.containsKey("slim")) {
 				slim = true;
 				main.params.remove("slim");
 			}
+			
+			if (main.params.containsKey("memory-budget") && main.params.get("memory-budget") != "") {
+				memoryBudget = Long.parseLong(main.params.get("memory-budget")) * 1048576;
+				
+				if (memoryBudget < 1) {
+					System.err.println("Error: memory budget must be 1 MB or more");
+					System.exit(1);
+				}
+				main.params.remove("memory-budget");
+			}
+			
+			if (main.params.containsKey("ref-lookup") && main.params.get("ref-lookup") != "") {
+				String mode = main.params.get("ref-lookup");
+				
+				if (mode.equals("batch")) {
+					refLookup = Split.REFS_BATCH;
+				}
+				else if (mode.equals("direct")) {
+					refLookup = Split.REFS_DIRECT;
+				}
+				else if (mode.equals("sort")) {
+					refLookup = Split.REFS_SORT;
+				}
+				else {
+					System.err.println("Error: ref lookup must be \"batch\", \"direct\" or \"sort\"");
+					System.exit(1);
+				}
+				main.params.remove("ref-lookup");
+			}
+			
+			//filter
+			for (String option : new String[] {"drop-attributes", "drop-tags", "keep-tags", "drop-ways", "keep-ways"}) {
+				if (!main.params.containsKey(option)) {
+					continue;
+				}
+				String value = main.params.get(option);
+				
+				if (filter == null) {
+					filter = new Filter();
+				}
+				try {
+					if (option.equals("drop-attributes")) {
+						filter.dropAttributes(value);
+					}
+					else if (option.equals("drop-tags")) {
+						filter.dropTags(value);
+					}
+					else if (option.equals("keep-tags")) {
+						filter.keepTags(value);
+					}
+					else if (option.equals("drop-ways")) {
+						filter.dropWays(value);
+					}
+					else {
+						filter.keepWays(value);
+					}
+				} catch (IllegalArgumentException e) {
+					System.err.println("Error: " + e.getMessage());
+					System.exit(1);
+				}
+				main.params.remove(option);
+			}
+			
+			if (main.params.containsKey("location-file") && main.params.get("location-file") != "") {
+				locationFile = main.params.get("location-file");
+				main.params.remove("location-file");
+			}
+			
+			if (main.params.containsKey("shared-boundary")) {
+				sharedBoundary = true;
+				main.params.remove("shared-boundary");
+			}
+			
+			if (retile && main.params.containsKey("tiles") && main.params.get("tiles") != "") {
+				retileTiles = new ArrayList<Integer>();
+				
+				try {
+					for (String tn : main.params.get("tiles").split(",")) {
+						retileTiles.add(Integer.parseInt(tn.trim()));
+					}
+				} catch (NumberFormatException e) {
+					System.err.println("Error: tiles must be given as tile numbers, e.g. 35241,35242");
+					System.exit(1);
+				}
+				main.params.remove("tiles");
+			}
+			
+			if (retile && main.params.containsKey("bbox") && main.params.get("bbox") != "") {
+				retileBbox = bbox(main.params.get("bbox"));
+				main.params.remove("bbox");
+			}
+			
+			if (retile && main.params.containsKey("threads") && main.params.get("threads") != "") {
+				try {
+					retileThreads = Integer.parseInt(main.params.get("threads"));
+				} catch (NumberFormatException e) {
+					retileThreads = 0;
+				}
+				if (retileThreads < 1) {
+					System.err.println("Error: threads must be 1 or more");
+					System.exit(1);
+				}
+				main.params.remove("threads");
+			}
 		}
 		
 		//input files
-		if (!main.params.isEmpty()) {
+		if (retile) {
+			//the only source is the tile directory
+			if (main.params.size() != 1) {
+				System.err.println("Error: please specify exactly one tile directory");
+				System.err.println("");
+				help();
+				System.exit(1);
+			}
+			String dir = main.params.keySet().iterator().next();
+			
+			if (!new File(dir).isDirectory()) {
+				System.err.println("Error: " + dir + " is not a tile directory");
+				System.exit(1);
+			}
+			try {
+				if (new File(dir).getCanonicalPath().equals(new File(outputDir.isEmpty() ? "." : outputDir).getCanonicalPath())) {
+					System.err.println("Error: the new tiles must go to another directory, see --output-dir");
+					System.exit(1);
+				}
+			} catch (IOException e) {
+				System.err.println("Error: cannot read directory " + dir);
+				System.exit(1);
+			}
+			inputFiles.add(dir);
+		}
+		else if (bbox != null) {
+			//the only source is the tile directory
+			if (main.params.size() != 1) {
+				System.err.println("Error: please specify exactly one tile directory");
+				System.err.println("");
+				help();
+				System.exit(1);
+			}
+			String dir = main.params.keySet().iterator().next();
+			
+			try {
+				mrg = Merger.fromDirectory(dir, bbox, tilesize);
+			} catch (IOException e) {
+				System.err.println("Error: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		else if (!main.params.isEmpty()) {
 			for (String p : main.params.keySet()) {
-				int indexOfAsterisk = p.indexOf("*");
-				int lastIndexOfSlash = indexOfAsterisk >= 0 ? p.substring(0, indexOfAsterisk).lastIndexOf("/") : p.lastIndexOf("/");
-				String basedir = lastIndexOfSlash > -1 ? p.substring(0, lastIndexOfSlash) : System.getProperty("user.dir");
-				String wildcard = lastIndexOfSlash > -1 ? p.substring(lastIndexOfSlash + 1) : p;
-				
+				//standard input
+				if (p.equals(Split.STDIN) && (!merge || mergeSorted)) {
+					if (analyze || autoTilesize) {
+						System.err.println("Error: standard input can only be split with a fixed tile size");
+						System.exit(1);
+					}
+					inputFiles.add(p);
+					continue;
+				}
 				//resolve wildcards
-				Paths paths = new Paths(basedir, wildcard);
-				
-				for (String path : paths.getPaths()) {
-					inputFiles.add(path);
+				try {
+					inputFiles.addAll(resolveWildcards(p));
+				} catch (IOException e) {
+					System.err.println("Error: " + e.getMessage());
+					System.exit(1);
 				}
 			}
-			if (!merge && inputFiles.size() > 1) {
+			if (inputFiles.isEmpty()) {
+				System.err.println("Error: input file not found");
+				System.exit(1);
+			}
+			if (analyze && inputFiles.size() > 1) {
 				System.err.println("Warning: Skipping input files.");
 				System.err.println("");
 			}
@@ -191,27 +802,122 @@ public class Main {
 		
 		//start over
 		
-		if (merge) {
-			Merge mrg = new Merge(inputFiles, outputFile);
+		if (merge && mergeSorted) {
+			SortedMerge smrg = new SortedMerge(inputFiles);
+			
+			//keep stdout clean for the merged data
+			if (outputFile.equals("-")) {
+				smrg.setLog(System.err);
+			}
+			
+			if (metricsFile != null) {
+				smrg.getMetrics().startExport(metricsFile, metricsFormat, metricsInterval);
+			}
 			
 			try {
-				mrg.merge();
+				smrg.merge(outputFile);
 			} catch (Exception e) {
-				System.err.println("Error: Merging failed.");
+				System.err.println("Error: Merging failed: " + e.getMessage());
+				System.exit(1);
+			} finally {
+				smrg.getMetrics().stopExport();
+			}
+		}
+		else if (merge) {
+			if (mrg == null) {
+				mrg = new Merger(inputFiles);
+			}
+			mrg.setCache(cache);
+			mrg.setChecksums(checksums);
+			
+			//keep stdout clean for the merged data
+			if (outputFile.equals("-")) {
+				mrg.setLog(System.err);
+			}
+			
+			if (metricsFile != null) {
+				mrg.getMetrics().startExport(metricsFile, metricsFormat, metricsInterval);
+			}
+			
+			try {
+				mrg.merge(outputFile);
+			} catch (Exception e) {
+				System.err.println("Error: Merging failed: " + e.getMessage());
 				e.printStackTrace();
+				System.exit(1);
+			} finally {
+				mrg.getMetrics().stopExport();
 			}
 		}
 		else {
-			Split splt = new Split(inputFiles.get(0), node2tnFile, outputDir, tilesize, slim);
+			if (analyze || autoTilesize) {
+				Analyze anlz = new Analyze(inputFiles.get(0), sampleRate, analyze ? candidates : null);
+				
+				try {
+					anlz.analyze();
+				} catch (IOException e) {
+					System.err.println("Error: Analyzing failed.");
+					e.printStackTrace();
+					System.exit(1);
+				}
+				anlz.printReport(tileBudget, slim);
+				
+				if (analyze) {
+					return;
+				}
+				tilesize = anlz.recommend(tileBudget, slim);
+				
+				if (tilesize == 0) {
+					System.err.println("Error: no tile size fits the limit of open files");
+					System.exit(1);
+				}
+				System.out.println("");
+			}
 			
-			NodeToTileNumber.tilesizeLat = tilesize;
-			NodeToTileNumber.tilesizeLon = tilesize;
+			Splitter splt = new Splitter(inputFiles, outputDir);
+			splt.setIndexFile(node2tnFile);
+			if (candidates != null && candidates.length > 1) {
+				splt.setTilesizes(candidates);
+			}
+			else {
+				splt.setTilesize(tilesize);
+			}
+			splt.setSlim(slim);
+			splt.setRefLookup(refLookup);
+			splt.setFilter(filter);
+			splt.setLocationFile(locationFile);
+			splt.setSharedBoundary(sharedBoundary);
+			if (memoryBudget > 0) {
+				splt.setMemoryBudget(memoryBudget);
+			}
+			
+			if (metricsFile != null) {
+				splt.getMetrics().startExport(metricsFile, metricsFormat, metricsInterval);
+			}
 			
 			try {
-				splt.split();
+				if (retile) {
+					Retile rtl = new Retile(inputFiles.get(0), splt);
+					if (retileTiles != null) {
+						rtl.setTiles(retileTiles);
+					}
+					if (retileBbox != null) {
+						rtl.setBbox(retileBbox);
+					}
+					if (retileThreads > 0) {
+						rtl.setThreads(retileThreads);
+					}
+					rtl.retile();
+				}
+				else {
+					splt.split();
+				}
 			} catch (Exception e) {
-				System.err.println("Error: Splitting failed.");
+				System.err.println("Error: Splitting failed: " + e.getMessage());
 				e.printStackTrace();
+				System.exit(1);
+			} finally {
+				splt.getMetrics().stopExport();
 			}
 		}
 	}
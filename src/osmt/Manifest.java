@@ -0,0 +1,152 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.TreeMap;
+
+/**
+ * Manifest - list of the tiles written by a split, stored in the output directory
+ *
+ * Text format, one tab-separated line per tile, see HEADER.
+ */
+public class Manifest {
+	public final static String FILE_NAME = "manifest.txt";
+	final static String HEADER = "#tn\tminlat\tminlon\tmaxlat\tmaxlon\tnodes\tways\textranodes\tbytes\tcrc32\tnodesoffset\twaysoffset\tendoffset";
+	
+	public float tilesize;
+	public TreeMap<Integer, Entry> tiles;
+	//of Tile.BOUNDARY_FILE, -1 without shared boundary nodes
+	public long boundaryBytes = -1, boundaryChecksum;
+	
+	public static class Entry {
+		public int tn;
+		public float[] bounds;
+		public long nodes, ways, extraNodes;
+		public long bytes, checksum;
+		//byte offsets of the first node, the first way and the closing tag
+		public long nodesOffset, waysOffset, endOffset;
+	}
+	
+	/**
+	 * Constructor
+	 * @param tilesize
+	 */
+	public Manifest(float tilesize) {
+		this.tilesize = tilesize;
+		tiles = new TreeMap<Integer, Entry>();
+	}
+	
+	/**
+	 * write: write the manifest to a file
+	 * @param fn
+	 * @throws IOException
+	 */
+	public void write(String fn) throws IOException {
+		Writer w = new FileWriter(fn);
+		
+		try {
+			w.write("#osmt manifest\n");
+			w.write("tilesize\t" + tilesize + "\n");
+			
+			if (boundaryBytes >= 0) {
+				w.write("boundary\t" + boundaryBytes + "\t" + boundaryChecksum + "\n");
+			}
+			w.write(HEADER + "\n");
+			
+			for (Entry e : tiles.values()) {
+				w.write(e.tn + "\t" + e.bounds[0] + "\t" + e.bounds[1] + "\t" + e.bounds[2] + "\t" + e.bounds[3]
+						+ "\t" + e.nodes + "\t" + e.ways + "\t" + e.extraNodes + "\t" + e.bytes + "\t" + e.checksum
+						+ "\t" + e.nodesOffset + "\t" + e.waysOffset + "\t" + e.endOffset + "\n");
+			}
+		} finally {
+			w.close();
+		}
+	}
+	
+	/**
+	 * read: read a manifest file
+	 * @param fn
+	 * @return
+	 * @throws IOException
+	 */
+	public static Manifest read(String fn) throws IOException {
+		Manifest manifest = new Manifest(0);
+		BufferedReader br = new BufferedReader(new FileReader(fn));
+		String line;
+		
+		try {
+			while ((line = br.readLine()) != null) {
+				if (line.startsWith("#") || line.trim().isEmpty()) {
+					continue;
+				}
+				String[] fields = line.split("\t");
+				
+				if (fields[0].equals("tilesize")) {
+					manifest.tilesize = Float.parseFloat(fields[1]);
+					continue;
+				}
+				if (fields[0].equals("boundary") && fields.length == 3) {
+					manifest.boundaryBytes = Long.parseLong(fields[1]);
+					manifest.boundaryChecksum = Long.parseLong(fields[2]);
+					continue;
+				}
+				try {
+					Entry e = new Entry();
+					e.tn = Integer.parseInt(fields[0]);
+					e.bounds = new float[] {Float.parseFloat(fields[1]), Float.parseFloat(fields[2]),
+							Float.parseFloat(fields[3]), Float.parseFloat(fields[4])};
+					e.nodes = Long.parseLong(fields[5]);
+					e.ways = Long.parseLong(fields[6]);
+					e.extraNodes = Long.parseLong(fields[7]);
+					e.bytes = Long.parseLong(fields[8]);
+					e.checksum = Long.parseLong(fields[9]);
+					e.nodesOffset = Long.parseLong(fields[10]);
+					e.waysOffset = Long.parseLong(fields[11]);
+					e.endOffset = Long.parseLong(fields[12]);
+					manifest.tiles.put(e.tn, e);
+				} catch (Exception ex) {
+					throw new IOException("invalid manifest line: " + line);
+				}
+			}
+		} finally {
+			br.close();
+		}
+		return manifest;
+	}
+	
+	/**
+	 * find: read the manifest of a tile directory
+	 * @param dir
+	 * @return manifest, or null if there is none
+	 */
+	public static Manifest find(String dir) {
+		File f = new File(dir, FILE_NAME);
+		
+		if (!f.exists()) {
+			return null;
+		}
+		try {
+			return read(f.getPath());
+		} catch (IOException e) {
+			System.err.println("Warning: ignoring manifest " + f + ": " + e.getMessage());
+			return null;
+		}
+	}
+}
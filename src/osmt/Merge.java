@@ -15,21 +15,42 @@
 
 package osmt;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 
 public class Merge {
 	ArrayList<TileReader> inputTiles;
 	String outputFile;
+	float[] bbox;
+	Manifest manifest;
+	//check the CRC32 of the tiles against the manifest, which reads each tile once more
+	boolean checksums = false;
+	//Tile.BOUNDARY_FILE of the tiles, if they were split with shared boundary nodes and some are needed
+	TileReader boundary;
+	//indexes of tile groups, see MergeCache
+	MergeCache cache;
+	Metrics metrics = new Metrics();
+	PrintStream log = System.out;
+	Writer output;
 	
 	BufferedReader br;
 	Writer fh, fhTmp;
@@ -38,13 +59,44 @@ public class Merge {
 	 * Constructor
 	 * @param inputFiles
 	 * @param outputFile
+	 * @throws IOException
 	 */
-	public Merge(ArrayList<String> inputFiles, String outputFile) {
+	public Merge(ArrayList<String> inputFiles, String outputFile) throws IOException {
+		this(inputFiles, outputFile, null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param inputFiles
+	 * @param outputFile
+	 * @param bbox - {minlat, minlon, maxlat, maxlon} to clip the output to, or null
+	 * @throws IOException
+	 */
+	public Merge(ArrayList<String> inputFiles, String outputFile, float[] bbox) throws IOException {
+		this(inputFiles, outputFile, bbox, null);
+	}
+	
+	/**
+	 * Constructor
+	 * @param inputFiles
+	 * @param outputFile
+	 * @param bbox - {minlat, minlon, maxlat, maxlon} to clip the output to, or null
+	 * @param manifest - manifest of the tile directory, loaded already, or null to read it
+	 * @throws IOException
+	 */
+	public Merge(ArrayList<String> inputFiles, String outputFile, float[] bbox, Manifest manifest) throws IOException {
+		this.bbox = bbox;
 		inputTiles = new ArrayList<TileReader>(inputFiles.size());
 		
 		for (String fn : inputFiles) {
 			int tn = 0;
 			
+			//sidecar files written along with the tiles
+			if (fn.endsWith(Tile.SEGMENTS_SUFFIX) || fn.endsWith(Tile.BOXES_SUFFIX) || new File(fn).getName().equals(Manifest.FILE_NAME)
+					|| new File(fn).getName().equals(Tile.BOUNDARY_FILE)) {
+				continue;
+			}
+			
 			try {
 				tn = Integer.parseInt(fn.substring(fn.lastIndexOf("/") + 1).split("\\.")[0]);
 			} catch (Exception e) {
@@ -57,18 +109,14 @@ public class Merge {
 		
 		this.outputFile = outputFile;
 		
-		try {
-			fh = new FileWriter(outputFile);
-		} catch (IOException e) {
-			System.err.println("Error: Cannot open file for writing: " + outputFile);
-		}
+		loadManifest(manifest);
 	}
 	
 	/**
-	 * merge
-	 * @throws Exception
+	 * merge: merge to outputFile, or to output if it is set
+	 * @throws IOException
 	 */
-	void merge() throws Exception {
+	void merge() throws IOException {
 		//TreeMaps id -> tile number
 		TreeMap<Long, TileReader> nodesMap = new TreeMap<Long, TileReader>();
 		TreeMap<Long, TileReader> waysMap = new TreeMap<Long, TileReader>();
@@ -83,11 +131,36 @@ public class Merge {
 		float minLat = 90F, minLon = 180F, maxLat = -90F, maxLon = -180F;
 		
 		WaySegment segment = new WaySegment();
+		long phaseStart = System.nanoTime();
+		
+		try {
+			fh = output != null ? output : AsyncWriter.open(outputFile);
+		} catch (IOException e) {
+			throw new IOException("Cannot open file for writing: " + outputFile, e);
+		}
 
 		TreeMap<Long, LinkedList<WaySegment>> segments = new TreeMap<Long, LinkedList<WaySegment>>();
 		TreeMap<Long, ArrayList<WaySegment>> mergedWays = new TreeMap<Long, ArrayList<WaySegment>>();
 		
 		
+		//the manifest knows the bounds and sizes of the tiles
+		long expectedNodes = 0, expectedWays = 0;
+		
+		if (manifest != null) {
+			for (TileReader t : inputTiles) {
+				expectedNodes += t.entry.nodes;
+				expectedWays += t.entry.ways;
+				
+				if (bbox == null) {
+					minLat = Math.min(minLat, t.entry.bounds[0]);
+					minLon = Math.min(minLon, t.entry.bounds[1]);
+					maxLat = Math.max(maxLat, t.entry.bounds[2]);
+					maxLon = Math.max(maxLon, t.entry.bounds[3]);
+				}
+			}
+			log.println("manifest: " + inputTiles.size() + " tiles, " + expectedNodes + " nodes, " + expectedWays + " ways (including copies)");
+		}
+		
 		//write opening tags
 		fh.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
 		fh.write("<osm version=\"0.6\" generator=\"osmt\">\n");
@@ -95,45 +168,101 @@ public class Merge {
 		
 		//1st pass: parse nodes, save them to TreeMap
 		
+		//the tiles of cached groups are not read in the first two passes, the others are indexed for the cache
+		HashMap<TileReader, MergeCache.TileIndex> cached = new HashMap<TileReader, MergeCache.TileIndex>();
+		HashMap<TileReader, MergeCache.TileIndex> indexed = new HashMap<TileReader, MergeCache.TileIndex>();
+		ArrayList<MergeCache.Group> groups = findGroups(cached, indexed);
+		
 		for (TileReader t : inputTiles) {
+			MergeCache.TileIndex index = cached.get(t);
+			
+			if (index != null) {
+				if (index.bounds != null && bbox == null && manifest == null) {
+					minLat = Math.min(minLat, index.bounds[0]);
+					minLon = Math.min(minLon, index.bounds[1]);
+					maxLat = Math.max(maxLat, index.bounds[2]);
+					maxLon = Math.max(maxLon, index.bounds[3]);
+				}
+				for (int i = 0; i < index.nodeCount; i++) {
+					//clip to bbox
+					if (bbox == null || inBbox(index.lats[i], index.lons[i])) {
+						nodesMap.put(index.nodes[i], t);
+					}
+				}
+				continue;
+			}
+			index = indexed.get(t);
 			br = t.inputReader;
 			
-			System.out.println("1st pass tile " + t.tn + " ...");
+			log.println("1st pass tile " + t.tn + " ...");
+			Events.MergePass event = new Events.MergePass();
+			event.begin();
 			
 			//parse XML
 			while ((line = br.readLine()) != null) {
-				if (line.contains("<bounds ")) {
+				if (line.contains("<bounds ") && ((bbox == null && manifest == null) || index != null)) {
 					attr = Split.parseAttr(line);
 					float tileMinLat = Float.valueOf(attr.get("minlat"));
 					float tileMinLon = Float.valueOf(attr.get("minlon"));
 					float tileMaxLat = Float.valueOf(attr.get("maxlat"));
 					float tileMaxLon = Float.valueOf(attr.get("maxlon"));
 					
-					minLat = Math.min(minLat, tileMinLat);
-					minLon = Math.min(minLon, tileMinLon);
-					maxLat = Math.max(maxLat, tileMaxLat);
-					maxLon = Math.max(maxLon, tileMaxLon);
+					if (index != null) {
+						index.bounds = new float[] {tileMinLat, tileMinLon, tileMaxLat, tileMaxLon};
+					}
+					if (bbox == null && manifest == null) {
+						minLat = Math.min(minLat, tileMinLat);
+						minLon = Math.min(minLon, tileMinLon);
+						maxLat = Math.max(maxLat, tileMaxLat);
+						maxLon = Math.max(maxLon, tileMaxLon);
+					}
 				}
 				else if (line.contains("<node ")) {
 					attr = Split.parseAttr(line);
 					nodeId = Long.valueOf(attr.get("id"));
+					event.elements++;
+					
+					if (index != null) {
+						index.addNode(nodeId, Float.valueOf(attr.get("lat")), Float.valueOf(attr.get("lon")));
+					}
+					
+					//clip to bbox
+					if (bbox != null && !inBbox(Float.valueOf(attr.get("lat")), Float.valueOf(attr.get("lon")))) {
+						continue;
+					}
 					nodesMap.put(nodeId, t);
 				}
 				else if (line.contains("<way ") || line.contains("<relation ") || line.contains("</osm>")) {
 					break;
 				}
 			}
+			commit(event, "1", t.tn);
 		}
 		
-		System.out.println(": found " + nodesMap.size() + " node objects");
+		findBoundaryNodes(nodesMap);
+		
+		log.println(": found " + nodesMap.size() + " node objects");
+		metrics.time("merge_pass1", phaseStart);
+		phaseStart = System.nanoTime();
 		
+		if (bbox != null) {
+			minLat = bbox[0];
+			minLon = bbox[1];
+			maxLat = bbox[2];
+			maxLon = bbox[3];
+		}
 		fh.write("<bounds minlat=\"" + minLat + "\" minlon=\"" + minLon + "\" maxlat=\"" + maxLat + "\" maxlon=\"" + maxLon + "\"/>\n");
 		
 		
 		//write nodes to output file
 		
-		newReaders(inputTiles);
-		System.out.println("writing nodes ...");
+		ArrayList<TileReader> nodeReaders = new ArrayList<TileReader>(inputTiles);
+		
+		if (boundary != null) {
+			nodeReaders.add(boundary);
+		}
+		newReaders(nodeReaders, false);
+		log.println("writing nodes ...");
 		
 		int writeCount = 0;
 		String pL;
@@ -172,21 +301,67 @@ public class Merge {
 			}
 		} //end for (Map.Entry<Long, TileReader> entry : nodesMap.entrySet())
 		
-		System.out.println(": wrote " + writeCount + " nodes to output file");
+		log.println(": wrote " + writeCount + " nodes to output file");
+		metrics.add("osmt_nodes_written_total", writeCount);
+		metrics.time("merge_write_nodes", phaseStart);
+		phaseStart = System.nanoTime();
 		
 		
 		//2nd pass: parse ways, identify split ways, save them to TreeMap
 		
-		newReaders(inputTiles);
+		newReaders(inputTiles, true);
 		
 		boolean tnFound = false;
+		boolean useSegmentsFiles = true;
 		
 		for (TileReader t : inputTiles) {
+			useSegmentsFiles &= new File(t.segmentsFile).exists();
+		}
+		
+		//split ways are listed in the segments files, only the way IDs are needed from the tiles
+		for (TileReader t : (useSegmentsFiles ? inputTiles : new ArrayList<TileReader>())) {
+			MergeCache.TileIndex index = cached.get(t);
+			
+			if (index != null) {
+				for (int i = 0; i < index.wayCount; i++) {
+					waysMap.put(index.ways[i], t);
+				}
+				readSegments(t, segments);
+				continue;
+			}
+			index = indexed.get(t);
+			br = t.inputReader;
+			
+			log.println("2nd pass tile " + t.tn + " ...");
+			Events.MergePass event = new Events.MergePass();
+			event.begin();
+			
+			while ((line = br.readLine()) != null) {
+				if (line.contains("<way ")) {
+					wayId = Long.valueOf(Split.getAttr(line, "id"));
+					waysMap.put(wayId, t);
+					event.elements++;
+					
+					if (index != null) {
+						index.addWay(wayId);
+					}
+				}
+				else if (line.contains("<relation ") || line.contains("</osm>")) {
+					break;
+				}
+			}
+			readSegments(t, segments);
+			commit(event, "2", t.tn);
+		}
+		
+		for (TileReader t : (useSegmentsFiles ? new ArrayList<TileReader>() : inputTiles)) {
 			br = t.inputReader;
 			
 			splitWay = false;
 			
-			System.out.println("2nd pass tile " + t.tn + " ...");
+			log.println("2nd pass tile " + t.tn + " ...");
+			Events.MergePass event = new Events.MergePass();
+			event.begin();
 			
 			//parse XML
 			while ((line = br.readLine()) != null) {
@@ -198,6 +373,7 @@ public class Merge {
 					wayId = Long.valueOf(attr.get("id"));
 					
 					waysMap.put(wayId, t);
+					event.elements++;
 				}
 				else if (line.contains("<nd ")) {
 					attr = Split.parseAttr(line);
@@ -224,29 +400,52 @@ public class Merge {
 					break;
 				}
 			} //end while ((line = br.readLine()) != null)
+			commit(event, "2", t.tn);
 		} //end for (TileReader tr : inputTiles)
 		
-		System.out.println(": found " + waysMap.size() + " ways (" + segments.size() + " split ways)");
+		storeGroups(groups);
+		
+		log.println(": found " + waysMap.size() + " ways (" + segments.size() + " split ways)");
+		metrics.add("osmt_split_ways_total", segments.size());
+		metrics.time("merge_pass2", phaseStart);
+		phaseStart = System.nanoTime();
 		
 		
 		//merge split ways
 		
-		System.out.println("merging ways ...");
+		log.println("merging ways ...");
 		
 		for (long id : segments.keySet()) {
 //			System.out.println("merging way " + id );
+			Events.MergeSegments event = new Events.MergeSegments();
+			
+			if (event.isEnabled()) {
+				event.wayId = id;
+				event.segments = segments.get(id).size();
+				for (WaySegment ws : segments.get(id)) {
+					event.refs += ws.refs.size();
+				}
+				event.begin();
+			}
 			mergedWays.put(id, mergeSegments(segments.get(id), id == 0));	//insert way ID to debug
 //			System.out.println(mergedWays.get(id).size());
+			
+			if (event.refs >= Events.MergeSegments.MIN_REFS) {
+				event.pieces = mergedWays.get(id).size();
+				event.commit();
+			}
 		}
 		
-		System.out.println(": merged " + mergedWays.size() + " ways");
+		log.println(": merged " + mergedWays.size() + " ways");
+		metrics.time("merge_segments", phaseStart);
+		phaseStart = System.nanoTime();
 		
 		
 		//write ways to output file
 		
-		System.out.println("writing ways ...");
+		log.println("writing ways ...");
 		
-		newReaders(inputTiles);
+		newReaders(inputTiles, true);
 
 		writeCount = 0;
 		ArrayList<String> extraWays = new ArrayList<String>();
@@ -257,6 +456,7 @@ public class Merge {
 			
 			parse = splitWay = ndsWritten = false;
 			String[] wayString = new String[mergedWays.containsKey(wayId) ? mergedWays.get(wayId).size() : 1];
+			int[] ndCount = new int[wayString.length];
 			
 			br = tr.inputReader;
 			pL = tr.previousLine;	//tr.previousLine is the line read just before the loop broke the last time
@@ -291,15 +491,22 @@ public class Merge {
 										wayString[i] = wayString[i].substring(0, idIndex1) + ++newId + wayString[i].substring(idIndex2);
 									}
 									for (Long r : mergedWays.get(wayId).get(i).refs) {
+										//clip to bbox
+										if (bbox != null && !nodesMap.containsKey(r)) {
+											continue;
+										}
 										wayString[i] += "		<nd ref=\"" + r + "\"/>\n";
+										ndCount[i]++;
 									}
 								}
 								ndsWritten = true;
 							}
 						}
-						else {
+						//clip to bbox
+						else if (bbox == null || nodesMap.containsKey(Long.valueOf(Split.parseAttr(line).get("ref")))) {
 							for (int w = 0; w < wayString.length; w++) {
 								wayString[w] += line + "\n";
+								ndCount[w]++;
 							}
 						}
 					}
@@ -322,25 +529,59 @@ public class Merge {
 				}
 			} //end while ((line = br.readLine()) != null)
 			
-			fh.write(wayString[0]);
+			//ways clipped away entirely are not written
+			if (bbox == null || ndCount[0] > 0) {
+				fh.write(wayString[0]);
+			}
 			
 			if (wayString.length > 1) {
 				for (int w = 1; w < wayString.length; w++) {
-					extraWays.add(wayString[w]);
+					if (bbox == null || ndCount[w] > 0) {
+						extraWays.add(wayString[w]);
+					}
 				}
 			}
 			
-			if (!parse) System.out.println("did not write way " + wayId);
+			if (!parse) log.println("did not write way " + wayId);
 		} //end for (Map.Entry<Long, Integer> entry : waysMap.entrySet())
 		
 		for (String s : extraWays) {
 			fh.write(s);
 		}
 		
-		System.out.println(": wrote " + writeCount + " ways to output file");
+		log.println(": wrote " + writeCount + " ways to output file");
+		metrics.add("osmt_ways_written_total", writeCount);
 
 		fh.write("</osm>\n");
-		fh.close();
+		
+		//the caller's writer stays open
+		if (output != null) {
+			fh.flush();
+		}
+		else {
+			fh.close();
+		}
+		for (TileReader t : inputTiles) {
+			t.close();
+		}
+		if (boundary != null) {
+			boundary.close();
+		}
+		metrics.time("merge_write_ways", phaseStart);
+	}
+	
+	/**
+	 * commit: commit the JFR event of a pass over a tile
+	 * @param event
+	 * @param pass
+	 * @param tn
+	 */
+	void commit(Events.MergePass event, String pass, int tn) {
+		if (event.shouldCommit()) {
+			event.pass = pass;
+			event.tn = tn;
+			event.commit();
+		}
 	}
 	
 	/**
@@ -573,20 +814,502 @@ if (debug) {
 		return result;
 	}
 	
+	/**
+	 * readSegments: read the split ways of a tile from its segments file (see Tile.writeSegment)
+	 * @param t
+	 * @param segments
+	 * @throws IOException
+	 */
+	void readSegments(TileReader t, TreeMap<Long, LinkedList<WaySegment>> segments) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(t.segmentsFile), 65536));
+		
+		try {
+			if (in.readInt() != Tile.SEGMENTS_MAGIC) {
+				throw new IOException("invalid segments file: " + t.segmentsFile);
+			}
+			while (true) {
+				long wayId;
+				
+				try {
+					wayId = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int count = in.readInt();
+				WaySegment segment = new WaySegment();
+				segment.tn = t.tn;
+				
+				for (int i = 0; i < count; i++) {
+					segment.refs.add(in.readLong());
+					segment.refTn.add(in.readInt());
+				}
+				if (!segments.containsKey(wayId)) {
+					segments.put(wayId, new LinkedList<WaySegment>());
+				}
+				segments.get(wayId).add(segment);
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * findGroups: look up the groups of the input tiles in the cache, see MergeCache;
+	 * only tiles of one directory with segments files are grouped
+	 * @param cached - receives the index of each tile found in the cache
+	 * @param indexed - receives an empty index for each tile to be read
+	 * @return the groups with tiles to be read, to be stored after the second pass
+	 */
+	ArrayList<MergeCache.Group> findGroups(HashMap<TileReader, MergeCache.TileIndex> cached, HashMap<TileReader, MergeCache.TileIndex> indexed) {
+		ArrayList<MergeCache.Group> changed = new ArrayList<MergeCache.Group>();
+		
+		if (cache == null || inputTiles.isEmpty()) {
+			return changed;
+		}
+		String dir = new File(inputTiles.get(0).inputFile).getAbsoluteFile().getParent();
+		
+		for (TileReader t : inputTiles) {
+			if (!new File(t.segmentsFile).exists() || !new File(t.inputFile).getAbsoluteFile().getParent().equals(dir)) {
+				return changed;
+			}
+		}
+		float tilesize = manifest != null ? manifest.tilesize : readTilesize(dir);
+		
+		if (tilesize <= 0) {
+			return changed;
+		}
+		//tile numbers count the rows of a column first
+		int rows = (int)(180 / tilesize);
+		TreeMap<Long, MergeCache.Group> groups = new TreeMap<Long, MergeCache.Group>();
+		
+		for (TileReader t : inputTiles) {
+			long block = (long)((t.tn - 1) / rows / MergeCache.BLOCK) * rows + (t.tn - 1) % rows / MergeCache.BLOCK;
+			
+			if (!groups.containsKey(block)) {
+				groups.put(block, new MergeCache.Group(cache.groupKey(dir, block)));
+			}
+			groups.get(block).tiles.add(t);
+		}
+		for (MergeCache.Group group : groups.values()) {
+			File f = cache.find(group.key, MergeCache.GROUP_SUFFIX);
+			
+			if (f != null) {
+				try {
+					group.index = MergeCache.readGroup(f);
+				} catch (IOException e) {
+					System.err.println("Warning: ignoring cache entry " + f + ": " + e.getMessage());
+				}
+			}
+			//tiles changed or removed since
+			for (Iterator<Map.Entry<Integer, MergeCache.TileIndex>> i = group.index.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry<Integer, MergeCache.TileIndex> e = i.next();
+				
+				if (!MergeCache.stamp(new File(dir, e.getKey() + ".osm").getPath()).equals(e.getValue().stamp)) {
+					i.remove();
+					group.changed = true;
+				}
+			}
+			for (TileReader t : group.tiles) {
+				MergeCache.TileIndex index = group.index.get(t.tn);
+				
+				if (index != null) {
+					cached.put(t, index);
+					continue;
+				}
+				index = new MergeCache.TileIndex(MergeCache.stamp(t.inputFile));
+				group.index.put(t.tn, index);
+				indexed.put(t, index);
+				group.changed = true;
+			}
+			if (group.changed) {
+				changed.add(group);
+			}
+		}
+		log.println("cache: " + cached.size() + " of " + inputTiles.size() + " tiles indexed");
+		metrics.add("osmt_cache_tile_hits_total", cached.size());
+		metrics.add("osmt_cache_tile_misses_total", indexed.size());
+		return changed;
+	}
+	
+	/**
+	 * storeGroups: store the index of the groups with tiles read, after the second pass
+	 * @param groups
+	 */
+	void storeGroups(ArrayList<MergeCache.Group> groups) {
+		for (MergeCache.Group group : groups) {
+			try {
+				File tmp = cache.newEntry();
+				
+				try {
+					MergeCache.writeGroup(tmp, group.index);
+				} catch (IOException e) {
+					tmp.delete();
+					throw e;
+				}
+				cache.put(tmp, group.key, MergeCache.GROUP_SUFFIX);
+			} catch (IOException e) {
+				//the merge does not depend on the cache
+				System.err.println("Warning: cannot cache tile group: " + e.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * findBoundaryNodes: add the nodes of the boundary file that are in the input tiles, which leave
+	 * them out, or that ways of the input tiles refer to in other tiles
+	 * @param nodesMap
+	 * @throws IOException
+	 */
+	void findBoundaryNodes(TreeMap<Long, TileReader> nodesMap) throws IOException {
+		if (inputTiles.isEmpty()) {
+			return;
+		}
+		File f = new File(new File(inputTiles.get(0).inputFile).getAbsoluteFile().getParent(), Tile.BOUNDARY_FILE);
+		
+		if (!f.exists()) {
+			return;
+		}
+		HashSet<Integer> tns = new HashSet<Integer>();
+		HashSet<Long> refs = new HashSet<Long>();
+		
+		for (TileReader t : inputTiles) {
+			tns.add(t.tn);
+		}
+		for (TileReader t : inputTiles) {
+			remoteRefs(t, tns, refs);
+		}
+		float tilesize = manifest != null ? manifest.tilesize : readTilesize(f.getParent());
+		//the tiles of the boundary nodes, as the split found them; without a tile size all nodes are taken
+		NodeToTileNumber grid = tilesize > 0 ? new NodeToTileNumber(tilesize) : null;
+		log.println("boundary nodes ...");
+		boundary = new TileReader(f.getPath(), 0);
+		String line;
+		int count = 0;
+		
+		while ((line = boundary.inputReader.readLine()) != null) {
+			if (line.contains("<node ")) {
+				HashMap<String, String> attr = Split.parseAttr(line);
+				long nodeId = Long.valueOf(attr.get("id"));
+				
+				if (nodesMap.containsKey(nodeId)) {
+					continue;
+				}
+				float lat = Float.valueOf(attr.get("lat")), lon = Float.valueOf(attr.get("lon"));
+				
+				if (!refs.contains(nodeId) && grid != null && !tns.contains(grid.tileOf(lat, lon))) {
+					continue;
+				}
+				if (bbox != null && !inBbox(lat, lon)) {
+					continue;
+				}
+				nodesMap.put(nodeId, boundary);
+				count++;
+			}
+			else if (line.contains("<way ") || line.contains("</osm>")) {
+				break;
+			}
+		}
+		log.println(": found " + count + " boundary nodes");
+	}
+	
+	/**
+	 * remoteRefs: collect the refs of the split ways of a tile that are in tiles not merged,
+	 * from the segments file or else from the tn attributes of the tile
+	 * @param t
+	 * @param tns - the merged tiles
+	 * @param refs - receives the refs
+	 * @throws IOException
+	 */
+	void remoteRefs(TileReader t, HashSet<Integer> tns, HashSet<Long> refs) throws IOException {
+		if (!new File(t.segmentsFile).exists()) {
+			BufferedReader in = new BufferedReader(new FileReader(t.inputFile));
+			String line;
+			
+			try {
+				while ((line = in.readLine()) != null) {
+					if (line.contains("<nd ") && line.contains(" tn=")) {
+						HashMap<String, String> attr = Split.parseAttr(line);
+						
+						if (!tns.contains(Integer.parseInt(attr.get("tn")))) {
+							refs.add(Long.valueOf(attr.get("ref")));
+						}
+					}
+					else if (line.contains("<relation ")) {
+						break;
+					}
+				}
+			} finally {
+				in.close();
+			}
+			return;
+		}
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(t.segmentsFile), 65536));
+		
+		try {
+			if (in.readInt() != Tile.SEGMENTS_MAGIC) {
+				throw new IOException("invalid segments file: " + t.segmentsFile);
+			}
+			while (true) {
+				try {
+					in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				int count = in.readInt();
+				
+				for (int i = 0; i < count; i++) {
+					long ref = in.readLong();
+					int tn = in.readInt();
+					
+					if (tn != 0 && !tns.contains(tn)) {
+						refs.add(ref);
+					}
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * inBbox: check if a position is inside the bbox (including its edges)
+	 * @param lat
+	 * @param lon
+	 * @return
+	 */
+	boolean inBbox(float lat, float lon) {
+		return lat >= bbox[0] && lon >= bbox[1] && lat <= bbox[2] && lon <= bbox[3];
+	}
+	
+	/**
+	 * readTilesize: get the tile size from the <bounds> of the first tile in a directory
+	 * @param dir
+	 * @return tile size, or 0 if there are no tiles
+	 */
+	static float readTilesize(String dir) {
+		Manifest m = Manifest.find(dir);
+		
+		if (m != null) {
+			return m.tilesize;
+		}
+		String[] files = new File(dir).list();
+		
+		if (files == null) {
+			return 0;
+		}
+		for (String fn : files) {
+			if (!fn.matches("[0-9]+\\.osm")) {
+				continue;
+			}
+			try {
+				BufferedReader tileBr = new BufferedReader(new FileReader(new File(dir, fn)));
+				String line;
+				
+				try {
+					while ((line = tileBr.readLine()) != null) {
+						if (line.contains("<bounds ")) {
+							HashMap<String, String> attr = Split.parseAttr(line);
+							double size = Double.valueOf(attr.get("maxlat")) - Double.valueOf(attr.get("minlat"));
+							
+							//the bounds are printed floats, round away their error
+							return (float)(Math.round(size * 100000) / 100000.0);
+						}
+						else if (line.contains("<node ") || line.contains("<way ")) {
+							break;
+						}
+					}
+				} finally {
+					tileBr.close();
+				}
+			} catch (IOException e) {
+				System.err.println("Warning: cannot read tile " + fn);
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * tilesInBbox: find the tiles in a directory which intersect a bbox
+	 * @param dir
+	 * @param bbox - {minlat, minlon, maxlat, maxlon}
+	 * @param tilesize - tile size of the directory
+	 * @return file names of the tiles
+	 */
+	static ArrayList<String> tilesInBbox(String dir, float[] bbox, float tilesize) {
+		ArrayList<String> result = new ArrayList<String>();
+		
+		for (int tn : tnsInBbox(bbox, tilesize)) {
+			File f = new File(dir, tn + ".osm");
+			
+			if (f.exists()) {
+				result.add(f.getPath());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * tnsInBbox: tile numbers of the tiles of a size which intersect a bbox, whether they exist or not
+	 * @param bbox - {minlat, minlon, maxlat, maxlon}
+	 * @param tilesize
+	 * @return
+	 */
+	static TreeSet<Integer> tnsInBbox(float[] bbox, float tilesize) {
+		NodeToTileNumber grid = new NodeToTileNumber(tilesize);
+		int maxRow = (int)(180 / tilesize) - 1;
+		int maxCol = (int)(360 / tilesize) - 1;
+		
+		int minRow = Math.max(0, (int)((bbox[0] + 90) / tilesize));
+		int minCol = Math.max(0, (int)((bbox[1] + 180) / tilesize));
+		maxRow = Math.min(maxRow, (int)((bbox[2] + 90) / tilesize));
+		maxCol = Math.min(maxCol, (int)((bbox[3] + 180) / tilesize));
+		
+		TreeSet<Integer> tns = new TreeSet<Integer>();
+		
+		for (int row = minRow; row <= maxRow; row++) {
+			for (int col = minCol; col <= maxCol; col++) {
+				//tile number of the tile's center
+				int tn = grid.calcTn(-90 + (row + 0.5F) * tilesize, -180 + (col + 0.5F) * tilesize);
+				float[] bounds = grid.getBounds(tn);
+				
+				if (bounds[0] <= bbox[2] && bounds[2] >= bbox[0] && bounds[1] <= bbox[3] && bounds[3] >= bbox[1]) {
+					tns.add(tn);
+				}
+			}
+		}
+		return tns;
+	}
+	
 	/**
 	 * newReaders
 	 * @param tr
+	 * @param waysOnly - skip the nodes if the manifest knows where the ways start
+	 * @throws IOException
+	 */
+	void newReaders(ArrayList<TileReader> readers, boolean waysOnly) throws IOException {
+		for (TileReader tr : readers) {
+			tr.close();
+			tr.open(waysOnly);
+		}
+	}
+	
+	/**
+	 * loadManifest: use the manifest of the tile directory if it lists all input tiles
+	 * @param known - the manifest, or null to read it
+	 */
+	void loadManifest(Manifest known) {
+		if (inputTiles.isEmpty()) {
+			return;
+		}
+		String dir = new File(inputTiles.get(0).inputFile).getAbsoluteFile().getParent();
+		manifest = known != null ? known : Manifest.find(dir);
+		
+		if (manifest == null) {
+			return;
+		}
+		for (TileReader t : inputTiles) {
+			if (!manifest.tiles.containsKey(t.tn) || !new File(t.inputFile).getAbsoluteFile().getParent().equals(dir)) {
+				System.err.println("Warning: tile " + t.inputFile + " is not in the manifest, ignoring manifest");
+				manifest = null;
+				return;
+			}
+		}
+		for (TileReader t : inputTiles) {
+			t.entry = manifest.tiles.get(t.tn);
+		}
+	}
+	
+	/**
+	 * checkTiles: check the input tiles and the boundary file against the manifest before merging,
+	 * with a bbox also that none of the tiles intersecting it is missing
+	 * @throws FileNotFoundException if tiles to be merged are missing
+	 * @throws IOException if they have the wrong size or (checksums) the wrong CRC32
+	 */
+	void checkTiles() throws IOException {
+		if (manifest == null) {
+			return;
+		}
+		ArrayList<String> missing = new ArrayList<String>(), damaged = new ArrayList<String>();
+		File dir = new File(inputTiles.get(0).inputFile).getParentFile();
+		
+		//the tiles tilesInBbox selects, so a tile only touching the bbox is not expected
+		if (bbox != null && manifest.tilesize > 0) {
+			TreeSet<Integer> expected = tnsInBbox(bbox, manifest.tilesize);
+			
+			for (TileReader t : inputTiles) {
+				expected.remove(t.tn);
+			}
+			for (int tn : expected) {
+				if (manifest.tiles.containsKey(tn)) {
+					missing.add("tile " + new File(dir, tn + ".osm") + " is missing");
+				}
+			}
+		}
+		for (TileReader t : inputTiles) {
+			check("tile", new File(t.inputFile), t.entry.bytes, t.entry.checksum, missing, damaged);
+		}
+		//split with shared boundary nodes, the tiles lack theirs
+		if (manifest.boundaryBytes >= 0) {
+			check("boundary file", new File(dir, Tile.BOUNDARY_FILE), manifest.boundaryBytes, manifest.boundaryChecksum, missing, damaged);
+		}
+		if (!missing.isEmpty()) {
+			missing.addAll(damaged);
+			throw new FileNotFoundException(problems(missing));
+		}
+		if (!damaged.isEmpty()) {
+			throw new IOException(problems(damaged));
+		}
+	}
+	
+	/**
+	 * check: check a file against its size and (checksums) CRC32
+	 * @param what - how to call it
+	 * @param f
+	 * @param bytes
+	 * @param checksum
+	 * @param missing - receives a message if it is missing
+	 * @param damaged - receives a message if it differs
+	 * @throws IOException
 	 */
-	void newReaders(ArrayList<TileReader> readers) {
+	void check(String what, File f, long bytes, long checksum, ArrayList<String> missing, ArrayList<String> damaged) throws IOException {
+		if (!f.exists()) {
+			missing.add(what + " " + f + " is missing");
+		}
+		else if (f.length() != bytes) {
+			damaged.add(what + " " + f + " has " + f.length() + " bytes, expected " + bytes);
+		}
+		else if (checksums && crc32(f) != checksum) {
+			damaged.add(what + " " + f + " does not match its checksum");
+		}
+	}
+	
+	static String problems(ArrayList<String> list) {
+		String s = list.get(0);
+		
+		for (int i = 1; i < Math.min(list.size(), 10); i++) {
+			s += "; " + list.get(i);
+		}
+		return list.size() > 10 ? s + " and " + (list.size() - 10) + " more" : s;
+	}
+	
+	/**
+	 * crc32: compute the checksum of a file
+	 * @param f
+	 * @return
+	 * @throws IOException
+	 */
+	static long crc32(File f) throws IOException {
+		CheckedInputStream in = new CheckedInputStream(new FileInputStream(f), new CRC32());
+		
 		try {
-			for (TileReader tr : readers) {
-				FileReader fr = new FileReader(tr.inputFile);
-				tr.inputReader = new BufferedReader(fr);
-				tr.previousLine = "";
+			byte[] buf = new byte[65536];
+			
+			while (in.read(buf) >= 0) {
 			}
-		} catch (FileNotFoundException e) {
-			System.err.println("Error: File not found");
+		} finally {
+			in.close();
 		}
+		return in.getChecksum().getValue();
 	}
 }
 
@@ -0,0 +1,379 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * MergeCache - keeps merged files and the indexes of merged tile groups in a directory, under a disk budget
+ *
+ * A merged file is named by a SHA-256 key of what it was made of: path,
+ * size and modification time of each tile and its segments file, those of
+ * the boundary file, and the bbox. A changed tile makes a new key, and the
+ * old entry is evicted in time. The modification time of an entry is its
+ * last use; the least recently used go first when the directory grows
+ * beyond the budget.
+ *
+ * Besides the merged file, a merge keeps an index of each group of
+ * BLOCK x BLOCK tiles of the grid: what its first two passes find in each
+ * tile, the bounds, the nodes with their locations and the ways, along
+ * with the size and modification time of the tile. A merge of an
+ * overlapping set of tiles reads only the tiles that are not in the index
+ * of their group or have changed since, and adds them to it. The output is
+ * the same with or without the cache.
+ *
+ * Merger merger = Merger.fromDirectory("tiles/", bbox, 0);
+ * merger.setCache(new MergeCache("cache/", 1L << 30));
+ */
+public class MergeCache {
+	final static String RESULT_SUFFIX = ".osm", GROUP_SUFFIX = ".group";
+	final static int GROUP_MAGIC = 0x4f534d47;	//"OSMG"
+	//tiles per side of a group
+	final static int BLOCK = 4;
+	//part of each key, to be raised when the output of Merge changes
+	final static int VERSION = 1;
+	
+	File dir;
+	long budget;
+	
+	/**
+	 * Constructor
+	 * @param dir - created if missing
+	 * @param budget - bytes of the entries kept
+	 * @throws IOException
+	 */
+	public MergeCache(String dir, long budget) throws IOException {
+		this.dir = new File(dir);
+		this.budget = budget;
+		
+		if (!this.dir.isDirectory() && !this.dir.mkdirs()) {
+			throw new IOException("cannot create cache directory " + dir);
+		}
+		//the budget may be smaller than last time
+		evict();
+	}
+	
+	/**
+	 * key: key of the merged file of tiles
+	 * @param files - the tiles, in the order of the merge
+	 * @param bbox - or null
+	 * @return
+	 */
+	String key(ArrayList<String> files, float[] bbox) {
+		StringBuilder sb = new StringBuilder("result ").append(VERSION);
+		
+		if (bbox != null) {
+			sb.append(" bbox ").append(bbox[0]).append(',').append(bbox[1]).append(',').append(bbox[2]).append(',').append(bbox[3]);
+		}
+		for (String fn : files) {
+			sb.append('\n').append(new File(fn).getAbsolutePath()).append(' ').append(stamp(fn));
+		}
+		if (!files.isEmpty()) {
+			File f = new File(new File(files.get(0)).getAbsoluteFile().getParent(), Tile.BOUNDARY_FILE);
+			sb.append('\n').append(f.getAbsolutePath()).append(' ').append(stamp(f));
+		}
+		return digest(sb.toString());
+	}
+	
+	/**
+	 * groupKey: key of the index of a group
+	 * @param dir - the tile directory
+	 * @param block - number of the group in the grid
+	 * @return
+	 */
+	String groupKey(String dir, long block) {
+		return digest("group " + VERSION + " " + new File(dir).getAbsolutePath() + " " + block);
+	}
+	
+	/**
+	 * stamp: size and modification time of a tile and its segments file
+	 * @param fn
+	 * @return
+	 */
+	static String stamp(String fn) {
+		return stamp(new File(fn)) + " " + stamp(new File(fn.replaceAll("\\.osm$", "") + Tile.SEGMENTS_SUFFIX));
+	}
+	
+	static String stamp(File f) {
+		return f.exists() ? f.length() + ":" + f.lastModified() : "-";
+	}
+	
+	static String digest(String s) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(s.getBytes("UTF-8"));
+			StringBuilder hex = new StringBuilder();
+			
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b & 0xff));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * find: get an entry and mark it used
+	 * @param key
+	 * @param suffix - RESULT_SUFFIX or GROUP_SUFFIX
+	 * @return null if there is none
+	 */
+	File find(String key, String suffix) {
+		File f = new File(dir, key + suffix);
+		
+		//fails if there is no such entry
+		if (!f.setLastModified(System.currentTimeMillis())) {
+			return null;
+		}
+		return f;
+	}
+	
+	/**
+	 * newEntry: a temporary file for an entry, see put()
+	 * @return
+	 * @throws IOException
+	 */
+	File newEntry() throws IOException {
+		return File.createTempFile("tmp-", ".part", dir);
+	}
+	
+	/**
+	 * put: make a temporary file an entry, then evict entries beyond the budget
+	 * @param tmp - complete and closed
+	 * @param key
+	 * @param suffix
+	 * @throws IOException
+	 */
+	void put(File tmp, String key, String suffix) throws IOException {
+		//concurrent merges of the same tiles make the same entry
+		File f = new File(dir, key + suffix);
+		
+		if (!tmp.renameTo(f)) {
+			tmp.delete();
+			throw new IOException("cannot write cache entry " + f);
+		}
+		evict();
+	}
+	
+	/**
+	 * evict: delete the least recently used entries until the others fit the budget
+	 */
+	synchronized void evict() {
+		File[] files = dir.listFiles();
+		
+		if (files == null) {
+			return;
+		}
+		ArrayList<File> entries = new ArrayList<File>();
+		final HashMap<File, Long> used = new HashMap<File, Long>();
+		long total = 0;
+		
+		for (File f : files) {
+			if (f.getName().endsWith(RESULT_SUFFIX) || f.getName().endsWith(GROUP_SUFFIX)) {
+				entries.add(f);
+				used.put(f, f.lastModified());
+				total += f.length();
+			}
+		}
+		Collections.sort(entries, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return used.get(a).compareTo(used.get(b));
+			}
+		});
+		for (int i = 0; i < entries.size() && total > budget; i++) {
+			long length = entries.get(i).length();
+			
+			if (entries.get(i).delete()) {
+				total -= length;
+			}
+		}
+	}
+	
+	/**
+	 * copy: write an entry to a writer, which is flushed but not closed
+	 * @param f
+	 * @param out
+	 * @throws IOException
+	 */
+	static void copy(File f, Writer out) throws IOException {
+		Reader in = new InputStreamReader(new FileInputStream(f), "UTF-8");
+		
+		try {
+			char[] buf = new char[65536];
+			int n;
+			
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		out.flush();
+	}
+	
+	/**
+	 * readGroup: read the index of a group
+	 * @param f
+	 * @return the index of each tile, by tile number
+	 * @throws IOException
+	 */
+	static TreeMap<Integer, TileIndex> readGroup(File f) throws IOException {
+		TreeMap<Integer, TileIndex> tiles = new TreeMap<Integer, TileIndex>();
+		DataInputStream in = Tile.readTmp(f.getPath());
+		
+		try {
+			if (in.readInt() != GROUP_MAGIC) {
+				throw new IOException("invalid cache entry: " + f);
+			}
+			int count = in.readInt();
+			
+			for (int i = 0; i < count; i++) {
+				int tn = in.readInt();
+				TileIndex t = new TileIndex(in.readUTF());
+				
+				if (in.readBoolean()) {
+					t.bounds = new float[] {in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()};
+				}
+				int nodes = in.readInt();
+				
+				for (int j = 0; j < nodes; j++) {
+					t.addNode(in.readLong(), in.readFloat(), in.readFloat());
+				}
+				int ways = in.readInt();
+				
+				for (int j = 0; j < ways; j++) {
+					t.addWay(in.readLong());
+				}
+				tiles.put(tn, t);
+			}
+		} finally {
+			in.close();
+		}
+		return tiles;
+	}
+	
+	/**
+	 * writeGroup: write the index of a group
+	 * @param f
+	 * @param tiles - the index of each tile, by tile number
+	 * @throws IOException
+	 */
+	static void writeGroup(File f, TreeMap<Integer, TileIndex> tiles) throws IOException {
+		DataOutputStream out = Tile.openTmp(f.getPath());
+		
+		try {
+			out.writeInt(GROUP_MAGIC);
+			out.writeInt(tiles.size());
+			
+			for (Map.Entry<Integer, TileIndex> e : tiles.entrySet()) {
+				TileIndex t = e.getValue();
+				out.writeInt(e.getKey());
+				out.writeUTF(t.stamp);
+				out.writeBoolean(t.bounds != null);
+				
+				if (t.bounds != null) {
+					for (float b : t.bounds) {
+						out.writeFloat(b);
+					}
+				}
+				out.writeInt(t.nodeCount);
+				
+				for (int j = 0; j < t.nodeCount; j++) {
+					out.writeLong(t.nodes[j]);
+					out.writeFloat(t.lats[j]);
+					out.writeFloat(t.lons[j]);
+				}
+				out.writeInt(t.wayCount);
+				
+				for (int j = 0; j < t.wayCount; j++) {
+					out.writeLong(t.ways[j]);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * Group - the input tiles in a group of the grid, and the index of its tiles
+	 */
+	static class Group {
+		String key;
+		ArrayList<TileReader> tiles = new ArrayList<TileReader>();
+		//by tile number: of the cache entry, as far as the tiles are unchanged, and of the tiles read
+		TreeMap<Integer, TileIndex> index = new TreeMap<Integer, TileIndex>();
+		boolean changed = false;
+		
+		Group(String key) {
+			this.key = key;
+		}
+	}
+	
+	/**
+	 * TileIndex - what the first two passes of Merge find in a tile
+	 */
+	static class TileIndex {
+		//of the tile when it was read, see stamp()
+		String stamp;
+		//of the <bounds> tag, null without
+		float[] bounds;
+		//in the order of the tile, all of them (clipping to a bbox is up to the merge)
+		long[] nodes = new long[1024];
+		float[] lats = new float[1024], lons = new float[1024];
+		int nodeCount = 0;
+		long[] ways = new long[256];
+		int wayCount = 0;
+		
+		TileIndex(String stamp) {
+			this.stamp = stamp;
+		}
+		
+		void addNode(long id, float lat, float lon) {
+			if (nodeCount == nodes.length) {
+				nodes = Arrays.copyOf(nodes, nodes.length * 2);
+				lats = Arrays.copyOf(lats, nodes.length);
+				lons = Arrays.copyOf(lons, nodes.length);
+			}
+			nodes[nodeCount] = id;
+			lats[nodeCount] = lat;
+			lons[nodeCount] = lon;
+			nodeCount++;
+		}
+		
+		void addWay(long id) {
+			if (wayCount == ways.length) {
+				ways = Arrays.copyOf(ways, ways.length * 2);
+			}
+			ways[wayCount++] = id;
+		}
+	}
+}
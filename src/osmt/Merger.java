@@ -0,0 +1,221 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+
+/**
+ * Merger - merge tiles into one OSM file, for embedding osmt in other programs
+ *
+ * Like Splitter, each instance has its own configuration; errors are thrown
+ * and progress goes to the log stream.
+ *
+ * Merger merger = Merger.fromDirectory("tiles/", new float[] {52.3F, 13.0F, 52.7F, 13.8F}, 0);
+ * merger.merge(writer);	//or merger.merge("berlin.osm")
+ */
+public class Merger {
+	ArrayList<String> inputFiles;
+	float[] bbox;
+	MergeCache cache;
+	boolean checksums = false;
+	Manifest manifest;
+	//the merge after check(), until merge() takes it
+	Merge checked;
+	PrintStream log = System.out;
+	Metrics metrics = new Metrics();
+	
+	/**
+	 * Constructor
+	 * @param inputFiles - tile files
+	 */
+	public Merger(ArrayList<String> inputFiles) {
+		this.inputFiles = inputFiles;
+	}
+	
+	/**
+	 * fromDirectory: merge the tiles of a directory which intersect a bbox
+	 * @param dir
+	 * @param bbox - {minlat, minlon, maxlat, maxlon}, the output is clipped to it
+	 * @param tilesize - tile size of the directory, 0 to read it from the tiles
+	 * @return
+	 * @throws IOException if there are no such tiles
+	 */
+	public static Merger fromDirectory(String dir, float[] bbox, float tilesize) throws IOException {
+		if (tilesize == 0) {
+			tilesize = Merge.readTilesize(dir);
+		}
+		if (tilesize <= 0) {
+			throw new IOException("no tiles found in " + dir);
+		}
+		ArrayList<String> files = Merge.tilesInBbox(dir, bbox, tilesize);
+		
+		if (files.isEmpty()) {
+			throw new IOException("no tiles intersect the bbox");
+		}
+		Merger merger = new Merger(files);
+		merger.bbox = bbox;
+		return merger;
+	}
+	
+	public void setBbox(float[] bbox) {
+		this.bbox = bbox;
+	}
+	
+	/**
+	 * setCache: keep the merged file and the indexes of the tile groups, and use them when the tiles are merged again
+	 * @param cache - null for none
+	 */
+	public void setCache(MergeCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * setManifest: use a manifest of the tile directory loaded already instead of reading it
+	 * @param manifest
+	 */
+	public void setManifest(Manifest manifest) {
+		this.manifest = manifest;
+	}
+	
+	/**
+	 * setChecksums: check the CRC32 of each tile against the manifest before merging
+	 * @param checksums
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+	
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * merge: merge to a file
+	 * @param outputFile - file name, "-" for stdout
+	 * @throws IOException
+	 */
+	public void merge(String outputFile) throws IOException {
+		if (cache == null) {
+			take(outputFile).merge();
+			return;
+		}
+		Writer out;
+		
+		try {
+			out = AsyncWriter.open(outputFile);
+		} catch (IOException e) {
+			throw new IOException("Cannot open file for writing: " + outputFile, e);
+		}
+		try {
+			merge(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * merge: merge to a writer, which is flushed but not closed
+	 * @param out
+	 * @throws IOException
+	 */
+	public void merge(Writer out) throws IOException {
+		if (cache == null) {
+			Merge merge = take(null);
+			merge.output = out;
+			merge.merge();
+			return;
+		}
+		String key = cache.key(inputFiles, bbox);
+		File f = cache.find(key, MergeCache.RESULT_SUFFIX);
+		
+		if (f != null) {
+			log.println("merged file of " + inputFiles.size() + " tiles found in the cache");
+			metrics.add("osmt_cache_hits_total", 1);
+			MergeCache.copy(f, out);
+			return;
+		}
+		metrics.add("osmt_cache_misses_total", 1);
+		Merge merge = take(null);
+		merge.cache = cache;
+		File tmp = cache.newEntry();
+		TeeWriter tee = new TeeWriter(out, AsyncWriter.open(tmp.getPath()));
+		merge.output = tee;
+		
+		boolean done = false;
+		
+		try {
+			merge.merge();
+			done = true;
+		} finally {
+			tee.close();
+			
+			if (!done) {
+				tmp.delete();
+			}
+		}
+		try {
+			cache.put(tmp, key, MergeCache.RESULT_SUFFIX);
+		} catch (IOException e) {
+			//the output is complete
+			System.err.println("Warning: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * check: check the tiles against the manifest before anything is written, e.g. to answer
+	 * with an error instead of a truncated document; merge() checks them otherwise
+	 * @throws FileNotFoundException if tiles to be merged are missing
+	 * @throws IOException if tiles do not match the manifest
+	 */
+	public void check() throws IOException {
+		if (checked == null) {
+			checked = create();
+		}
+	}
+	
+	Merge create() throws IOException {
+		Merge merge = new Merge(inputFiles, null, bbox, manifest);
+		merge.log = log;
+		merge.metrics = metrics;
+		merge.checksums = checksums;
+		merge.checkTiles();
+		return merge;
+	}
+	
+	/**
+	 * take: get the checked merge, or create and check one
+	 * @param outputFile
+	 * @return
+	 * @throws IOException
+	 */
+	Merge take(String outputFile) throws IOException {
+		Merge merge = checked != null ? checked : create();
+		checked = null;
+		merge.outputFile = outputFile;
+		return merge;
+	}
+}
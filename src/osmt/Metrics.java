@@ -0,0 +1,267 @@
+/*
+ *	This file is part of OSMT.
+ *	
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics - counters, gauges and phase timers of a split or merge
+ *
+ * Names follow the Prometheus conventions, labels are part of the name,
+ * e.g. osmt_tile_bytes_written_total{tn="32533"}. The registry can be
+ * exported to a file periodically, as JSON or in the Prometheus text format.
+ */
+public class Metrics {
+	ConcurrentSkipListMap<String, AtomicLong> counters = new ConcurrentSkipListMap<String, AtomicLong>();
+	ConcurrentSkipListMap<String, AtomicLong> gauges = new ConcurrentSkipListMap<String, AtomicLong>();
+	
+	//input progress
+	AtomicLong bytesRead;
+	long bytesTotal = 0;
+	long startTime = System.currentTimeMillis();
+	
+	String exportFile, exportFormat;
+	ScheduledExecutorService exporter;
+	
+	/**
+	 * counter: get or create a counter
+	 * @param name
+	 * @return
+	 */
+	public AtomicLong counter(String name) {
+		AtomicLong c = counters.get(name);
+		
+		if (c == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			c = counters.get(name);
+		}
+		return c;
+	}
+	
+	/**
+	 * gauge: get or create a gauge
+	 * @param name
+	 * @return
+	 */
+	public AtomicLong gauge(String name) {
+		AtomicLong g = gauges.get(name);
+		
+		if (g == null) {
+			gauges.putIfAbsent(name, new AtomicLong());
+			g = gauges.get(name);
+		}
+		return g;
+	}
+	
+	/**
+	 * add: add to a counter
+	 * @param name
+	 * @param delta
+	 */
+	public void add(String name, long delta) {
+		counter(name).addAndGet(delta);
+	}
+	
+	/**
+	 * time: add the time since start (System.nanoTime()) to the timer of a phase
+	 * @param phase
+	 * @param start
+	 */
+	public void time(String phase, long start) {
+		add("osmt_phase_nanoseconds_total{phase=\"" + phase + "\"}", System.nanoTime() - start);
+	}
+	
+	/**
+	 * setInput: track the progress of reading the input
+	 * @param bytesRead - counter of the bytes read so far
+	 * @param bytesTotal - size of the input, 0 if unknown
+	 */
+	public void setInput(AtomicLong bytesRead, long bytesTotal) {
+		this.bytesRead = bytesRead;
+		this.bytesTotal = bytesTotal;
+		counters.put("osmt_bytes_read_total", bytesRead);
+		startTime = System.currentTimeMillis();
+	}
+	
+	/**
+	 * progress: share of the input read so far
+	 * @return 0..1, or -1 if unknown
+	 */
+	public double progress() {
+		if (bytesRead == null || bytesTotal <= 0) {
+			return -1;
+		}
+		return Math.min(1.0, (double)bytesRead.get() / bytesTotal);
+	}
+	
+	/**
+	 * eta: estimated time until the input is read
+	 * @return seconds, or -1 if unknown
+	 */
+	public long eta() {
+		double p = progress();
+		
+		if (p <= 0) {
+			return -1;
+		}
+		long elapsed = System.currentTimeMillis() - startTime;
+		return (long)(elapsed * (1 - p) / p / 1000);
+	}
+	
+	/**
+	 * progressLine: human readable progress, e.g. for the console
+	 * @return
+	 */
+	public String progressLine() {
+		long read = bytesRead == null ? 0 : bytesRead.get();
+		double p = progress();
+		
+		if (p < 0) {
+			return "read " + read / 1048576 + " MB";
+		}
+		long eta = eta();
+		return String.format("read %d of %d MB (%.1f%%), ETA %d:%02d:%02d", read / 1048576, bytesTotal / 1048576, p * 100,
+				eta / 3600, eta / 60 % 60, eta % 60);
+	}
+	
+	/**
+	 * snapshot: all metrics including heap and GC state
+	 * @return
+	 */
+	public ConcurrentSkipListMap<String, Long> snapshot() {
+		ConcurrentSkipListMap<String, Long> result = new ConcurrentSkipListMap<String, Long>();
+		
+		for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+			result.put(e.getKey(), e.getValue().get());
+		}
+		for (Map.Entry<String, AtomicLong> e : gauges.entrySet()) {
+			result.put(e.getKey(), e.getValue().get());
+		}
+		
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		result.put("osmt_heap_used_bytes", heap.getUsed());
+		result.put("osmt_heap_committed_bytes", heap.getCommitted());
+		result.put("osmt_heap_max_bytes", heap.getMax());
+		
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			String label = "{gc=\"" + gc.getName() + "\"}";
+			result.put("osmt_gc_collections_total" + label, gc.getCollectionCount());
+			result.put("osmt_gc_milliseconds_total" + label, gc.getCollectionTime());
+		}
+		
+		double p = progress();
+		if (p >= 0) {
+			result.put("osmt_input_bytes", bytesTotal);
+			result.put("osmt_progress_permille", (long)(p * 1000));
+			result.put("osmt_eta_seconds", eta());
+		}
+		result.put("osmt_uptime_seconds", (System.currentTimeMillis() - startTime) / 1000);
+		return result;
+	}
+	
+	/**
+	 * export: write a snapshot to a file
+	 *
+	 * The file is written to a temporary name and renamed, so readers never
+	 * see a partial file.
+	 * @param fn
+	 * @param format - "json" or "prometheus"
+	 * @throws IOException
+	 */
+	public void export(String fn, String format) throws IOException {
+		File tmp = new File(fn + ".tmp");
+		Writer w = new FileWriter(tmp);
+		
+		try {
+			if (format.equals("prometheus")) {
+				for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+					w.write(e.getKey() + " " + e.getValue() + "\n");
+				}
+			}
+			else {
+				w.write("{\"timestamp\": " + System.currentTimeMillis() + ", \"metrics\": {");
+				boolean first = true;
+				
+				for (Map.Entry<String, Long> e : snapshot().entrySet()) {
+					w.write((first ? "" : ",") + "\n  \"" + e.getKey().replace("\"", "\\\"") + "\": " + e.getValue());
+					first = false;
+				}
+				w.write("\n}}\n");
+			}
+		} finally {
+			w.close();
+		}
+		if (!tmp.renameTo(new File(fn))) {
+			throw new IOException("cannot rename " + tmp + " to " + fn);
+		}
+	}
+	
+	/**
+	 * startExport: export to a file in an interval, until stopExport() is called
+	 * @param fn
+	 * @param format - "json" or "prometheus"
+	 * @param intervalSeconds
+	 */
+	public void startExport(String fn, String format, int intervalSeconds) {
+		exportFile = fn;
+		exportFormat = format;
+		exporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "osmt-metrics");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		exporter.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					export(exportFile, exportFormat);
+				} catch (IOException e) {
+					System.err.println("error writing metrics to " + exportFile + ": " + e.getMessage());
+				}
+			}
+		}, 0, intervalSeconds, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * stopExport: stop exporting and write the final state
+	 */
+	public void stopExport() {
+		if (exporter == null) {
+			return;
+		}
+		exporter.shutdown();
+		
+		try {
+			exporter.awaitTermination(10, TimeUnit.SECONDS);
+			export(exportFile, exportFormat);
+		} catch (Exception e) {
+			System.err.println("error writing metrics to " + exportFile + ": " + e.getMessage());
+		}
+		exporter = null;
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+/**
+ * NodeStore - the nodes of a tile, in memory until Split spills them
+ *
+ * Nodes are kept as Element records in a TreeMap. spill() writes the map as
+ * a run sorted by ID and empties it; a sparse index of every INDEX_STEP-th
+ * ID keeps lookups of spilled nodes to one short read. The tile's nodes are
+ * written by merging the runs and the map by ID; beyond ExternalSort.FAN_IN
+ * runs, groups of them are merged into longer runs first, so no merge reads
+ * more than FAN_IN runs at a time.
+ */
+public class NodeStore {
+	//heap cost of a map entry besides the record: TreeMap entry, Long, array header
+	final static int ENTRY_OVERHEAD = 80;
+	final static int INDEX_STEP = 64;
+	//runs kept open for lookups per pool, the least recently used are closed beyond
+	final static int MAX_OPEN_RUNS = 64;
+	
+	TreeMap<Long, byte[]> map = new TreeMap<Long, byte[]>();
+	ArrayList<Run> runs = new ArrayList<Run>();
+	String runPrefix;
+	//runs written, for their names
+	int runCount = 0;
+	long bytes = 0;
+	//nodes rendered by writeTo
+	long written;
+	//runs open for lookups, in the order of their last use; Split shares one among its tiles
+	LinkedHashMap<Run, Run> openRuns = openRuns();
+	
+	/**
+	 * Constructor
+	 * @param runPrefix - file name prefix of the runs
+	 */
+	public NodeStore(String runPrefix) {
+		this.runPrefix = runPrefix;
+	}
+	
+	/**
+	 * put: store a node, replacing an earlier copy
+	 * @param id
+	 * @param body - Element record
+	 * @return change of the heap used
+	 */
+	public long put(long id, byte[] body) {
+		byte[] old = map.put(id, body);
+		long delta = old == null ? body.length + ENTRY_OVERHEAD : body.length - old.length;
+		bytes += delta;
+		return delta;
+	}
+	
+	/**
+	 * get: get a node from memory or from a run
+	 * @param id
+	 * @return Element record, null if the tile does not have the node
+	 * @throws IOException
+	 */
+	public byte[] get(long id) throws IOException {
+		byte[] body = map.get(id);
+		
+		//later runs hold newer copies
+		for (int i = runs.size() - 1; i >= 0 && body == null; i--) {
+			body = runs.get(i).get(id, openRuns);
+		}
+		return body;
+	}
+	
+	/**
+	 * spill: write the nodes in memory to a new run
+	 * @return bytes written
+	 * @throws IOException
+	 */
+	public long spill() throws IOException {
+		Run run = new Run(runPrefix + runCount++ + ".run", map.size());
+		DataOutputStream out = Tile.openTmp(run.fn);
+		long offset = 0;
+		int n = 0;
+		
+		try {
+			for (Map.Entry<Long, byte[]> e : map.entrySet()) {
+				if (n % INDEX_STEP == 0) {
+					run.ids[n / INDEX_STEP] = e.getKey();
+					run.offsets[n / INDEX_STEP] = offset;
+				}
+				out.writeInt(e.getValue().length);
+				out.write(e.getValue());
+				offset += e.getValue().length + 4;
+				n++;
+			}
+		} finally {
+			out.close();
+		}
+		run.offsets[run.ids.length] = offset;
+		runs.add(run);
+		map.clear();
+		bytes = 0;
+		return offset;
+	}
+	
+	/**
+	 * writeTo: render all nodes in ID order, merging the runs and the nodes in memory
+	 * @param w
+	 * @return number of nodes rendered
+	 * @throws IOException
+	 */
+	public long writeTo(Writer w) throws IOException {
+		return writeTo(w, new long[0], 0);
+	}
+	
+	/**
+	 * writeTo: render the nodes in ID order but some
+	 * @param w
+	 * @param except - IDs of the nodes left out, ascending
+	 * @param exceptCount - number of them
+	 * @return number of nodes rendered, each ID once
+	 * @throws IOException
+	 */
+	public long writeTo(Writer w, long[] except, int exceptCount) throws IOException {
+		//the files of the lookups are not needed for the merge, a lookup opens them again
+		for (Run run : openRuns.keySet()) {
+			run.close();
+		}
+		openRuns.clear();
+		
+		while (runs.size() > ExternalSort.FAN_IN) {
+			ArrayList<Run> merged = new ArrayList<Run>();
+			
+			for (int i = 0; i < runs.size(); i += ExternalSort.FAN_IN) {
+				merged.add(merge(runs.subList(i, Math.min(i + ExternalSort.FAN_IN, runs.size()))));
+			}
+			runs = merged;
+		}
+		PriorityQueue<RunReader> queue = open(runs);
+		long previous = Long.MIN_VALUE;
+		written = 0;
+		
+		try {
+			for (Map.Entry<Long, byte[]> e : map.entrySet()) {
+				//runs first, a copy in memory is the newest
+				while (!queue.isEmpty() && queue.peek().id < e.getKey()) {
+					previous = writeNext(queue, w, previous, except, exceptCount);
+				}
+				while (!queue.isEmpty() && queue.peek().id == e.getKey()) {
+					previous = skipNext(queue);
+				}
+				if (exceptCount == 0 || Arrays.binarySearch(except, 0, exceptCount, e.getKey()) < 0) {
+					Element.decode(e.getValue()).render(w);
+					written++;
+				}
+				previous = e.getKey();
+			}
+			while (!queue.isEmpty()) {
+				previous = writeNext(queue, w, previous, except, exceptCount);
+			}
+		} finally {
+			for (RunReader r : queue) {
+				r.in.close();
+			}
+		}
+		return written;
+	}
+	
+	/**
+	 * merge: merge consecutive runs into a new one, keeping the newest copy of a node, and remove them
+	 * @param group
+	 * @return the new run
+	 * @throws IOException
+	 */
+	Run merge(List<Run> group) throws IOException {
+		if (group.size() == 1) {
+			return group.get(0);
+		}
+		int capacity = 0;
+		
+		for (Run run : group) {
+			capacity += run.ids.length * INDEX_STEP;
+		}
+		Run run = new Run(runPrefix + runCount++ + ".run", capacity);
+		PriorityQueue<RunReader> queue = open(group);
+		long offset = 0, previous = Long.MIN_VALUE;
+		int n = 0;
+		
+		try {
+			DataOutputStream out = Tile.openTmp(run.fn);
+			
+			try {
+				while (!queue.isEmpty()) {
+					RunReader r = queue.peek();
+					
+					//the newest run wins among equal IDs, see RunReader.compareTo
+					if (r.id != previous) {
+						if (n % INDEX_STEP == 0) {
+							run.ids[n / INDEX_STEP] = r.id;
+							run.offsets[n / INDEX_STEP] = offset;
+						}
+						out.writeInt(r.body.length);
+						out.write(r.body);
+						offset += r.body.length + 4;
+						n++;
+					}
+					previous = skipNext(queue);
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			for (RunReader r : queue) {
+				r.in.close();
+			}
+		}
+		run.ids = Arrays.copyOf(run.ids, (n + INDEX_STEP - 1) / INDEX_STEP);
+		run.offsets = Arrays.copyOf(run.offsets, run.ids.length + 1);
+		run.offsets[run.ids.length] = offset;
+		
+		for (Run r : group) {
+			r.close();
+			new File(r.fn).delete();
+		}
+		return run;
+	}
+	
+	/**
+	 * open: open runs for a merge, the later ones newer
+	 * @param group
+	 * @return readers of the runs which are not empty
+	 * @throws IOException
+	 */
+	static PriorityQueue<RunReader> open(List<Run> group) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>();
+		
+		try {
+			for (int i = 0; i < group.size(); i++) {
+				RunReader r = new RunReader(Tile.readTmp(group.get(i).fn), i);
+				if (r.next()) {
+					queue.add(r);
+				}
+				else {
+					r.in.close();
+				}
+			}
+		} catch (IOException e) {
+			for (RunReader r : queue) {
+				r.in.close();
+			}
+			throw e;
+		}
+		return queue;
+	}
+	
+	/**
+	 * writeNext: render the smallest node of the runs, unless it was rendered already
+	 */
+	long writeNext(PriorityQueue<RunReader> queue, Writer w, long previous, long[] except, int exceptCount) throws IOException {
+		RunReader r = queue.peek();
+		
+		if (r.id != previous && (exceptCount == 0 || Arrays.binarySearch(except, 0, exceptCount, r.id) < 0)) {
+			//the newest run wins among equal IDs, see RunReader.compareTo
+			Element.decode(r.body).render(w);
+			written++;
+		}
+		return skipNext(queue);
+	}
+	
+	static long skipNext(PriorityQueue<RunReader> queue) throws IOException {
+		RunReader r = queue.poll();
+		long id = r.id;
+		
+		if (r.next()) {
+			queue.add(r);
+		}
+		else {
+			r.in.close();
+		}
+		return id;
+	}
+	
+	public long size() {
+		return bytes;
+	}
+	
+	/**
+	 * close: close the runs opened for lookups
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		for (Run run : runs) {
+			openRuns.remove(run);
+			run.close();
+		}
+	}
+	
+	/**
+	 * openRuns: a new pool of runs open for lookups, to be used by one thread
+	 * @return
+	 */
+	static LinkedHashMap<Run, Run> openRuns() {
+		return new LinkedHashMap<Run, Run>(16, 0.75F, true);
+	}
+	
+	/**
+	 * Run - a spilled, sorted run with its sparse index
+	 */
+	static class Run {
+		String fn;
+		long[] ids;
+		//offsets of the indexed records, and the end of the run
+		long[] offsets;
+		//opened on a lookup, kept open for the next while in the pool
+		FileChannel channel;
+		ByteBuffer span;
+		
+		Run(String fn, int count) {
+			this.fn = fn;
+			ids = new long[(count + INDEX_STEP - 1) / INDEX_STEP];
+			offsets = new long[ids.length + 1];
+		}
+		
+		/**
+		 * get: look up a node
+		 * @param id
+		 * @param openRuns - pool of open runs, this one is added to it
+		 * @return Element record, null if the run does not have the node
+		 * @throws IOException
+		 */
+		byte[] get(long id, LinkedHashMap<Run, Run> openRuns) throws IOException {
+			if (ids.length == 0 || id < ids[0]) {
+				return null;
+			}
+			//last index entry <= id
+			int lo = 0, hi = ids.length - 1;
+			
+			while (lo < hi) {
+				int mid = (lo + hi + 1) >>> 1;
+				if (ids[mid] <= id) {
+					lo = mid;
+				}
+				else {
+					hi = mid - 1;
+				}
+			}
+			if (openRuns.get(this) == null) {
+				channel = new RandomAccessFile(fn, "r").getChannel();
+				openRuns.put(this, this);
+				
+				if (openRuns.size() > MAX_OPEN_RUNS) {
+					Iterator<Run> eldest = openRuns.keySet().iterator();
+					eldest.next().close();
+					eldest.remove();
+				}
+			}
+			//the INDEX_STEP records from the index entry on, in one positional read
+			int length = (int)(offsets[lo + 1] - offsets[lo]);
+			
+			if (span == null || span.capacity() < length) {
+				span = ByteBuffer.allocate(Math.max(length, 8192));
+			}
+			span.clear();
+			span.limit(length);
+			
+			while (span.hasRemaining()) {
+				if (channel.read(span, offsets[lo] + span.position()) < 0) {
+					throw new EOFException("run " + fn + " is truncated");
+				}
+			}
+			span.flip();
+			
+			while (span.remaining() >= 12) {
+				int recordLength = span.getInt();
+				//the record starts with the ID, see Element.id
+				long recordId = span.getLong(span.position());
+				
+				if (recordId > id) {
+					break;
+				}
+				if (recordId == id) {
+					byte[] body = new byte[recordLength];
+					span.get(body);
+					return body;
+				}
+				span.position(span.position() + recordLength);
+			}
+			return null;
+		}
+		
+		void close() throws IOException {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+	
+	/**
+	 * RunReader - reads a run in order, for the k-way merge
+	 */
+	static class RunReader implements Comparable<RunReader> {
+		DataInputStream in;
+		int run;
+		long id;
+		byte[] body;
+		
+		RunReader(DataInputStream in, int run) {
+			this.in = in;
+			this.run = run;
+		}
+		
+		boolean next() throws IOException {
+			body = Element.readRecord(in);
+			
+			if (body != null) {
+				id = Element.id(body);
+			}
+			return body != null;
+		}
+		
+		public int compareTo(RunReader o) {
+			if (id != o.id) {
+				return id < o.id ? -1 : 1;
+			}
+			return o.run - run;
+		}
+	}
+}
@@ -20,17 +20,96 @@
 package osmt;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
 
 public class NodeToTileNumber {
+	//largest read of getTn(long[], ...)
+	final static int SPAN = 65536;
+	
 	private RandomAccessFile node2tn;
-	public static float tilesizeLat, tilesizeLon;
+	//of the index file, for the splits writing it at the same time
+	private Object lock;
+	private static HashMap<String, Object> locks = new HashMap<String, Object>();
+	public final float tilesizeLat, tilesizeLon;
+	
+	//finer grid whose index this grid reads, and how many of its tiles make one of ours per axis
+	private NodeToTileNumber base;
+	private int ratio = 1;
+	
+	//JFR event of the current block of lookups
+	private Events.IndexLookups lookups = new Events.IndexLookups();
 
-	public NodeToTileNumber(String node2tnFile, float tilesize) throws Exception {
+	public NodeToTileNumber(String node2tnFile, float tilesize) throws IOException {
 		node2tn = new RandomAccessFile(node2tnFile, "rw");
+		lock = lock(node2tnFile);
 		tilesizeLat = tilesize;
 		tilesizeLon = tilesize;
 	}
 	
+	/**
+	 * lock - the object to lock for an index file, the same for each path to it
+	 * @param node2tnFile
+	 * @return
+	 * @throws IOException
+	 */
+	private static synchronized Object lock(String node2tnFile) throws IOException {
+		String path = new File(node2tnFile).getCanonicalPath();
+		Object lock = locks.get(path);
+		
+		if (lock == null) {
+			lock = new Object();
+			locks.put(path, lock);
+		}
+		return lock;
+	}
+	
+	/**
+	 * Constructor - tile arithmetic only, without an index file
+	 * @param tilesize
+	 */
+	public NodeToTileNumber(float tilesize) {
+		tilesizeLat = tilesize;
+		tilesizeLon = tilesize;
+	}
+	
+	/**
+	 * Constructor - a coarser grid on the index of a finer one; the index is
+	 * written by base only, tile numbers are derived from those of base
+	 * @param base
+	 * @param tilesize - must be nested with the tile size of base, see nested()
+	 */
+	public NodeToTileNumber(NodeToTileNumber base, float tilesize) {
+		this(tilesize);
+		this.base = base;
+		ratio = Math.round(tilesize / base.tilesizeLat);
+	}
+	
+	/**
+	 * nested - whether the tiles of the coarse grid are made of whole tiles of the fine grid
+	 * @param fine
+	 * @param coarse
+	 * @return
+	 */
+	public static boolean nested(float fine, float coarse) {
+		int ratio = Math.round(coarse / fine);
+		return ratio >= 1 && Math.abs(coarse - ratio * fine) < fine / 1000 && (int)(180/fine) == (int)(180/coarse) * ratio;
+	}
+	
+	/**
+	 * fromBase - tile number of the tile containing a tile of base
+	 * @param tn - tile number in base
+	 * @return
+	 */
+	private int fromBase(int tn) {
+		if (tn <= 0) {
+			return tn;
+		}
+		int rows = (int)(180/base.tilesizeLon);
+		return ((tn - 1) % rows) / ratio + ((tn - 1) / rows) / ratio * (int)(180/tilesizeLon) + 1;
+	}
+	
 	/**
 	 * setTn - set tile number calculated from lat/lon
 	 * @param nodeId
@@ -40,14 +119,19 @@ public class NodeToTileNumber {
 	 * @throws IOException
 	 */
 	public int setTn(long nodeId, float lat, float lon) throws IOException {
+		boolean coordinatesValid = 90.0 >= lat && -90.0 <= lat && -180.0 <= lon && 180.0 >= lon;
+		
+		if (base != null) {
+			//base writes the index
+			return coordinatesValid ? fromBase(((lat+lon) != 0) ? base.calcTn(lat, lon) : -1) : -1;
+		}
+		
 		//4 bytes for tile number
 		long seekPos = nodeId*4;
 		
 		if (this.node2tn.length() < seekPos) {
-			this.node2tn.setLength(seekPos + (4*1024*1024*100));
+			grow(seekPos + (4*1024*1024*100));
 		}
-		
-		boolean coordinatesValid = 90.0 >= lat && -90.0 <= lat && -180.0 <= lon && 180.0 >= lon;
 
 		if (coordinatesValid) {
 			int tn = ((lat+lon) != 0) ? calcTn(lat, lon) : -1;
@@ -58,6 +142,17 @@ public class NodeToTileNumber {
 		return -1;
 	}
 	
+	/**
+	 * tileOf - tile number of a location as setTn() finds it, without the index
+	 * @param lat
+	 * @param lon
+	 * @return
+	 */
+	public int tileOf(float lat, float lon) {
+		boolean coordinatesValid = 90.0 >= lat && -90.0 <= lat && -180.0 <= lon && 180.0 >= lon;
+		return coordinatesValid && (lat+lon) != 0 ? calcTn(lat, lon) : -1;
+	}
+	
 	/**
 	 * setTn - set tile number explicitly
 	 * @param nodeId
@@ -68,7 +163,7 @@ public class NodeToTileNumber {
 		long seekPos = nodeId*4;
 		
 		if (this.node2tn.length() < seekPos) {
-			this.node2tn.setLength(seekPos + (4*1024*1024*100));
+			grow(seekPos + (4*1024*1024*100));
 		}
 
 		this.node2tn.seek(seekPos);
@@ -79,21 +174,143 @@ public class NodeToTileNumber {
 	 * getTn - get tile number
 	 * @param nodeId
 	 * @return
-	 * @throws Exception
+	 * @throws IOException
 	 */
-	public int getTn(long nodeId) throws Exception {
+	public int getTn(long nodeId) throws IOException {
+		if (base != null) {
+			return fromBase(base.getTn(nodeId));
+		}
+		if (!lookups.isEnabled()) {
+			node2tn.seek(nodeId*4);
+			return node2tn.readInt();
+		}
+		
+		if (lookups.lookups == 0) {
+			lookups.begin();
+		}
+		long start = System.nanoTime();
 		node2tn.seek(nodeId*4);
 		int tn = node2tn.readInt();
+		
+		lookups.lookupNanos += System.nanoTime() - start;
+		lookups.minId = Math.min(lookups.minId, nodeId);
+		lookups.maxId = Math.max(lookups.maxId, nodeId);
+		if (tn <= 0) lookups.misses++;
+		
+		if (++lookups.lookups == Events.IndexLookups.BLOCK) {
+			lookups.commit();
+			lookups = new Events.IndexLookups();
+		}
 		return tn;
 	}
 	
+	/**
+	 * getTn - get the tile numbers of ascending node IDs, reading each span of the
+	 * index once; safe to call from several threads for different ranges
+	 * @param ids - ascending
+	 * @param from - first index into ids
+	 * @param to - index after the last
+	 * @param tns - receives the tile numbers, 0 for IDs beyond the index
+	 * @throws IOException
+	 */
+	public void getTn(long[] ids, int from, int to, int[] tns) throws IOException {
+		if (base != null) {
+			base.getTn(ids, from, to, tns);
+			
+			for (int i = from; i < to; i++) {
+				tns[i] = fromBase(tns[i]);
+			}
+			return;
+		}
+		Events.IndexLookups event = new Events.IndexLookups();
+		event.begin();
+		long start = System.nanoTime();
+		int misses = 0;
+		FileChannel channel = node2tn.getChannel();
+		long length = channel.size();
+		ByteBuffer buf = ByteBuffer.allocate(SPAN);
+		long bufStart = 0, bufEnd = 0;
+		
+		for (int i = from; i < to; i++) {
+			long pos = ids[i] * 4;
+			
+			if (pos < 0 || pos + 4 > length) {
+				tns[i] = 0;
+				misses++;
+				continue;
+			}
+			if (pos < bufStart || pos + 4 > bufEnd) {
+				//read up to the last ID which fits into the buffer
+				int last = i;
+				while (last + 1 < to && ids[last + 1] * 4 + 4 - pos <= SPAN && ids[last + 1] * 4 + 4 <= length) {
+					last++;
+				}
+				buf.clear();
+				buf.limit((int)(ids[last] * 4 + 4 - pos));
+				
+				while (buf.hasRemaining()) {
+					if (channel.read(buf, pos + buf.position()) < 0) {
+						break;
+					}
+				}
+				bufStart = pos;
+				bufEnd = pos + buf.position();
+			}
+			tns[i] = buf.getInt((int)(pos - bufStart));
+			if (tns[i] <= 0) misses++;
+		}
+		if (event.shouldCommit()) {
+			event.lookups = to - from;
+			event.lookupNanos = System.nanoTime() - start;
+			event.misses = misses;
+			event.minId = to > from ? ids[from] : 0;
+			event.maxId = to > from ? ids[to - 1] : 0;
+			event.commit();
+		}
+	}
+	
+	/**
+	 * grow - extend the index file, never shrinking it; several splits may
+	 * write to the same file at the same time
+	 * @param length
+	 * @throws IOException
+	 */
+	private void grow(long length) throws IOException {
+		synchronized (lock) {
+			if (node2tn.length() >= length) {
+				return;
+			}
+			Events.IndexGrowth event = new Events.IndexGrowth();
+			event.begin();
+			event.oldLength = node2tn.length();
+			node2tn.setLength(length);
+		
+			if (event.shouldCommit()) {
+				event.newLength = length;
+				event.commit();
+			}
+		}
+	}
+	
 	/**
 	 * calcTn - calculate tile number from lat/lon
 	 * @param lat
 	 * @param lon
 	 * @return
 	 */
-	public static int calcTn(float lat, float lon) {
+	public int calcTn(float lat, float lon) {
+		return calcTn(lat, lon, tilesizeLat, tilesizeLon);
+	}
+	
+	/**
+	 * calcTn - calculate tile number from lat/lon for another tile size
+	 * @param lat
+	 * @param lon
+	 * @param tilesizeLat
+	 * @param tilesizeLon
+	 * @return
+	 */
+	public static int calcTn(float lat, float lon, float tilesizeLat, float tilesizeLon) {
 		return ((int)((lat + 90)/tilesizeLat) + (int)((lon + 180)/tilesizeLon) * (int)(180/tilesizeLon)) + 1;
 	}
 	
@@ -102,11 +319,37 @@ public class NodeToTileNumber {
 	 * @param tn
 	 * @return
 	 */
-	public static float[] getBounds(int tn) {
+	public float[] getBounds(int tn) {
+		return getBounds(tn, tilesizeLat, tilesizeLon);
+	}
+	
+	/**
+	 * getBounds - calculate bounding box from tile number for another tile size
+	 * @param tn
+	 * @param tilesizeLat
+	 * @param tilesizeLon
+	 * @return
+	 */
+	public static float[] getBounds(int tn, float tilesizeLat, float tilesizeLon) {
 		float minlat = ((tn - 1) % (180/tilesizeLon)) * tilesizeLat - 90;
 		float minlon = (int)((tn - 1) * (tilesizeLon/180)) * tilesizeLat - 180;
 		float maxlat = minlat + tilesizeLat;
 		float maxlon = minlon + tilesizeLon;
 		return new float[] {minlat, minlon, maxlat, maxlon};
 	}
+	
+	/**
+	 * close - close the index file, committing the last block of lookups
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (lookups.lookups > 0 && lookups.shouldCommit()) {
+			lookups.commit();
+		}
+		lookups = new Events.IndexLookups();
+		
+		if (node2tn != null) {
+			node2tn.close();
+		}
+	}
 }
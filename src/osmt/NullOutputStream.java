@@ -0,0 +1,29 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.OutputStream;
+
+/**
+ * NullOutputStream - discards everything
+ */
+class NullOutputStream extends OutputStream {
+	@Override
+	public void write(int b) {
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) {
+	}
+}
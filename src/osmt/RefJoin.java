@@ -0,0 +1,144 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * RefJoin - resolves the refs of all ways against the index with sequential I/O only
+ *
+ * The ways are spooled to a file, their refs numbered in input order. The
+ * (ref, number) pairs are sorted by ref and looked up in ascending order,
+ * which reads the index front to back; the (number, tile number) pairs are
+ * sorted back into input order and read along with the spooled ways.
+ */
+public class RefJoin {
+	//refs looked up at once
+	final static int BATCH = 65536;
+	
+	String dir;
+	int chunkSize;
+	DataOutputStream waysOut;
+	ByteArrayOutputStream buf = new ByteArrayOutputStream(256);
+	ExternalSort byRef, byNumber;
+	long number = 0;
+	
+	DataInputStream waysIn;
+	ExternalSort.Cursor tns;
+	
+	/**
+	 * Constructor
+	 * @param dir - directory for the temporary files
+	 * @param chunkSize - pairs sorted in memory at once
+	 * @throws IOException
+	 */
+	public RefJoin(String dir, int chunkSize) throws IOException {
+		this.dir = dir;
+		this.chunkSize = chunkSize;
+		waysOut = Tile.openTmp(dir + "join-ways.tmp");
+		byRef = new ExternalSort(dir + "join-refs-", chunkSize);
+	}
+	
+	/**
+	 * add: spool a way with all its refs
+	 * @param way
+	 * @throws IOException
+	 */
+	public void add(Element way) throws IOException {
+		way.write(waysOut, buf);
+		
+		for (long ref : way.refs) {
+			byRef.add(ref, number++);
+		}
+	}
+	
+	/**
+	 * resolve: look up all refs, in ascending order
+	 * @param n2tn
+	 * @return number of refs
+	 * @throws IOException
+	 */
+	public long resolve(NodeToTileNumber n2tn) throws IOException {
+		waysOut.close();
+		byNumber = new ExternalSort(dir + "join-tns-", chunkSize);
+		//reads FAN_IN runs at most, while byNumber writes one at a time
+		ExternalSort.Cursor c = byRef.sorted();
+		long[] ids = new long[BATCH], numbers = new long[BATCH];
+		int[] result = new int[BATCH];
+		int n = 0;
+		boolean more = true;
+		
+		while (more) {
+			more = c.next();
+			
+			if (more) {
+				ids[n] = c.key;
+				numbers[n++] = c.value;
+			}
+			if (n == BATCH || (!more && n > 0)) {
+				n2tn.getTn(ids, 0, n, result);
+				
+				for (int i = 0; i < n; i++) {
+					byNumber.add(numbers[i], result[i]);
+				}
+				n = 0;
+			}
+		}
+		c.close();
+		byRef.delete();
+		
+		waysIn = Tile.readTmp(dir + "join-ways.tmp");
+		tns = byNumber.sorted();
+		return number;
+	}
+	
+	/**
+	 * nextWay: read the next spooled way
+	 * @return the way, null after the last
+	 * @throws IOException
+	 */
+	public Element nextWay() throws IOException {
+		byte[] body = Element.readRecord(waysIn);
+		return body != null ? Element.decode(body) : null;
+	}
+	
+	/**
+	 * nextTn: get the tile number of the next ref
+	 * @return
+	 * @throws IOException
+	 */
+	public int nextTn() throws IOException {
+		if (!tns.next()) {
+			throw new IOException("ref join out of step");
+		}
+		return (int)tns.value;
+	}
+	
+	/**
+	 * close: close and remove the temporary files
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (waysIn != null) {
+			waysIn.close();
+			tns.close();
+			byNumber.delete();
+		}
+		new File(dir + "join-ways.tmp").delete();
+	}
+}
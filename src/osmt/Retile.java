@@ -0,0 +1,496 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Retile - splits a tile set into tiles of another size, finer or coarser, without the source
+ *
+ * The tiles are merged into a pipe, which the split reads at the same
+ * time, so the merged data is never written to disk. The merge puts the
+ * split ways back together from their segments, and the split makes the
+ * node copies and tn refs of the new grid.
+ *
+ * With nested tile sizes (see NodeToTileNumber.nested()), the tiles are
+ * retiled in groups of cells of the coarser grid, in parallel: each group
+ * merges the tiles of its cells and all tiles its split ways reach, so its
+ * ways are complete, and keeps only the new tiles of its cells. A group
+ * can be a single oversized tile, see setTiles() and setBbox(); the other
+ * tiles are left alone then. Otherwise all tiles are merged into one split.
+ *
+ * Splitter splitter = new Splitter("tiles/", "/tmp/work/");
+ * splitter.setTilesize(0.25F);
+ * Retile retile = new Retile("tiles/", splitter);
+ * retile.setTiles(Arrays.asList(35241));
+ * retile.retile();
+ */
+public class Retile {
+	//merged data buffered between the merge and the split
+	final static int BUFFER_SIZE = 1 << 20, BUFFER_COUNT = 4;
+	//groups per thread, more balance the threads better, fewer read fewer tiles twice
+	final static int GROUPS_PER_THREAD = 4;
+	
+	String dir;
+	Splitter splitter;
+	PrintStream log = System.out;
+	//of the tiles to retile, null for all
+	TreeSet<Integer> tns;
+	float[] bbox;
+	int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+	
+	//of the cells, the coarser of both tile sizes
+	float cellsize;
+	//of the new tiles of all groups
+	Manifest manifest;
+	
+	/**
+	 * Constructor
+	 * @param dir - the tile directory
+	 * @param splitter - configured for the new tiles; its input is set by retile()
+	 */
+	public Retile(String dir, Splitter splitter) {
+		this.dir = dir;
+		this.splitter = splitter;
+	}
+	
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	
+	/**
+	 * setTiles: retile only these tiles, with a coarser tile size the other tiles of their new tiles too
+	 * @param tns - tile numbers
+	 */
+	public void setTiles(Collection<Integer> tns) {
+		this.tns = new TreeSet<Integer>(tns);
+	}
+	
+	/**
+	 * setBbox: retile only the tiles intersecting a bbox, with a coarser tile size the other tiles of their new tiles too
+	 * @param bbox - {minlat, minlon, maxlat, maxlon}
+	 */
+	public void setBbox(float[] bbox) {
+		this.bbox = bbox;
+	}
+	
+	/**
+	 * setThreads: groups retiled at the same time, each by a merge and a split;
+	 * the tile sink is called from all of them
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * retile: split the tiles of the directory into the new tiles
+	 * @return the manifest of the new tiles
+	 * @throws IOException
+	 */
+	public Manifest retile() throws IOException {
+		float tilesize = Merge.readTilesize(dir);
+		
+		if (tilesize <= 0) {
+			throw new IOException("no tiles found in " + dir);
+		}
+		TreeMap<Integer, String> all = listTiles(dir);
+		float size = splitter.tilesize;
+		boolean part = tns != null || bbox != null;
+		
+		cellsize = NodeToTileNumber.nested(tilesize, size) ? size : NodeToTileNumber.nested(size, tilesize) ? tilesize : 0;
+		
+		if (cellsize == 0 || (splitter.tilesizes != null && splitter.tilesizes.length > 1) || splitter.sharedBoundary) {
+			if (part) {
+				throw new IllegalArgumentException("a part of the tiles can only be retiled to one tile size nested with " + tilesize + ", without a shared boundary");
+			}
+			return retileAll(all, tilesize);
+		}
+		for (int tn : all.keySet()) {
+			if (!new File(segmentsFile(all.get(tn))).exists()) {
+				if (part) {
+					throw new IOException("tile " + all.get(tn) + " has no segments file, so only all tiles can be retiled");
+				}
+				return retileAll(all, tilesize);
+			}
+		}
+		if (!part && threads == 1) {
+			return retileAll(all, tilesize);
+		}
+		
+		//cells of the tiles to retile
+		TreeSet<Integer> cells = new TreeSet<Integer>();
+		
+		for (int tn : all.keySet()) {
+			float[] bounds = NodeToTileNumber.getBounds(tn, tilesize, tilesize);
+			
+			if ((tns == null || tns.contains(tn)) && (bbox == null || (tn > 0 && bounds[0] <= bbox[2] && bounds[2] >= bbox[0] && bounds[1] <= bbox[3] && bounds[3] >= bbox[1]))) {
+				cells.add(cell(tn, tilesize));
+			}
+		}
+		if (cells.isEmpty()) {
+			throw new IOException("no tiles to retile in " + dir);
+		}
+		ArrayList<Group> groups = groups(cells);
+		
+		for (int tn : all.keySet()) {
+			for (Group group : groups) {
+				if (group.cells.contains(cell(tn, tilesize))) {
+					group.tiles.add(tn);
+				}
+			}
+		}
+		addReach(groups, all);
+		
+		int count = 0;
+		int poolSize = Math.min(threads, groups.size());
+		
+		for (Group group : groups) {
+			count += group.tiles.size();
+		}
+		if (!part && count > all.size() * poolSize) {
+			//long ways make the groups read most tiles, it takes longer than one split
+			return retileAll(all, tilesize);
+		}
+		log.println("retiling " + cells.size() + " cells of " + cellsize + "° in " + groups.size() + " groups, reading " + count + " tiles of " + tilesize + "° ...");
+		
+		final TileSink sink = splitter.sink != null ? splitter.sink : new FileTileSink(splitter.workDir);
+		ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		manifest = new Manifest(size);
+		
+		try {
+			for (int i = 0; i < groups.size(); i++) {
+				final Splitter groupSplitter = splitter.part(dir, splitter.workDir + "retile-" + i + "/", poolSize);
+				groupSplitter.sink = new GroupSink(groups.get(i), sink);
+				final ArrayList<String> files = new ArrayList<String>();
+				
+				for (int tn : groups.get(i).tiles) {
+					files.add(all.get(tn));
+				}
+				futures.add(pool.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						try {
+							split(files, groupSplitter);
+						} finally {
+							Splitter.removeDir(groupSplitter.workDir);
+						}
+						return null;
+					}
+				}));
+			}
+			Split.await(futures);
+		} finally {
+			pool.shutdown();
+		}
+		sink.finish(manifest);
+		return manifest;
+	}
+	
+	/**
+	 * retileAll: merge all tiles into one split
+	 * @param all - file names by tile number
+	 * @param tilesize
+	 * @return the manifest of the new (smallest) tiles
+	 * @throws IOException
+	 */
+	Manifest retileAll(TreeMap<Integer, String> all, float tilesize) throws IOException {
+		log.println("retiling " + all.size() + " tiles of " + tilesize + "° ...");
+		return split(new ArrayList<String>(all.values()), splitter);
+	}
+	
+	/**
+	 * split: merge tiles into a pipe and split it
+	 * @param files
+	 * @param splitter
+	 * @return the manifest of the split
+	 * @throws IOException
+	 */
+	Manifest split(ArrayList<String> files, Splitter splitter) throws IOException {
+		final Merger merger = new Merger(files);
+		merger.setLog(log);
+		
+		Pipe pipe = Pipe.open();
+		final AsyncWriter out = new AsyncWriter(pipe.sink(), BUFFER_SIZE, BUFFER_COUNT);
+		final IOException[] error = new IOException[1];
+		
+		Thread mergeThread = new Thread("osmt-retile") {
+			public void run() {
+				try {
+					merger.merge(out);
+				} catch (IOException e) {
+					error[0] = e;
+				} finally {
+					try {
+						//end of input for the split
+						out.close();
+					} catch (IOException e) {
+						if (error[0] == null) {
+							error[0] = e;
+						}
+					}
+				}
+			}
+		};
+		mergeThread.setDaemon(true);
+		mergeThread.start();
+		
+		Manifest manifest;
+		
+		try {
+			splitter.setInput(Channels.newInputStream(pipe.source()));
+			manifest = splitter.split();
+		} finally {
+			//a failed split stops the merge
+			pipe.source().close();
+			
+			try {
+				mergeThread.join();
+			} catch (InterruptedException e) {
+				throw new IOException("interrupted waiting for the merge");
+			}
+		}
+		if (error[0] != null) {
+			throw new IOException("merging the tiles failed: " + error[0].getMessage(), error[0]);
+		}
+		return manifest;
+	}
+	
+	/**
+	 * cell: the cell of a tile, of the tile's center; tiles of invalid nodes are cells of their own
+	 * @param tn
+	 * @param tilesize - of the tile
+	 * @return tile number in the grid of the cells
+	 */
+	int cell(int tn, float tilesize) {
+		if (tn <= 0) {
+			return tn;
+		}
+		float[] bounds = NodeToTileNumber.getBounds(tn, tilesize, tilesize);
+		return NodeToTileNumber.calcTn((bounds[0] + bounds[2]) / 2, (bounds[1] + bounds[3]) / 2, cellsize, cellsize);
+	}
+	
+	/**
+	 * groups: make blocks of neighbouring cells, as large as there are still enough of them for the threads
+	 * @param cells
+	 * @return the groups
+	 */
+	ArrayList<Group> groups(TreeSet<Integer> cells) {
+		TreeMap<Long, Group> blocks;
+		int side = 1;
+		
+		while (true) {
+			blocks = new TreeMap<Long, Group>();
+			
+			for (int cell : cells) {
+				long block = cell;
+				
+				if (cell > 0) {
+					float[] bounds = NodeToTileNumber.getBounds(cell, cellsize, cellsize);
+					long row = (long)((bounds[0] + cellsize / 2 + 90) / cellsize) / side;
+					long col = (long)((bounds[1] + cellsize / 2 + 180) / cellsize) / side;
+					block = row << 32 | col;
+				}
+				if (!blocks.containsKey(block)) {
+					blocks.put(block, new Group());
+				}
+				blocks.get(block).cells.add(cell);
+			}
+			if (blocks.size() <= threads * GROUPS_PER_THREAD || side * cellsize >= 180) {
+				break;
+			}
+			side *= 2;
+		}
+		return new ArrayList<Group>(blocks.values());
+	}
+	
+	/**
+	 * addReach: add the tiles of all split ways of the groups to them
+	 * @param groups
+	 * @param all - file names by tile number
+	 * @throws IOException
+	 */
+	void addReach(ArrayList<Group> groups, TreeMap<Integer, String> all) throws IOException {
+		//(way ID, group) of the split ways of each group, sorted by way ID
+		long[] ways = new long[1024], owners = new long[1024];
+		int n = 0;
+		
+		for (int g = 0; g < groups.size(); g++) {
+			TreeSet<Long> ids = new TreeSet<Long>();
+			
+			for (int tn : groups.get(g).tiles) {
+				for (long id : splitWays(all.get(tn))) {
+					ids.add(id);
+				}
+			}
+			for (long id : ids) {
+				if (n == ways.length) {
+					ways = Arrays.copyOf(ways, n * 2);
+					owners = Arrays.copyOf(owners, n * 2);
+				}
+				ways[n] = id;
+				owners[n++] = g;
+			}
+		}
+		ExternalSort.sort(ways, owners, 0, n - 1);
+		
+		for (int tn : all.keySet()) {
+			for (long id : splitWays(all.get(tn))) {
+				//first pair of the way
+				int lo = 0, hi = n;
+				
+				while (lo < hi) {
+					int mid = (lo + hi) >>> 1;
+					
+					if (ways[mid] < id) {
+						lo = mid + 1;
+					}
+					else {
+						hi = mid;
+					}
+				}
+				for (int i = lo; i < n && ways[i] == id; i++) {
+					groups.get((int)owners[i]).tiles.add(tn);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * splitWays: read the IDs of the split ways of a tile from its segments file, see Tile.writeSegment
+	 * @param fn - the tile
+	 * @return
+	 * @throws IOException
+	 */
+	static long[] splitWays(String fn) throws IOException {
+		String segmentsFile = segmentsFile(fn);
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentsFile), 65536));
+		long[] ids = new long[256];
+		int n = 0;
+		
+		try {
+			if (in.readInt() != Tile.SEGMENTS_MAGIC) {
+				throw new IOException("invalid segments file: " + segmentsFile);
+			}
+			while (true) {
+				long wayId;
+				
+				try {
+					wayId = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				if (n == ids.length) {
+					ids = Arrays.copyOf(ids, n * 2);
+				}
+				ids[n++] = wayId;
+				in.skipBytes(in.readInt() * 12);
+			}
+		} finally {
+			in.close();
+		}
+		return Arrays.copyOf(ids, n);
+	}
+	
+	static String segmentsFile(String fn) {
+		return fn.replaceAll("\\.osm$", "") + Tile.SEGMENTS_SUFFIX;
+	}
+	
+	/**
+	 * listTiles: find all tiles of a directory
+	 * @param dir
+	 * @return file names by tile number
+	 */
+	static TreeMap<Integer, String> listTiles(String dir) {
+		TreeMap<Integer, String> tiles = new TreeMap<Integer, String>();
+		File[] files = new File(dir).listFiles();
+		
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().matches("-?[0-9]+\\.osm")) {
+					tiles.put(Integer.parseInt(f.getName().substring(0, f.getName().length() - 4)), f.getPath());
+				}
+			}
+		}
+		return tiles;
+	}
+	
+	/**
+	 * Group - cells retiled by one split
+	 */
+	static class Group {
+		//tile numbers in the grid of the cells
+		TreeSet<Integer> cells = new TreeSet<Integer>();
+		//the tiles of the cells and of their split ways
+		TreeSet<Integer> tiles = new TreeSet<Integer>();
+	}
+	
+	/**
+	 * GroupSink - passes the new tiles of a group's cells on to the sink of the
+	 * retile and drops those of the other tiles the group has read
+	 */
+	class GroupSink implements TileSink {
+		Group group;
+		TileSink sink;
+		
+		GroupSink(Group group, TileSink sink) {
+			this.group = group;
+			this.sink = sink;
+		}
+		
+		boolean keeps(int tn) {
+			return group.cells.contains(cell(tn, splitter.tilesize));
+		}
+		
+		public OutputStream open(int tn, String suffix) throws IOException {
+			if (!keeps(tn)) {
+				return new NullOutputStream();
+			}
+			synchronized (manifest) {
+				return sink.open(tn, suffix);
+			}
+		}
+		
+		public void done(Manifest.Entry entry) throws IOException {
+			if (keeps(entry.tn)) {
+				synchronized (manifest) {
+					manifest.tiles.put(entry.tn, entry);
+					sink.done(entry);
+				}
+			}
+		}
+		
+		public void finish(Manifest manifest) {
+			//the retile writes the manifest of all groups
+		}
+	}
+}
@@ -0,0 +1,384 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Server - answers tile queries over HTTP, keeping the index mapped and the
+ * manifest loaded between requests
+ *
+ * GET /node/ID                                tile of a node
+ * GET /tiles?bbox=MINLAT,MINLON,MAXLAT,MAXLON tiles covering a bbox
+ * GET /merge?bbox=MINLAT,MINLON,MAXLAT,MAXLON merged tiles of a bbox, clipped to it
+ * GET /merge?tiles=TN,TN,...                  merged tiles
+ * GET /metrics                                request counters (Prometheus format)
+ *
+ * Each request runs in a virtual thread on Java 21 and later, in a thread
+ * of a pool otherwise. With a MergeCache, repeated and overlapping merges
+ * are served from it.
+ */
+public class Server {
+	String tileDir;
+	float tilesize;
+	MappedIndex index;
+	Manifest manifest;
+	MergeCache cache;
+	HttpServer http;
+	ExecutorService executor;
+	Metrics metrics = new Metrics();
+	PrintStream log = System.out;
+	
+	/**
+	 * Constructor
+	 * @param tileDir - directory of the tiles
+	 * @param indexFile - node2tn index of the split, or null to answer tile queries only
+	 * @throws IOException
+	 */
+	public Server(String tileDir, String indexFile) throws IOException {
+		this.tileDir = tileDir.endsWith("/") ? tileDir : tileDir + "/";
+		manifest = Manifest.find(this.tileDir);
+		tilesize = manifest != null ? manifest.tilesize : Merge.readTilesize(this.tileDir);
+		
+		if (tilesize <= 0) {
+			throw new IOException("no tiles found in " + tileDir);
+		}
+		if (indexFile != null) {
+			index = new MappedIndex(indexFile);
+		}
+	}
+	
+	/**
+	 * setCache: cache the /merge results, see Merger.setCache
+	 * @param cache - null for none
+	 */
+	public void setCache(MergeCache cache) {
+		this.cache = cache;
+	}
+	
+	/**
+	 * start: start listening
+	 * @param address - e.g. "127.0.0.1"
+	 * @param port
+	 * @throws IOException
+	 */
+	public void start(String address, int port) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(address, port), 0);
+		executor = newExecutor();
+		http.setExecutor(executor);
+		
+		http.createContext("/node/", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				handleNode(ex);
+			}
+		});
+		http.createContext("/tiles", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				handleTiles(ex);
+			}
+		});
+		http.createContext("/merge", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				handleMerge(ex);
+			}
+		});
+		http.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange ex) throws IOException {
+				StringBuilder sb = new StringBuilder();
+				for (Map.Entry<String, Long> e : metrics.snapshot().entrySet()) {
+					sb.append(e.getKey()).append(' ').append(e.getValue()).append('\n');
+				}
+				send(ex, 200, "text/plain", sb.toString());
+			}
+		});
+		http.start();
+		
+		log.println("serving " + tileDir + " (tile size " + tilesize + (index != null ? ", " + index.length / 4 + " index entries" : "")
+				+ ") on http://" + address + ":" + port + "/");
+	}
+	
+	/**
+	 * stop: stop listening
+	 */
+	public void stop() {
+		if (http != null) {
+			http.stop(0);
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * newExecutor: a virtual thread per task if the JVM has them (Java 21), a thread pool otherwise
+	 * @return
+	 */
+	static ExecutorService newExecutor() {
+		try {
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "osmt-server");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+	
+	/**
+	 * handleNode: GET /node/ID
+	 */
+	void handleNode(HttpExchange ex) throws IOException {
+		metrics.add("osmt_server_requests_total{endpoint=\"node\"}", 1);
+		
+		if (index == null) {
+			send(ex, 404, "text/plain", "no index file\n");
+			return;
+		}
+		long id;
+		try {
+			id = Long.parseLong(ex.getRequestURI().getPath().substring("/node/".length()));
+		} catch (NumberFormatException e) {
+			send(ex, 400, "text/plain", "usage: /node/ID\n");
+			return;
+		}
+		int tn = index.getTn(id);
+		
+		if (tn <= 0) {
+			send(ex, 404, "application/json", "{\"node\": " + id + ", \"tn\": null}\n");
+			return;
+		}
+		send(ex, 200, "application/json", "{\"node\": " + id + ", \"tile\": " + tileJson(tn) + "}\n");
+	}
+	
+	/**
+	 * handleTiles: GET /tiles?bbox=...
+	 */
+	void handleTiles(HttpExchange ex) throws IOException {
+		metrics.add("osmt_server_requests_total{endpoint=\"tiles\"}", 1);
+		float[] bbox = parseBbox(query(ex).get("bbox"));
+		
+		if (bbox == null) {
+			send(ex, 400, "text/plain", "usage: /tiles?bbox=MINLAT,MINLON,MAXLAT,MAXLON\n");
+			return;
+		}
+		StringBuilder sb = new StringBuilder("{\"tiles\": [");
+		boolean first = true;
+		
+		for (String fn : Merge.tilesInBbox(tileDir, bbox, tilesize)) {
+			sb.append(first ? "\n  " : ",\n  ").append(tileJson(tileNumber(fn)));
+			first = false;
+		}
+		sb.append("\n]}\n");
+		send(ex, 200, "application/json", sb.toString());
+	}
+	
+	/**
+	 * handleMerge: GET /merge?bbox=... or /merge?tiles=...
+	 */
+	void handleMerge(HttpExchange ex) throws IOException {
+		metrics.add("osmt_server_requests_total{endpoint=\"merge\"}", 1);
+		HashMap<String, String> q = query(ex);
+		float[] bbox = parseBbox(q.get("bbox"));
+		ArrayList<String> files = new ArrayList<String>();
+		
+		if (bbox != null) {
+			files = Merge.tilesInBbox(tileDir, bbox, tilesize);
+		}
+		else if (q.containsKey("tiles")) {
+			try {
+				for (String tn : q.get("tiles").split(",")) {
+					File f = new File(tileDir + Integer.parseInt(tn) + ".osm");
+					if (!f.exists()) {
+						send(ex, 404, "text/plain", "no tile " + tn + "\n");
+						return;
+					}
+					files.add(f.getPath());
+				}
+			} catch (NumberFormatException e) {
+				files.clear();
+			}
+		}
+		if (files.isEmpty()) {
+			send(ex, 400, "text/plain", "usage: /merge?bbox=MINLAT,MINLON,MAXLAT,MAXLON or /merge?tiles=TN,TN,...\n");
+			return;
+		}
+		
+		Merger merger = new Merger(files);
+		merger.setBbox(bbox);
+		merger.setCache(cache);
+		merger.setLog(new PrintStream(new NullOutputStream()));
+		merger.setManifest(manifest);
+		
+		//missing and damaged tiles are reported before the status is sent
+		try {
+			merger.check();
+		} catch (FileNotFoundException e) {
+			send(ex, 404, "text/plain", e.getMessage() + "\n");
+			return;
+		} catch (IOException e) {
+			send(ex, 409, "text/plain", e.getMessage() + "\n");
+			return;
+		}
+		ex.getResponseHeaders().set("Content-Type", "application/xml; charset=UTF-8");
+		ex.sendResponseHeaders(200, 0);
+		OutputStream body = ex.getResponseBody();
+		Writer out = new OutputStreamWriter(body, "UTF-8");
+		
+		try {
+			merger.merge(out);
+		} catch (IOException e) {
+			//the status is sent already, the client sees a truncated document
+			log.println("merge of " + files.size() + " tiles failed: " + e.getMessage());
+		} finally {
+			ex.close();
+		}
+	}
+	
+	/**
+	 * tileJson: describe a tile
+	 * @param tn
+	 * @return
+	 */
+	String tileJson(int tn) {
+		float[] b = NodeToTileNumber.getBounds(tn, tilesize, tilesize);
+		String s = "{\"tn\": " + tn + ", \"file\": \"" + tileDir + tn + ".osm\", \"bounds\": [" + b[0] + ", " + b[1] + ", " + b[2] + ", " + b[3] + "]";
+		Manifest.Entry e = manifest != null ? manifest.tiles.get(tn) : null;
+		
+		if (e != null) {
+			s += ", \"nodes\": " + e.nodes + ", \"ways\": " + e.ways + ", \"bytes\": " + e.bytes;
+		}
+		return s + "}";
+	}
+	
+	static int tileNumber(String fn) {
+		return Integer.parseInt(new File(fn).getName().split("\\.")[0]);
+	}
+	
+	static float[] parseBbox(String s) {
+		if (s == null) {
+			return null;
+		}
+		String[] v = s.split(",");
+		if (v.length != 4) {
+			return null;
+		}
+		float[] bbox = new float[4];
+		
+		try {
+			for (int i = 0; i < 4; i++) {
+				bbox[i] = Float.parseFloat(v[i]);
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return bbox[0] <= bbox[2] && bbox[1] <= bbox[3] ? bbox : null;
+	}
+	
+	static HashMap<String, String> query(HttpExchange ex) throws IOException {
+		HashMap<String, String> q = new HashMap<String, String>();
+		String raw = ex.getRequestURI().getRawQuery();
+		
+		if (raw != null) {
+			for (String pair : raw.split("&")) {
+				String[] kv = pair.split("=", 2);
+				q.put(URLDecoder.decode(kv[0], "UTF-8"), kv.length > 1 ? URLDecoder.decode(kv[1], "UTF-8") : "");
+			}
+		}
+		return q;
+	}
+	
+	static void send(HttpExchange ex, int status, String contentType, String body) throws IOException {
+		byte[] b = body.getBytes("UTF-8");
+		ex.getResponseHeaders().set("Content-Type", contentType + "; charset=UTF-8");
+		ex.sendResponseHeaders(status, b.length);
+		OutputStream os = ex.getResponseBody();
+		
+		try {
+			os.write(b);
+		} finally {
+			os.close();
+		}
+	}
+}
+
+/**
+ * MappedIndex - read-only node2tn index, mapped into memory in chunks
+ *
+ * A MappedByteBuffer holds at most 2 GB, the index of the planet is larger.
+ * Reads are absolute, so the chunks are shared by all threads.
+ */
+class MappedIndex {
+	final static int CHUNK_BITS = 30;
+	final static long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+	
+	MappedByteBuffer[] chunks;
+	long length;
+	
+	MappedIndex(String fn) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(fn, "r");
+		
+		try {
+			FileChannel channel = raf.getChannel();
+			length = channel.size();
+			chunks = new MappedByteBuffer[(int)((length + CHUNK_MASK) >> CHUNK_BITS)];
+			
+			for (int i = 0; i < chunks.length; i++) {
+				long start = (long)i << CHUNK_BITS;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(1L << CHUNK_BITS, length - start));
+			}
+		} finally {
+			//the mappings stay valid
+			raf.close();
+		}
+	}
+	
+	/**
+	 * getTn: tile number of a node
+	 * @param nodeId
+	 * @return tile number, 0 if unknown
+	 */
+	int getTn(long nodeId) {
+		long pos = nodeId * 4;
+		
+		if (nodeId < 0 || pos + 4 > length) {
+			return 0;
+		}
+		//chunks are a multiple of 4 bytes long, an entry never spans two
+		return chunks[(int)(pos >> CHUNK_BITS)].getInt((int)(pos & CHUNK_MASK));
+	}
+}
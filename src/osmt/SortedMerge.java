@@ -0,0 +1,172 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SortedMerge - merges OSM files sorted by ID, e.g. overlapping extracts of any tool, into one
+ *
+ * A k-way merge of the files by type and ID: nodes, ways and relations
+ * found in several files are written once, in their highest version (the
+ * first file wins among equal versions). Each file is streamed by an
+ * ElementReader, so memory does not grow with the size of the files. The
+ * elements are written as they are read; tiles or tn attributes are not
+ * needed.
+ *
+ * new SortedMerge(files).merge("europe.osm");
+ */
+public class SortedMerge {
+	ArrayList<String> inputFiles;
+	PrintStream log = System.out;
+	Metrics metrics = new Metrics();
+	
+	/**
+	 * Constructor
+	 * @param inputFiles - OSM files sorted by type and ID, at most one Split.STDIN
+	 */
+	public SortedMerge(ArrayList<String> inputFiles) {
+		this.inputFiles = inputFiles;
+	}
+	
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * merge: merge to a file
+	 * @param outputFile - file name, "-" for stdout
+	 * @throws IOException
+	 */
+	public void merge(String outputFile) throws IOException {
+		Writer out;
+		
+		try {
+			out = AsyncWriter.open(outputFile);
+		} catch (IOException e) {
+			throw new IOException("Cannot open file for writing: " + outputFile, e);
+		}
+		try {
+			merge(out);
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * merge: merge to a writer, which is flushed but not closed
+	 * @param out
+	 * @throws IOException
+	 */
+	public void merge(Writer out) throws IOException {
+		PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		ArrayList<Source> sources = new ArrayList<Source>();
+		AtomicLong[] written = {metrics.counter("osmt_nodes_written_total"), metrics.counter("osmt_ways_written_total"),
+				metrics.counter("osmt_relations_written_total")};
+		AtomicLong duplicates = metrics.counter("osmt_duplicates_total");
+		long phaseStart = System.nanoTime();
+		
+		try {
+			for (int i = 0; i < inputFiles.size(); i++) {
+				Source s = new Source(new ElementReader(inputFiles.get(i), true), i);
+				sources.add(s);
+				
+				if (s.next()) {
+					queue.add(s);
+				}
+			}
+			out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			out.write("<osm version=\"0.6\" generator=\"osmt\">\n");
+			
+			log.println("merging " + inputFiles.size() + " files ...");
+			
+			while (!queue.isEmpty()) {
+				Source s = queue.poll();
+				ElementReader.Block best = s.block;
+				
+				//the same element in the other files
+				while (!queue.isEmpty() && queue.peek().block.compareTo(best) == 0) {
+					Source other = queue.poll();
+					
+					if (other.block.version > best.version) {
+						best = other.block;
+					}
+					duplicates.incrementAndGet();
+					
+					if (other.next()) {
+						queue.add(other);
+					}
+				}
+				out.write(best.xml);
+				written[best.type].incrementAndGet();
+				
+				if (s.next()) {
+					queue.add(s);
+				}
+			}
+			out.write("</osm>\n");
+			out.flush();
+		} finally {
+			for (Source s : sources) {
+				s.reader.close();
+			}
+		}
+		metrics.time("merge_sorted", phaseStart);
+		log.println(": wrote " + written[ElementReader.NODE].get() + " nodes, " + written[ElementReader.WAY].get() + " ways and "
+				+ written[ElementReader.RELATION].get() + " relations, skipped " + duplicates.get() + " duplicates");
+	}
+	
+	/**
+	 * Source - an input file at its current element
+	 */
+	static class Source implements Comparable<Source> {
+		ElementReader reader;
+		int index;
+		ElementReader.Block block;
+		
+		Source(ElementReader reader, int index) {
+			this.reader = reader;
+			this.index = index;
+		}
+		
+		/**
+		 * next: advance to the next element
+		 * @return false at the end
+		 * @throws IOException if the file is not sorted
+		 */
+		boolean next() throws IOException {
+			ElementReader.Block previous = block;
+			block = reader.next();
+			
+			if (block != null && previous != null && block.compareTo(previous) <= 0) {
+				throw new IOException(reader.fn + " is not sorted by ID at " + block);
+			}
+			return block != null;
+		}
+		
+		public int compareTo(Source o) {
+			int c = block.compareTo(o.block);
+			return c != 0 ? c : index - o.index;
+		}
+	}
+}
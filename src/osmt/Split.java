@@ -21,6 +21,14 @@ package osmt;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class Split {
 	String inputFileName;
@@ -31,19 +39,71 @@ public class Split {
 	boolean slim;
 	
 	float nodeLat, nodeLon;
-	long nodeId = 0, ref = 0, firstRef = 0, previousRef = 0;
+	long nodeId = 0, wayId = 0, ref = 0, firstRef = 0, previousRef = 0;
 	int tn = 0, previousTn = 0;
-	String line, wayLine = "";
+	String line;
 	String target = "";
 	Tile t, previousT;
-	
-	HashMap<String, String> attr;
+	Element node, way;
 	
 	HashMap<Integer, Tile> tilesMap = new HashMap<Integer, Tile>();
 	
+	//input file name for standard input, and how far the root tag is looked for
+	public final static String STDIN = "-";
+	final static int MARK_LIMIT = 1 << 20;
+	
+	//how the refs of ways are looked up in the index: one by one, sorted per block of ways, or all at once by RefJoin
+	public final static int REFS_DIRECT = 0, REFS_SORT = 1, REFS_BATCH = 2;
+	int refLookup = REFS_BATCH;
+	RefJoin join;
+	
+	//a block of ways is resolved when it has BATCH_REFS refs, in parallel parts of at least PARALLEL_REFS
+	final static int BATCH_REFS = 1 << 20, PARALLEL_REFS = 1 << 16;
+	ArrayList<Element> batch = new ArrayList<Element>();
+	int batchRefs = 0;
+	ExecutorService lookupPool;
+	
+	boolean debug = false;
+	
+	//what is left out of the tiles; ways it selects by tag are processed at their end tag
+	Filter filter;
+	boolean deferWays;
+	int wayMatches;
+	
+	//locations of all nodes, to write the bounding boxes of the ways; shared by the levels
+	LocationStore locations;
+	int[] latLon = new int[2];
+	
+	//boundary nodes go once to Tile.BOUNDARY_FILE instead of their tiles and the copies; (node ID, tile number) of each
+	boolean sharedBoundary = false;
+	ExternalSort boundaryNodes;
+	long boundaryBytes = -1, boundaryChecksum;
+	
+	//heap for the nodes of all tiles (not slim), beyond it the largest tiles are spilled
+	long memoryBudget = Long.MAX_VALUE, storedBytes = 0;
+	//of the inputs sharing the index, see Splitter; null for a single input
+	CountDownLatch nodesRead;
+	
+	//spilled runs open for lookups, shared by the tiles
+	LinkedHashMap<NodeStore.Run, NodeStore.Run> openRuns = NodeStore.openRuns();
+	
+	Metrics metrics = new Metrics();
+	AtomicLong bytesRead = new AtomicLong();
+	AtomicLong lookupCounter, copyCounter;
+	TileSink sink;
+	PrintStream log = System.out;
+	Manifest manifest;
+	
+	//state of reading; levels of a multi-level split besides the first do not count the input
+	boolean reading = true;
+	long lineCount = 0;
+	final long lineThreshold = 100000;
+	AtomicLong nodeCounter, wayCounter, ndCounter, tileGauge, filteredWays, filteredTags;
+	long phaseStart;
+	boolean waysStarted = false;
+	
 	//sets and maps used during way processing
 	HashSet<Tile> tiles = new HashSet<Tile>();	//tilesWayIsIn
-	HashMap<Tile, Boolean> refsHaveBeenWritten = new HashMap<Tile, Boolean>();
 	HashMap<Tile, Long> lastRemoteNodeAdded = new HashMap<Tile, Long>();
 	HashMap<Tile, ArrayList<Long>> refs = new HashMap<Tile, ArrayList<Long>>();
 	HashMap<Tile, ArrayList<Integer>> refTn = new HashMap<Tile, ArrayList<Integer>>();
@@ -55,354 +115,965 @@ public class Split {
 	 * @param dataDir
 	 * @param tilesize
 	 * @param slim
+	 * @throws IOException
+	 */
+	public Split(String inputFileName, String node2tnFile, String dataDir, float tilesize, boolean slim) throws IOException {
+		this(inputFileName, node2tnFile, dataDir, tilesize, slim, new FileTileSink(dataDir));
+	}
+	
+	/**
+	 * Constructor
+	 * @param inputFileName
+	 * @param node2tnFile
+	 * @param dataDir - directory for the temporary files
+	 * @param tilesize
+	 * @param slim
+	 * @param sink - receives the tiles
+	 * @throws IOException
+	 */
+	public Split(String inputFileName, String node2tnFile, String dataDir, float tilesize, boolean slim, TileSink sink) throws IOException {
+		this(null, inputFileName, node2tnFile, dataDir, tilesize, slim, sink);
+	}
+	
+	/**
+	 * Constructor
+	 * @param in - the input, opened once, or null to open inputFileName
+	 * @param inputFileName - names the input
+	 * @param node2tnFile
+	 * @param dataDir - directory for the temporary files
+	 * @param tilesize
+	 * @param slim
+	 * @param sink - receives the tiles
+	 * @throws IOException
 	 */
-	public Split(String inputFileName, String node2tnFile, String dataDir, float tilesize, boolean slim) {
+	public Split(InputStream in, String inputFileName, String node2tnFile, String dataDir, float tilesize, boolean slim, TileSink sink) throws IOException {
 		try {
 			n2tn = new NodeToTileNumber(node2tnFile, tilesize);
-		} catch (Exception e) {
-			System.err.println("Error writing index file");
-			System.exit(1);
+		} catch (IOException e) {
+			throw new IOException("Error writing index file " + node2tnFile, e);
 		}
 		
 		this.inputFileName = inputFileName;
 		this.dataDir = dataDir;
 		this.tilesize = tilesize;
 		this.slim = slim;
+		this.sink = sink;
+		
+		boolean invalidOSM = true;
 		
 		try {
-			FileReader fr = new FileReader(inputFileName);
-			br = new BufferedReader(fr);
+			//opened once, so the input may be a pipe
+			if (in == null) {
+				in = inputFileName.equals(STDIN) ? System.in : new FileInputStream(inputFileName);
+			}
+			br = new BufferedReader(new InputStreamReader(new CountingInputStream(in, bytesRead), "UTF-8"), 65536);
 			
-			boolean invalidOSM = true;
+			//look for the root tag in the first lines, then read them again
+			br.mark(MARK_LIMIT);
 			
-			for (int i = 0; i < 3; i++) {
-				if (!br.readLine().contains("<osm")) {
+			for (int i = 0; i < 3 && invalidOSM; i++) {
+				String line = br.readLine();
+				if (line == null) {
+					break;
+				}
+				if (line.contains("<osm")) {
 					invalidOSM = false;
 				}
 			}
-			if (invalidOSM) {
-				System.err.println("Error: no OSM XML root tag found");
-				System.exit(1);
-			}
-			fr = new FileReader(inputFileName);
-			br = new BufferedReader(fr);
-		} catch (Exception e) {
-			System.err.println("Error opening input file: " + inputFileName);
-			System.exit(1);
+			br.reset();
+		} catch (IOException e) {
+			n2tn.close();
+			throw new IOException("Error opening input file: " + inputFileName, e);
 		}
+		if (invalidOSM) {
+			br.close();
+			n2tn.close();
+			throw new IOException("no OSM XML root tag found in " + inputFileName);
+		}
+	}
+	
+	/**
+	 * Constructor - a further level of a multi-level split, see split(Split[])
+	 * @param reader - the level with the smallest tile size, which reads the input and writes the index
+	 * @param dataDir - directory for the temporary files
+	 * @param tilesize - nested with the tile size of reader
+	 * @param sink - receives the tiles
+	 */
+	Split(Split reader, String dataDir, float tilesize, TileSink sink) {
+		n2tn = new NodeToTileNumber(reader.n2tn, tilesize);
+		inputFileName = reader.inputFileName;
+		this.dataDir = dataDir;
+		this.tilesize = tilesize;
+		slim = reader.slim;
+		this.sink = sink;
+		locations = reader.locations;
+		reading = false;
 	}
 	
 	/**
 	 * split
-	 * @throws Exception
+	 * @throws IOException
 	 */
-	public void split() throws Exception {
-		System.out.println("Splitting file " + inputFileName + ", tile size: " + tilesize + "°");
-
-		Date startDate = new Date();
-		long startTime = startDate.getTime(), timeRunning, lineCount = 0;
-		final long lineThreshold = 100000;
+	public void split() throws IOException {
+		begin();
 		
-		boolean debug = false;
-		
-		//read lines
-		while ((line = br.readLine()) != null) {
-			lineCount++;
+		try {
+			//read lines
+			while ((line = br.readLine()) != null) {
+				if (!process(line)) {
+					break;
+				}
+			}
+			finish();
+		} finally {
+			//not to hold up the other inputs; after a failure Splitter cancels them anyway
+			if (nodesRead != null) {
+				nodesRead.countDown();
+			}
+		}
 			
-			//begin node
-			if (line.contains("<node ")) {
-				target = "nodes";
-				
-				//parse id, lat, lon
-				attr = parseAttr(line);
-				nodeId = Long.valueOf(attr.get("id"));
-				nodeLat = Float.valueOf(attr.get("lat"));
-				nodeLon = Float.valueOf(attr.get("lon"));
-				
-				//write tile number to random access file
-				tn = n2tn.setTn(nodeId, nodeLat, nodeLon);
+		br.close();
+		n2tn.close();
+		
+		if (locations != null) {
+			locations.close();
+		}
+		metrics.time("split_close", phaseStart);
+	}
 				
-				//remember tile
-				if (!tilesMap.containsKey(tn)) {
-					t = new Tile(tn, dataDir);
-					tilesMap.put(tn, t);
-				}
-				else {
-					t = tilesMap.get(tn);
-				}
+	/**
+	 * split: split the input once into the tiles of several nested tile sizes,
+	 * then write the tiles of all sizes at the same time
+	 * @param levels - levels[0] reads the input, the others are created with it as reader
+	 * @throws IOException
+	 */
+	public static void split(Split[] levels) throws IOException {
+		Split reader = levels[0];
+		String line;
 				
-				//write
-				if (slim) {
-					t.nodes.add(nodeId);
-					t.writeTmpNodes(line);
+		for (Split level : levels) {
+			level.begin();
+		}
+		try {
+			while ((line = reader.br.readLine()) != null) {
+				boolean more = true;
+					
+				//all levels stop at the same line
+				for (Split level : levels) {
+					more = level.process(line);
 				}
-				else {
-					storeNode(nodeId, t, line);
+				if (!more) {
+					break;
 				}
 			}
-			//end node
-			else if (line.contains("</node")) {
-				//write
-				if (slim) {
-					t.writeTmpNodes(line);
-				}
-				else {
-					storeNode(nodeId, t, line);
+			//before the levels look up refs in parallel
+			reader.awaitNodes();
+			ExecutorService pool = Executors.newFixedThreadPool(levels.length);
+			ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+					
+			try {
+				for (final Split level : levels) {
+					futures.add(pool.submit(new Callable<Object>() {
+						public Object call() throws IOException {
+							level.finish();
+							return null;
+						}
+					}));
 				}
+				await(futures);
+			} finally {
+				pool.shutdown();
 			}
-			//begin way
-			else if (line.contains("<way ")) {
-				//init
-				target = "ways";
-				wayLine = line;		//save the <way> line, will be written later
-				firstRef = 0;
-				previousRef = 0;
-				previousTn = 0;
-		        tiles.clear();
-				refsHaveBeenWritten.clear();
-				lastRemoteNodeAdded.clear();
-				refs.clear();
-				refTn.clear();
+		} finally {
+			if (reader.nodesRead != null) {
+				reader.nodesRead.countDown();
+			}
+		}
+		reader.br.close();
+		reader.n2tn.close();
+		
+		if (reader.locations != null) {
+			reader.locations.close();
+		}
+		reader.metrics.time("split_close", reader.phaseStart);
+	}
 				
-				//debug = wayLine.contains("way id=\"0\"");	//insert way ID to debug
+	/**
+	 * begin: prepare reading the input
+	 */
+	void begin() {
+		log.println("Splitting file " + inputFileName + ", tile size: " + tilesize + "°");
+		
+		if (reading) {
+			metrics.setInput(bytesRead, new File(inputFileName).isFile() ? new File(inputFileName).length() : 0);
+			nodeCounter = metrics.counter("osmt_nodes_total");
+			wayCounter = metrics.counter("osmt_ways_total");
+			ndCounter = metrics.counter("osmt_nds_total");
+			filteredWays = metrics.counter("osmt_filtered_ways_total");
+			filteredTags = metrics.counter("osmt_filtered_tags_total");
+		}
+		else {
+			nodeCounter = new AtomicLong();
+			wayCounter = new AtomicLong();
+			ndCounter = new AtomicLong();
+			filteredWays = new AtomicLong();
+			filteredTags = new AtomicLong();
+		}
+		deferWays = refLookup != REFS_DIRECT || (filter != null && filter.selectsWays());
+		lookupCounter = metrics.counter("osmt_index_lookups_total");
+		copyCounter = metrics.counter("osmt_boundary_node_copies_total");
+		tileGauge = metrics.gauge("osmt_tiles");
+		
+		if (sharedBoundary) {
+			boundaryNodes = new ExternalSort(dataDir + "boundary-", sortChunk());
+		}
+		phaseStart = System.nanoTime();
+	}
+	
+	/**
+	 * process: process a line of the input
+	 * @param line
+	 * @return false after the last node and way
+	 * @throws IOException
+	 */
+	boolean process(String line) throws IOException {
+		lineCount++;
+		
+		//begin node
+		if (line.contains("<node ")) {
+			target = "nodes";
+			nodeCounter.incrementAndGet();
+			
+			//parse id, lat, lon
+			ArrayList<String> attributes = attributes(line);
+			node = new Element(false, filter != null ? filter.attributes(attributes) : attributes);
+			nodeId = node.id;
+			nodeLat = Float.valueOf(value(attributes, "lat"));
+			nodeLon = Float.valueOf(value(attributes, "lon"));
+			
+			//write tile number to random access file
+			tn = n2tn.setTn(nodeId, nodeLat, nodeLon);
+			
+			if (locations != null && reading) {
+				locations.put(nodeId, node.lat, node.lon);
+			}
+			
+			//remember tile
+			if (!tilesMap.containsKey(tn)) {
+				t = new Tile(tn, dataDir, n2tn, metrics, sink);
+				t.nodeStore.openRuns = openRuns;
+				tilesMap.put(tn, t);
+				tileGauge.incrementAndGet();
+			}
+			else {
+				t = tilesMap.get(tn);
 			}
-			//nd
-			else if (line.contains("<nd ")) {
-				//parse ref
-				attr = parseAttr(line);
-				ref = Long.valueOf(attr.get("ref"));
+			
+			t.nodeCount++;
+			
+			//write, a node with tags when its end tag is read
+			if (line.trim().endsWith("/>")) {
+				storeNode(t, node);
+			}
+		}
+		//end node
+		else if (line.contains("</node")) {
+			//write
+			storeNode(t, node);
+		}
+		//begin way
+		else if (line.contains("<way ")) {
+			if (!waysStarted) {
+				awaitNodes();
+				metrics.time("split_nodes", phaseStart);
+				phaseStart = System.nanoTime();
+				waysStarted = true;
 				
+				if (refLookup == REFS_SORT) {
+					join = new RefJoin(dataDir, sortChunk());
+				}
+			}
+			wayCounter.incrementAndGet();
+			
+			//init
+			target = "ways";
+			way = new Element(true, filter != null ? filter.attributes(attributes(line)) : attributes(line));		//written with its refs and tags at the end tag
+			wayMatches = 0;
+			
+			if (!deferWays) {
+				beginWay();
+			}
+		}
+		//nd
+		else if (line.contains("<nd ")) {
+			//parse ref
+			ref = Long.valueOf(getAttr(line, "ref"));
+			ndCounter.incrementAndGet();
+					
+			if (deferWays) {
+				//looked up later, with the refs of the block or of all ways, or once the tags are known
+				way.refs.add(ref);
+			}
+			else {
 				//get tile
 				tn = n2tn.getTn(ref);
-				t = tilesMap.get(tn);
-				tiles.add(t);
+				lookupCounter.incrementAndGet();
+				addRef(ref, tn);
+			}
+		}
+		//end way
+		else if (line.contains("</way")) {
+			if (filter != null && !filter.keepWay(wayMatches)) {
+				//nothing of it was written yet
+				filteredWays.incrementAndGet();
+			}
+			else if (refLookup == REFS_SORT) {
+				join.add(way);
+			}
+			else if (refLookup == REFS_BATCH) {
+				batch.add(way);
+				batchRefs += way.refs.size();
 				
+				if (batchRefs >= BATCH_REFS) {
+					resolveBatch();
+				}
+			}
+			else if (deferWays) {
+				lookupWay();
+			}
+			else {
+				endWay();
+			}
+		}
+		//end
+		else if (line.contains("<relation ") || line.contains("</osm")) {
+			return false;
+		}
+		//tags
+		else {
+			if (target == "nodes") {
+				if (line.contains("<tag ")) {
+					addTag(node, line);
+				}
+			}
+			else if (target == "ways") {
+				if (line.contains("<tag ")) {
+					addTag(way, line);
+				}
+			}
+		}
+			
+		// performance status
+		if (reading && lineCount % lineThreshold == 0) {
+			log.println(metrics.progressLine());
+		}
+		return true;
+	}
+	
+	/**
+	 * finish: process what is left of the ways and write the tiles
+	 * @throws IOException
+	 */
+	void finish() throws IOException {
+		awaitNodes();
+		
+		if (!batch.isEmpty()) {
+			resolveBatch();
+		}
+		if (lookupPool != null) {
+			lookupPool.shutdown();
+		}
+		metrics.time(waysStarted ? "split_ways" : "split_nodes", phaseStart);
+		phaseStart = System.nanoTime();
+		
+		if (join != null) {
+			log.println("joining refs ...");
+			joinWays();
+			metrics.time("split_join", phaseStart);
+			phaseStart = System.nanoTime();
+		}
+		
+		log.println("writing nodes ...");
+		
+		NodeStore boundary = null;
+		
+		if (boundaryNodes != null) {
+			boundary = new NodeStore(dataDir + "boundary-");
+			distributeBoundaryNodes();
+		}
+		for (Tile i : tilesMap.values()) {
+			//close temp. writers
+			i.closeTmpWriters();
+			i.closeSegments();
+			
+			if (locations != null) {
+				i.closeBoxes();
+			}
+			if (boundary != null) {
+				collectBoundaryNodes(i, boundary);
+			}
+			
+			//create writer for output file
+			i.openTileWriter();
+			i.writeOpening();
+			
+			//write nodes
+			if (slim) {
+				i.writeNodesFromTmp();
+			}
+			else {
+				i.writeNodesFromStore();
+			}
+		}
+		
+		if (boundary != null) {
+			writeBoundary(boundary);
+		}
+		metrics.time("split_write_nodes", phaseStart);
+		phaseStart = System.nanoTime();
+		
+		log.println("writing ways ...");
+		
+		for (Tile i : tilesMap.values()) {
+			//write ways
+			i.writeWaysFromTmp();
+		}
+		metrics.time("split_write_ways", phaseStart);
+		phaseStart = System.nanoTime();
+		
+		log.println("closing ...");
+		
+		manifest = new Manifest(tilesize);
+		manifest.boundaryBytes = boundaryBytes;
+		manifest.boundaryChecksum = boundaryChecksum;
+		
+		for (Tile i : tilesMap.values()) {
+			i.writeClosingTags();
+			i.removeTmpFiles();
+			manifest.tiles.put(i.tn, i.manifestEntry());
+			sink.done(manifest.tiles.get(i.tn));
+		}
+		sink.finish(manifest);
+	}
+	
+	/**
+	 * beginWay: reset the state of way processing for the current way
+	 */
+	void beginWay() {
+		wayId = way.id;
+		firstRef = 0;
+		previousRef = 0;
+		previousTn = 0;
+        tiles.clear();
+		lastRemoteNodeAdded.clear();
+		refs.clear();
+		refTn.clear();
+		
+		//debug = way.id == 0;	//insert way ID to debug
+	}
+	
+	/**
+	 * addRef: add a ref of the current way, copying nodes where the way crosses a tile boundary
+	 * @param ref
+	 * @param tn - tile of the ref
+	 * @throws IOException
+	 */
+	void addRef(long ref, int tn) throws IOException {
+		this.ref = ref;
+		this.tn = tn;
+		t = tilesMap.get(tn);
+		
+		if (t == null) {
+			//not a node of this input; of several inputs, each must have all nodes of its ways
+			throw missingNode(ref);
+		}
+		tiles.add(t);
+		
 //debug
 if (debug) {
 	System.out.println("== ref "+ref+" in tile "+tn+" ==");
 }
-				//init
-				if (!refs.containsKey(t)) {
-					refs.put(t, new ArrayList<Long>());
-					refTn.put(t, new ArrayList<Integer>());
-					lastRemoteNodeAdded.put(t, 0L);
-				}
-				
-				//if way crosses a tile boundary...
-				if (previousTn != tn && previousTn != 0) {
+		//init
+		if (!refs.containsKey(t)) {
+			refs.put(t, new ArrayList<Long>());
+			refTn.put(t, new ArrayList<Integer>());
+			lastRemoteNodeAdded.put(t, 0L);
+		}
+		
+		//if way crosses a tile boundary...
+		if (previousTn != tn && previousTn != 0) {
 //debug
 if (debug) {
 	System.out.println("copying node "+ref+" from "+tn+" to "+previousTn);
 }
-					
-					//copy <node> backward
-					if (slim) {
-						previousT.nodes.add(ref);
-						previousT.nodesExtra.add(ref);
-						previousT.writeRemoteNode(ref, t);
-					}
-					else {
-						storeRemoteNode(ref, t, previousT);
-					}
-					
-					//copy ref backward
-					refs.get(previousT).add(ref);
-					refTn.get(previousT).add(tn);
-					
-					lastRemoteNodeAdded.put(previousT, ref);
-					
-					if (lastRemoteNodeAdded.get(t) != previousRef) {	//prevent nodes from being inserting two subsequent times
-//debug
-if (debug) {
-	System.out.println("copying node "+previousRef+" from "+previousTn+" to "+tn);
-}
-						
-						//copy <node> forward
-						if (slim) {
-							t.nodes.add(previousRef);
-							t.nodesExtra.add(previousRef);
-							t.writeRemoteNode(previousRef, previousT);
-						}
-						else {
-							storeRemoteNode(previousRef, previousT, t);
-						}
-						
-						//copy ref forward
-						refs.get(t).add(previousRef);
-						refTn.get(t).add(previousTn);
+			
+			//copy <node> backward, or write it once to the boundary file
+			if (sharedBoundary) {
+				boundaryNodes.add(ref, tn);
+			}
+			else {
+				copyCounter.incrementAndGet();
+				
+				if (slim) {
+					if (!previousT.writeRemoteNode(ref, t)) {
+						throw missingNode(ref);
 					}
 				}
-				
-				//other nd
-				refs.get(t).add(ref);
-				refTn.get(t).add(0);
-				
-				if (firstRef == 0) {
-					firstRef = ref;
+				else {
+					storeRemoteNode(ref, t, previousT);
 				}
-								
-				previousT = t;
-				previousTn = tn;
-				previousRef = ref;
-			}
-			//end way
-			else if (line.contains("</way")) {
-				//write all lines if not yet done (in each tile)
-				for (Tile i : tiles) {
-					if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
-						//Closed ways: If the last nd equals the first nd, append to all segments
-						//the first (local) nd.
-						if (ref == firstRef && ref != refs.get(i).get(refs.get(i).size() - 1)) {
-							refs.get(i).add(refs.get(i).get(0));
-							refTn.get(i).add(refTn.get(i).get(0));
-						}
+			}
+			
+			//copy ref backward
+			refs.get(previousT).add(ref);
+			refTn.get(previousT).add(tn);
+			
+			lastRemoteNodeAdded.put(previousT, ref);
+			
+			if (lastRemoteNodeAdded.get(t) != previousRef) {	//prevent nodes from being inserting two subsequent times
 //debug
 if (debug) {
-	System.out.println("closed way, write first nd again in tile "+tn);
+	System.out.println("copying node "+previousRef+" from "+previousTn+" to "+tn);
 }
-						
-						//write <way>, <nd>s
-						i.writeTmpWays(wayLine);
-						writeRefs(i);
-						refsHaveBeenWritten.put(i, true);
-					}
-					//write
-					i.writeTmpWays(line);
+				
+				//copy <node> forward
+				if (sharedBoundary) {
+					boundaryNodes.add(previousRef, previousTn);
 				}
-			}
-			//end
-			else if (line.contains("<relation ") || line.contains("</osm")) {
-				break;
-			}
-			//tags
-			else {
-				if (target == "nodes") {
+				else {
+					copyCounter.incrementAndGet();
+					
 					if (slim) {
-						t.writeTmpNodes(line);
+						if (!t.writeRemoteNode(previousRef, previousT)) {
+							throw missingNode(previousRef);
+						}
 					}
 					else {
-						storeNode(nodeId, t, line);
+						storeRemoteNode(previousRef, previousT, t);
 					}
 				}
-				else if (target == "ways") {
-					//write all lines if not yet done (in each tile)
-					for (Tile i : tiles) {
-						if (!refsHaveBeenWritten.containsKey(i) || !refsHaveBeenWritten.get(i)) {
-							//Closed ways: If the last nd equals the first nd, append to all segments
-							//the first (local) nd.
-							if (ref == firstRef && ref != refs.get(i).get(refs.get(i).size() - 1)) {
-								refs.get(i).add(refs.get(i).get(0));
-								refTn.get(i).add(refTn.get(i).get(0));
-							}
+				
+				//copy ref forward
+				refs.get(t).add(previousRef);
+				refTn.get(t).add(previousTn);
+			}
+		}
+		
+		//other nd
+		refs.get(t).add(ref);
+		refTn.get(t).add(0);
+		
+		if (firstRef == 0) {
+			firstRef = ref;
+		}
+						
+		previousT = t;
+		previousTn = tn;
+		previousRef = ref;
+	}
+	
+	/**
+	 * endWay: write the current way to each of its tiles
+	 * @throws IOException
+	 */
+	void endWay() throws IOException {
+		for (Tile i : tiles) {
+			//Closed ways: If the last nd equals the first nd, append to all segments
+			//the first (local) nd.
+			if (ref == firstRef && ref != refs.get(i).get(refs.get(i).size() - 1)) {
+				refs.get(i).add(refs.get(i).get(0));
+				refTn.get(i).add(refTn.get(i).get(0));
+			}
 //debug
 if (debug) {
 	System.out.println("closed way, write first nd again in tile "+tn);
 }
-
-							//write <way>, <nd>s
-							i.writeTmpWays(wayLine);
-							writeRefs(i);
-							refsHaveBeenWritten.put(i, true);
-						}
-						//write
-						i.writeTmpWays(line);
-					}
+				
+			//write <way>, <nd>s, <tag>s
+			writeRefs(i);
+			i.wayCount++;
+		}
+	}
+	
+	/**
+	 * addTag: add a tag to an element, unless the filter leaves it out
+	 * @param e
+	 * @param line
+	 */
+	void addTag(Element e, String line) {
+		if (filter == null) {
+			e.addTag(line);
+			return;
+		}
+		String[] tag = Element.tag(line);
+		
+		if (tag == null) {
+			return;
+		}
+		if (e.way) {
+			wayMatches |= filter.matchWay(tag[0], tag[1]);
+		}
+		if (filter.keepTag(tag[0], tag[1])) {
+			e.tags.add(tag[0]);
+			e.tags.add(tag[1]);
+		}
+		else {
+			filteredTags.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * lookupWay: look up the refs of the current way one by one and process it
+	 * @throws IOException
+	 */
+	void lookupWay() throws IOException {
+		ArrayList<Long> wayRefs = way.refs;
+		beginWay();
+		
+		for (long r : wayRefs) {
+			addRef(r, n2tn.getTn(r));
+		}
+		lookupCounter.addAndGet(wayRefs.size());
+		endWay();
+	}
+	
+	/**
+	 * joinWays: process the spooled ways with the refs resolved by the join
+	 * @throws IOException
+	 */
+	void joinWays() throws IOException {
+		lookupCounter.addAndGet(join.resolve(n2tn));
+		
+		try {
+			while ((way = join.nextWay()) != null) {
+				ArrayList<Long> wayRefs = way.refs;
+				beginWay();
+				
+				for (long r : wayRefs) {
+					addRef(r, join.nextTn());
 				}
+				endWay();
+			}
+		} finally {
+			join.close();
+		}
+	}
+	
+	/**
+	 * resolveBatch: look up the refs of the buffered ways, sorted and without duplicates,
+	 * and process the ways
+	 * @throws IOException
+	 */
+	void resolveBatch() throws IOException {
+		long[] ids = new long[batchRefs];
+		int n = 0;
+		
+		for (Element w : batch) {
+			for (long r : w.refs) {
+				ids[n++] = r;
+			}
+		}
+		Arrays.sort(ids);
+		n = 0;
+		
+		for (int i = 0; i < ids.length; i++) {
+			if (n == 0 || ids[i] != ids[n - 1]) {
+				ids[n++] = ids[i];
 			}
+		}
+		int[] tns = new int[n];
+		getTn(ids, n, tns);
+		lookupCounter.addAndGet(n);
+		
+		for (Element w : batch) {
+			ArrayList<Long> wayRefs = w.refs;
+			way = w;
+			beginWay();
 			
-			// performance status
-			if (lineCount % lineThreshold == 0) {
-				timeRunning = new Date().getTime() - startTime;
-				startTime = new Date().getTime();
-
-				System.out.println("read " + lineCount + " lines (" + lineThreshold + " in " + timeRunning + " ms)");
+			for (long r : wayRefs) {
+				addRef(r, tns[Arrays.binarySearch(ids, 0, n, r)]);
 			}
+			endWay();
 		}
+		batch.clear();
+		batchRefs = 0;
+	}
+	
+	/**
+	 * getTn: look up ascending IDs, in parallel parts if there are enough of them
+	 * @param ids
+	 * @param n - number of IDs
+	 * @param tns - receives the tile numbers
+	 * @throws IOException
+	 */
+	void getTn(final long[] ids, int n, final int[] tns) throws IOException {
+		int parts = Math.min(Runtime.getRuntime().availableProcessors(), n / PARALLEL_REFS);
 		
-		System.out.println("writing nodes ...");
+		if (parts <= 1) {
+			n2tn.getTn(ids, 0, n, tns);
+			return;
+		}
+		if (lookupPool == null) {
+			lookupPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "osmt-lookup");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
 		
-		for (Tile i : tilesMap.values()) {
-			//close temp. writers
-			i.nodesWriter.close();
-			i.nodesExtraWriter.close();
-			i.waysWriter.close();
+		for (int p = 0; p < parts; p++) {
+			final int from = (int)((long)n * p / parts), to = (int)((long)n * (p + 1) / parts);
 			
-			//create writer for output file
-			i.tileWriter = new FileWriter(i.tileFn);
-			i.writeOpening();
+			futures.add(lookupPool.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					n2tn.getTn(ids, from, to, tns);
+					return null;
+				}
+			}));
+		}
+		await(futures);
+	}
+	
+	/**
+	 * await: wait for tasks, passing on their failure
+	 * @param futures
+	 * @throws IOException
+	 */
+	static void await(ArrayList<Future<Object>> futures) throws IOException {
+		try {
+			for (Future<Object> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(e.getCause());
+		}
+	}
+	
+	/**
+	 * awaitNodes: wait until the other inputs sharing the index have read their nodes, once
+	 * @throws IOException
+	 */
+	void awaitNodes() throws IOException {
+		if (nodesRead == null) {
+			return;
+		}
+		CountDownLatch latch = nodesRead;
+		nodesRead = null;
+		latch.countDown();
+		
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new IOException("interrupted while waiting for the nodes of the other inputs");
+		}
+	}
+	
+	/**
+	 * sortChunk: pairs per chunk of the external sorts, two of which are in memory at a time
+	 * @return
+	 */
+	static int sortChunk() {
+		return (int)Math.max(1 << 16, Math.min(1 << 22, Runtime.getRuntime().maxMemory() / 16 / 8));
+	}
+	
+	/**
+	 * storeNode: write a node to the tile's temporary file (slim) or node store
+	 * @param tile
+	 * @param node
+	 * @throws IOException
+	 */
+	void storeNode(Tile tile, Element node) throws IOException {
+		if (slim) {
+			tile.writeTmpNode(node);
+		}
+		else {
+			storedBytes += tile.storeNode(node);
 			
-			//write nodes
-			if (slim) {
-				i.writeNodesFromTmp();
+			if (storedBytes > memoryBudget) {
+				spill();
 			}
-			else {
-				for (String s : i.nodesMap.values()) {
-					i.writeLine(s);
+		}
+	}
+
+	/**
+	 * spill: write the nodes of the largest tiles to disk until a quarter of the budget is free
+	 * @throws IOException
+	 */
+	void spill() throws IOException {
+		while (storedBytes > memoryBudget - memoryBudget / 4) {
+			Tile largest = null;
+			
+			for (Tile i : tilesMap.values()) {
+				if (largest == null || i.nodeStore.size() > largest.nodeStore.size()) {
+					largest = i;
 				}
 			}
+			if (largest.nodeStore.size() == 0) {
+				break;
+			}
+			storedBytes -= largest.nodeStore.size();
+			metrics.add("osmt_spilled_bytes_total", largest.nodeStore.spill());
+			metrics.add("osmt_spilled_runs_total", 1);
 		}
+		metrics.gauge("osmt_node_store_bytes").set(storedBytes);
+	}
+
+	/**
+	 * distributeBoundaryNodes: hand each boundary node, once, to the tile that has it
+	 * @throws IOException
+	 */
+	void distributeBoundaryNodes() throws IOException {
+		ExternalSort.Cursor c = boundaryNodes.sorted();
+		long previous = Long.MIN_VALUE, count = 0;
 		
-		System.out.println("writing ways ...");
-		
-		for (Tile i : tilesMap.values()) {
-			//write ways
-			i.writeWaysFromTmp();
+		try {
+			while (c.next()) {
+				if (c.key != previous) {
+					tilesMap.get((int)c.value).addBoundaryNode(c.key);
+					previous = c.key;
+					count++;
+				}
+			}
+		} finally {
+			c.close();
 		}
+		boundaryNodes.delete();
+		metrics.add("osmt_boundary_nodes_total", count);
+	}
+	
+	/**
+	 * collectBoundaryNodes: move the boundary nodes of a tile to the boundary store
+	 * @param tile - its temporary writers closed
+	 * @param boundary
+	 * @throws IOException
+	 */
+	void collectBoundaryNodes(Tile tile, NodeStore boundary) throws IOException {
+		tile.collectBoundaryNodes(boundary, slim);
 		
-		System.out.println("closing ...");
-		
-		for (Tile i : tilesMap.values()) {
-			i.writeClosingTags();
-			i.removeTmpFiles();
+		//like the tiles' stores, but with a budget of its own
+		if (boundary.size() > Math.min(memoryBudget, Runtime.getRuntime().maxMemory()) / 8) {
+			metrics.add("osmt_spilled_bytes_total", boundary.spill());
+			metrics.add("osmt_spilled_runs_total", 1);
 		}
 	}
 	
 	/**
-	 * storeNode: write node data to TreeMap 
-	 * @param ref
-	 * @param tn
-	 * @param s
+	 * writeBoundary: write the boundary nodes to the sink as Tile.BOUNDARY_FILE, in ID order
+	 * @param boundary
+	 * @throws IOException
 	 */
-	void storeNode(long ref, Tile tile, String s) {
-		if (tile.nodesMap.containsKey(ref)) {
-			tile.nodesMap.put(ref, tile.nodesMap.get(ref) + "\n" + s);
+	void writeBoundary(NodeStore boundary) throws IOException {
+		TileOutputStream out = new TileOutputStream(sink.open(0, Tile.BOUNDARY_FILE));
+		Writer w = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 65536);
+		
+		try {
+			w.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+			w.write("<osm version=\"0.6\" generator=\"osmt\">\n");
+			boundary.writeTo(w);
+			w.write("</osm>\n");
+			w.flush();
+			boundaryBytes = out.count;
+			boundaryChecksum = out.getChecksum().getValue();
+		} finally {
+			w.close();
+			
+			for (NodeStore.Run run : boundary.runs) {
+				new File(run.fn).delete();
+			}
 		}
-		else tile.nodesMap.put(ref, s);
 	}
-
+	
 	/**
-	 * storeRemoteNode: write a single node entry from tile to remote's TreeMap
+	 * storeRemoteNode: copy a single node from tile to remote's node store
 	 * @param ref
 	 * @param tile
 	 * @param remote
+	 * @throws IOException
 	 */
-	void storeRemoteNode(long ref, Tile tile, Tile remote) {
-		String s = tile.nodesMap.get(ref);
+	void storeRemoteNode(long ref, Tile tile, Tile remote) throws IOException {
+		Events.RemoteNodeCopy event = new Events.RemoteNodeCopy();
+		event.begin();
+		byte[] body = tile.nodeStore.get(ref);
 
-		if (remote.nodesMap.containsKey(ref)) {
-			remote.nodesMap.put(ref, remote.nodesMap.get(ref) + "\n" + s);
+		//in the tile of the index but not in this input, e.g. a node of another input
+		if (body == null) {
+			throw missingNode(ref);
+		}
+		storedBytes += remote.nodeStore.put(ref, body);
+		
+		if (storedBytes > memoryBudget) {
+			spill();
+		}
+		
+		if (event.shouldCommit()) {
+			event.nodeId = ref;
+			event.fromTn = tile.tn;
+			event.toTn = remote.tn;
+			event.commit();
 		}
-		else remote.nodesMap.put(ref, s);
 	}
 	
 	/**
-	 * writeRefs: write <nd .../> lines to file
+	 * missingNode: the error of a ref of the current way to a node the input lacks
+	 * @param ref
+	 * @return
+	 */
+	IOException missingNode(long ref) {
+		return new IOException("way " + wayId + " refers to node " + ref + ", which is missing from " + inputFileName);
+	}
+	
+	/**
+	 * writeRefs: write the way with the refs of a tile to its temporary file
 	 * @param tile
+	 * @throws IOException
 	 */
-	void writeRefs(Tile tile) {
+	void writeRefs(Tile tile) throws IOException {
 		//fix problem with first/last node of closed way being the last remote node
 		if (ref == firstRef && ref != refs.get(tile).get(0) && ref == lastRemoteNodeAdded.get(tile)) {
 			refs.get(tile).add(0, ref);
 			refTn.get(tile).add(0, refTn.get(tile).get(refTn.get(tile).size() - 1));
 		}
-		for (int i = 0; i < refs.get(tile).size(); i++) {
-			if (refTn.get(tile).size() > i && refTn.get(tile).get(i) != 0) {
-				tile.writeTmpWays("		<nd ref=\"" + refs.get(tile).get(i) + "\" tn=\"" + refTn.get(tile).get(i) + "\"/>");
+		//split ways also go to the segments file, so Merge does not need to parse all <nd>s
+		for (int rtn : refTn.get(tile)) {
+			if (rtn != 0) {
+				tile.writeSegment(wayId, refs.get(tile), refTn.get(tile));
+				break;
 			}
-			else {
-				tile.writeTmpWays("		<nd ref=\"" + refs.get(tile).get(i) + "\"/>");
+		}
+		if (locations != null) {
+			writeBox(tile, refs.get(tile));
+		}
+		way.refs = refs.get(tile);
+		way.refTn = refTn.get(tile);
+		tile.writeTmpWay(way);
+	}
+	
+	/**
+	 * writeBox: write the bounding box of the refs of the way in a tile, including the copied nodes
+	 * @param tile
+	 * @param wayRefs
+	 * @throws IOException
+	 */
+	void writeBox(Tile tile, ArrayList<Long> wayRefs) throws IOException {
+		int[] box = {Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE};
+		
+		for (long r : wayRefs) {
+			//nodes missing from the input are left out
+			if (locations.get(r, latLon)) {
+				box[0] = Math.min(box[0], latLon[0]);
+				box[1] = Math.min(box[1], latLon[1]);
+				box[2] = Math.max(box[2], latLon[0]);
+				box[3] = Math.max(box[3], latLon[1]);
 			}
 		}
+		if (box[0] <= box[2]) {
+			tile.writeBox(wayId, box);
+		}
 	}
 	
 	/**
@@ -412,14 +1083,97 @@ if (debug) {
 	 */
 	public static HashMap<String, String> parseAttr(String line) {
 		HashMap<String, String> result = new HashMap<String, String>();
-		String[] attributes = line.trim().replaceAll("/>$", "").replaceAll(">$", "").split(" +");
+		ArrayList<String> attributes = attributes(line);
 		
-		for (String s : attributes) {
-			if (s.contains("=")) {
-				String[] keyValue = s.replace("\"", "").split("=");
-				result.put(keyValue[0], keyValue[1]);
+		for (int i = 0; i + 1 < attributes.size(); i += 2) {
+			result.put(attributes.get(i), attributes.get(i + 1));
+		}
+		return result;
+	}
+	
+	/**
+	 * attributes: tokenize the attributes of the first tag of a line, respecting quotes,
+	 * so values may contain spaces, "=" and the other kind of quote
+	 * @param line
+	 * @return key, value, key, value, ... in the order of the line, values still XML-escaped
+	 */
+	public static ArrayList<String> attributes(String line) {
+		ArrayList<String> result = new ArrayList<String>();
+		int i = line.indexOf('<') + 1;
+		int n = line.length();
+		
+		//skip the element name
+		while (i > 0 && i < n && !Character.isWhitespace(line.charAt(i)) && line.charAt(i) != '>' && line.charAt(i) != '/') {
+			i++;
+		}
+		while (i > 0 && i < n) {
+			while (i < n && Character.isWhitespace(line.charAt(i))) {
+				i++;
 			}
+			if (i >= n || line.charAt(i) == '>' || line.charAt(i) == '/') {
+				break;
+			}
+			int keyStart = i;
+			
+			while (i < n && line.charAt(i) != '=' && !Character.isWhitespace(line.charAt(i))) {
+				i++;
+			}
+			String key = line.substring(keyStart, i);
+			
+			while (i < n && (line.charAt(i) == '=' || Character.isWhitespace(line.charAt(i)))) {
+				i++;
+			}
+			if (i >= n || (line.charAt(i) != '"' && line.charAt(i) != '\'')) {
+				break;
+			}
+			char quote = line.charAt(i);
+			int end = line.indexOf(quote, i + 1);
+			
+			if (end < 0) {
+				break;
+			}
+			String value = line.substring(i + 1, end);
+			
+			//values are written in double quotes
+			if (quote == '\'' && value.indexOf('"') >= 0) {
+				value = value.replace("\"", "&quot;");
+			}
+			result.add(key);
+			result.add(value);
+			i = end + 1;
 		}
 		return result;
 	}
+	
+	/**
+	 * value: get a value from the result of attributes()
+	 * @param attributes
+	 * @param key
+	 * @return value, or null if the attribute is missing
+	 */
+	public static String value(ArrayList<String> attributes, String key) {
+		for (int i = 0; i + 1 < attributes.size(); i += 2) {
+			if (attributes.get(i).equals(key)) {
+				return attributes.get(i + 1);
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * getAttr: get a single XML attribute from a line without tokenizing the whole line
+	 * @param line
+	 * @param key
+	 * @return value, or null if the attribute is missing
+	 */
+	public static String getAttr(String line, String key) {
+		int start = line.indexOf(" " + key + "=\"");
+		
+		//single quotes, spaces around "="
+		if (start < 0) {
+			return value(attributes(line), key);
+		}
+		start += key.length() + 3;
+		return line.substring(start, line.indexOf('"', start));
+	}
 }
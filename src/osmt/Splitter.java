@@ -0,0 +1,383 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splitter - split an OSM file into tiles, for embedding osmt in other programs
+ *
+ * The configuration belongs to the instance, so several splits can run in
+ * one JVM at the same time as long as their work directories differ. Errors
+ * are thrown, progress goes to the log stream.
+ *
+ * Splitter splitter = new Splitter("planet.osm", "/tmp/work/");
+ * splitter.setTilesize(0.5F);
+ * splitter.setSink(mySink);	//tiles go to the sink instead of the work directory
+ * Manifest manifest = splitter.split();
+ *
+ * With several tile sizes (setTilesizes), the input is read once and the
+ * tiles of each size go to a subdirectory of the work directory named after
+ * the size, see levelDir(); the sink is not used then.
+ *
+ * Several inputs, e.g. regional extracts, are split at the same time into
+ * subdirectories of the work directory, sharing the index, and then
+ * combined by TileUnion. The index is cleared first, and no input looks up
+ * a ref before all inputs have read their nodes. Each input must contain
+ * all nodes of its ways, as a tile only gets copies of the nodes its input
+ * has; a way referring to a node of another input fails the split.
+ */
+public class Splitter {
+	String inputFile, workDir, indexFile;
+	InputStream input;
+	ArrayList<String> inputFiles;
+	float tilesize = 1.0F;
+	float[] tilesizes;
+	boolean slim = false;
+	long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+	int refLookup = Split.REFS_BATCH;
+	Filter filter;
+	String locationFile;
+	boolean sharedBoundary = false;
+	TileSink sink;
+	PrintStream log = System.out;
+	Metrics metrics = new Metrics();
+	//of the inputs split together, counted down when one has read its nodes
+	CountDownLatch nodesRead;
+	
+	/**
+	 * Constructor
+	 * @param inputFile
+	 * @param workDir - directory for the temporary files, the index and (without a sink) the tiles
+	 */
+	public Splitter(String inputFile, String workDir) {
+		this.inputFile = inputFile;
+		this.workDir = workDir.isEmpty() || workDir.endsWith("/") ? workDir : workDir + "/";
+		indexFile = this.workDir + "node2tn";
+	}
+	
+	/**
+	 * Constructor - split several inputs into one tile set
+	 * @param inputFiles - sorted by ID each and with all nodes of their ways, like extracts;
+	 * nodes and ways in more than one are written once
+	 * @param workDir
+	 */
+	public Splitter(List<String> inputFiles, String workDir) {
+		this(inputFiles.get(0), workDir);
+		this.inputFiles = new ArrayList<String>(inputFiles);
+	}
+	
+	public void setTilesize(float tilesize) {
+		this.tilesize = tilesize;
+		tilesizes = null;
+	}
+	
+	/**
+	 * setTilesizes: split into tiles of several sizes at once; each size must be
+	 * a whole multiple of the smallest, see NodeToTileNumber.nested()
+	 * @param tilesizes
+	 */
+	public void setTilesizes(float[] tilesizes) {
+		this.tilesizes = tilesizes.clone();
+		Arrays.sort(this.tilesizes);
+		tilesize = this.tilesizes[0];
+	}
+	
+	public void setSlim(boolean slim) {
+		this.slim = slim;
+	}
+	
+	/**
+	 * setMemoryBudget: heap for the nodes kept in memory (not slim), defaults to half of the heap limit;
+	 * beyond it the nodes of the largest tiles are written to sorted runs on disk
+	 * @param bytes
+	 */
+	public void setMemoryBudget(long bytes) {
+		this.memoryBudget = bytes;
+	}
+	
+	/**
+	 * setRefLookup: Split.REFS_BATCH to look up the refs of a block of ways sorted (default),
+	 * Split.REFS_DIRECT to look up each ref when it is read, Split.REFS_SORT to sort all
+	 * refs first and read the index sequentially
+	 * @param refLookup
+	 */
+	public void setRefLookup(int refLookup) {
+		this.refLookup = refLookup;
+	}
+	
+	/**
+	 * setFilter: leave tags, attributes and ways out of the tiles
+	 * @param filter - null for none
+	 */
+	public void setFilter(Filter filter) {
+		this.filter = filter;
+	}
+	
+	/**
+	 * setLocationFile: store the node locations in a file to write the bounding boxes of the ways
+	 * @param locationFile - null for none
+	 */
+	public void setLocationFile(String locationFile) {
+		this.locationFile = locationFile;
+	}
+	
+	/**
+	 * setSharedBoundary: write the boundary nodes once to Tile.BOUNDARY_FILE instead of to their tiles and copies
+	 * @param sharedBoundary
+	 */
+	public void setSharedBoundary(boolean sharedBoundary) {
+		this.sharedBoundary = sharedBoundary;
+	}
+	
+	/**
+	 * setInput: read the input from a stream, e.g. a pipe, instead of opening the input file
+	 * @param input - the input file names it
+	 */
+	public void setInput(InputStream input) {
+		this.input = input;
+	}
+	
+	public void setIndexFile(String indexFile) {
+		this.indexFile = indexFile;
+	}
+	
+	public void setSink(TileSink sink) {
+		this.sink = sink;
+	}
+	
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * split: split the input file
+	 * @return the manifest of the tiles
+	 * @throws IOException
+	 */
+	public Manifest split() throws IOException {
+		if (tilesize < 0.006F) {
+			throw new IllegalArgumentException("Tile size must be 0.006 degrees or more");
+		}
+		if (inputFiles != null && inputFiles.size() > 1) {
+			return splitInputs();
+		}
+		if (tilesizes != null && tilesizes.length > 1) {
+			return splitLevels();
+		}
+		Split split = new Split(input, inputFile, indexFile, workDir, tilesize, slim, sink != null ? sink : new FileTileSink(workDir));
+		split.metrics = metrics;
+		split.log = log;
+		split.memoryBudget = memoryBudget;
+		split.refLookup = refLookup;
+		split.filter = filter;
+		split.sharedBoundary = sharedBoundary;
+		split.nodesRead = nodesRead;
+		if (locationFile != null) {
+			split.locations = new LocationStore(locationFile);
+		}
+		split.split();
+		return split.manifest;
+	}
+	
+	/**
+	 * splitLevels: split the input once into tiles of all tile sizes
+	 * @return the manifest of the smallest tiles
+	 * @throws IOException
+	 */
+	Manifest splitLevels() throws IOException {
+		Split[] levels = new Split[tilesizes.length];
+		
+		for (int i = 0; i < tilesizes.length; i++) {
+			if (!NodeToTileNumber.nested(tilesizes[0], tilesizes[i])) {
+				throw new IllegalArgumentException("Tile size " + tilesizes[i] + " is not a multiple of " + tilesizes[0]);
+			}
+			String dir = levelDir(workDir, tilesizes[i]);
+			new File(dir).mkdirs();
+			
+			if (i == 0) {
+				levels[i] = new Split(input, inputFile, indexFile, dir, tilesizes[i], slim, new FileTileSink(dir));
+			}
+			else {
+				levels[i] = new Split(levels[0], dir, tilesizes[i], new FileTileSink(dir));
+			}
+			levels[i].metrics = metrics;
+			levels[i].log = log;
+			levels[i].memoryBudget = memoryBudget / tilesizes.length;
+			levels[i].refLookup = refLookup;
+			levels[i].filter = filter;
+			levels[i].sharedBoundary = sharedBoundary;
+			
+			if (i == 0 && locationFile != null) {
+				levels[i].locations = new LocationStore(locationFile);
+			}
+			if (i == 0) {
+				//the other levels look up refs through the index of the first
+				levels[i].nodesRead = nodesRead;
+			}
+		}
+		Split.split(levels);
+		return levels[0].manifest;
+	}
+	
+	/**
+	 * splitInputs: split all inputs at the same time, then combine their tiles
+	 * @return the manifest of the (smallest) tiles
+	 * @throws IOException
+	 */
+	Manifest splitInputs() throws IOException {
+		//all inputs at once, as each waits for the nodes of the others
+		int threads = inputFiles.size();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<Object> done = new ExecutorCompletionService<Object>(pool);
+		ArrayList<Future<Object>> futures = new ArrayList<Future<Object>>();
+		ArrayList<Splitter> parts = new ArrayList<Splitter>();
+		CountDownLatch nodesRead = new CountDownLatch(threads);
+		
+		//tile numbers of an earlier split would stand in for nodes missing from all inputs
+		RandomAccessFile index = new RandomAccessFile(indexFile, "rw");
+		try {
+			index.setLength(0);
+		} finally {
+			index.close();
+		}
+		
+		try {
+			for (int i = 0; i < inputFiles.size(); i++) {
+				final Splitter part = part(inputFiles.get(i), workDir + "input-" + i + "/", threads);
+				part.indexFile = indexFile;
+				part.nodesRead = nodesRead;
+				parts.add(part);
+				
+				futures.add(done.submit(new Callable<Object>() {
+					public Object call() throws IOException {
+						part.split();
+						return null;
+					}
+				}));
+			}
+			//in the order they end, so the first failure is not held up by a part waiting for its nodes
+			for (int i = 0; i < futures.size(); i++) {
+				ArrayList<Future<Object>> next = new ArrayList<Future<Object>>();
+				next.add(done.take());
+				Split.await(next);
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} finally {
+			//after a failure, interrupts the parts still reading or waiting for the nodes of the others
+			pool.shutdownNow();
+		}
+		
+		log.println("combining tiles ...");
+		long start = System.nanoTime();
+		boolean levels = tilesizes != null && tilesizes.length > 1;
+		Manifest manifest = null;
+		
+		for (float size : levels ? tilesizes : new float[] {tilesize}) {
+			String dir = levels ? levelDir(workDir, size) : workDir;
+			ArrayList<String> dirs = new ArrayList<String>();
+			
+			for (Splitter part : parts) {
+				dirs.add(levels ? levelDir(part.workDir, size) : part.workDir);
+			}
+			new File(dir).mkdirs();
+			Manifest m = new TileUnion(size, metrics, levels || sink == null ? new FileTileSink(dir) : sink).union(dirs);
+			
+			if (manifest == null) {
+				manifest = m;
+			}
+			for (String d : dirs) {
+				removeDir(d);
+			}
+		}
+		for (Splitter part : parts) {
+			removeDir(part.workDir);
+		}
+		metrics.time("split_union", start);
+		return manifest;
+	}
+	
+	/**
+	 * part: a splitter of the same configuration for a part of the work, with its own
+	 * work directory and index file in it
+	 * @param inputFile
+	 * @param workDir - created if missing
+	 * @param parts - splits at the same time, which share the memory budget
+	 * @return
+	 */
+	Splitter part(String inputFile, String workDir, int parts) {
+		Splitter part = new Splitter(inputFile, workDir);
+		new File(part.workDir).mkdirs();
+		part.tilesize = tilesize;
+		part.tilesizes = tilesizes;
+		part.slim = slim;
+		part.memoryBudget = memoryBudget / parts;
+		part.refLookup = refLookup;
+		part.filter = filter;
+		part.locationFile = locationFile;
+		part.sharedBoundary = sharedBoundary;
+		part.log = log;
+		part.metrics = metrics;
+		return part;
+	}
+	
+	/**
+	 * removeDir: remove a directory and the files left in it
+	 * @param dir
+	 */
+	static void removeDir(String dir) {
+		File[] files = new File(dir).listFiles();
+		
+		if (files != null) {
+			for (File f : files) {
+				f.delete();
+			}
+		}
+		new File(dir).delete();
+	}
+	
+	/**
+	 * levelDir: directory of the tiles of one size, e.g. "out/0.25/"
+	 * @param workDir
+	 * @param tilesize
+	 * @return
+	 */
+	public static String levelDir(String workDir, float tilesize) {
+		String name = Float.toString(tilesize);
+		return workDir + (name.endsWith(".0") ? name.substring(0, name.length() - 2) : name) + "/";
+	}
+}
@@ -0,0 +1,55 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * TeeWriter - writes to the output and to a cache entry at the same time
+ */
+class TeeWriter extends Writer {
+	Writer out, entry;
+	
+	TeeWriter(Writer out, Writer entry) {
+		this.out = out;
+		this.entry = entry;
+	}
+	
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		out.write(cbuf, off, len);
+		entry.write(cbuf, off, len);
+	}
+	
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		out.write(str, off, len);
+		entry.write(str, off, len);
+	}
+	
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+		entry.flush();
+	}
+	
+	/**
+	 * close: close the entry, the output stays open
+	 */
+	@Override
+	public void close() throws IOException {
+		entry.close();
+	}
+}
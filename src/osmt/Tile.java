@@ -15,359 +15,500 @@
 
 package osmt;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
 import java.util.TreeMap;
-import java.util.TreeSet;
 
 public class Tile {
+	//sidecar file listing the ways split at the tile's boundaries
+	public final static String SEGMENTS_SUFFIX = ".segments";
+	public final static int SEGMENTS_MAGIC = 0x4f534d53;	//"OSMS"
+	//sidecar file with the bounding box of each way, written with a LocationStore
+	public final static String BOXES_SUFFIX = ".bboxes";
+	public final static int BOXES_MAGIC = 0x4f534d42;	//"OSMB"
+	//nodes shared by the ways of several tiles, written once for all tiles instead of copied into them (tile number 0 for the sink)
+	public final static String BOUNDARY_FILE = "boundary.osm";
+	
 	public int tn;
-	public TreeMap<Long, String> nodesMap;
-	public TreeSet<Long> nodes;
-	public TreeSet<Long> nodesExtra;
+	public NodeStore nodeStore;
+	
+	String dataDir, tileFn, nodesFn, nodesExtraFn, waysFn, segmentsFn;
+	Writer tileWriter;
+	//temporary files of Element records
+	DataOutputStream nodesWriter, nodesExtraWriter, waysWriter;
+	ByteArrayOutputStream recordBuf = new ByteArrayOutputStream(256);
+	DataOutputStream segmentsWriter, boxesWriter;
+	TileOutputStream tileOut;
+	
+	NodeToTileNumber grid;
+	Metrics metrics;
+	TileSink sink;
 	
-	String dataDir, tileFn, nodesFn, nodesExtraFn, waysFn;
-	Writer tileWriter, nodesWriter, nodesExtraWriter, waysWriter;
+	//counts and section offsets for the manifest
+	long nodeCount = 0, wayCount = 0, extraNodeCount = 0;
+	long nodesOffset = 0, waysOffset = 0, endOffset = 0;
+	//size of the nodes file when it was flushed last
+	int nodesFlushed = 0;
+	//IDs of this tile's nodes that go to the boundary file instead, in ascending order
+	long[] boundaryIds = new long[0];
+	int boundaryCount = 0;
 
-	public Tile(int tn, String dataDir) {
+	public Tile(int tn, String dataDir, float tilesize) throws IOException {
+		this(tn, dataDir, new NodeToTileNumber(tilesize), new Metrics(), new FileTileSink(dataDir));
+	}
+	
+	/**
+	 * Constructor
+	 * @param tn
+	 * @param dataDir - directory for the temporary files
+	 * @param grid - tile size
+	 * @param metrics
+	 * @param sink - receives the output files
+	 * @throws IOException
+	 */
+	public Tile(int tn, String dataDir, NodeToTileNumber grid, Metrics metrics, TileSink sink) throws IOException {
 		this.tn = tn;
 		this.dataDir = dataDir;
+		this.grid = grid;
+		this.metrics = metrics;
+		this.sink = sink;
 		
 		File dir = new File(dataDir + tn);
 		if (!dir.exists()) dir.mkdir();
 		
 		tileFn = dataDir + tn + ".osm";
-		nodesFn = dir + "/" + "nodes.osm";
-		nodesExtraFn = dir + "/" + "nodes-extra.osm";
-		waysFn = dir + "/" + "ways.osm";
+		nodesFn = dir + "/" + "nodes.tmp";
+		nodesExtraFn = dir + "/" + "nodes-extra.tmp";
+		waysFn = dir + "/" + "ways.tmp";
+		segmentsFn = dataDir + tn + SEGMENTS_SUFFIX;
 
-		try {
-			nodesWriter = new FileWriter(nodesFn);
-		} catch (IOException e) {
-			System.err.println("error opening file: " + nodesFn);
-			e.printStackTrace();
-		}
-		try {
-			nodesExtraWriter = new FileWriter(nodesExtraFn);
-		} catch (IOException e) {
-			System.err.println("error opening file: " + nodesExtraFn);
-			e.printStackTrace();
-		}
-		try {
-			waysWriter = new FileWriter(waysFn);
-		} catch (IOException e) {
-			System.err.println("error opening file: " + waysFn);
-			e.printStackTrace();
-		}
+		nodesWriter = openTmp(nodesFn);
+		nodesExtraWriter = openTmp(nodesExtraFn);
+		waysWriter = openTmp(waysFn);
 
-		nodesMap = new TreeMap<Long, String>();
-		nodes = new TreeSet<Long>();
-		nodesExtra = new TreeSet<Long>();
+		nodeStore = new NodeStore(dir + "/" + "nodes-");
+		
+		metrics.gauge("osmt_tile_files_open").addAndGet(3);
+	}
+	
+	static DataOutputStream openTmp(String fn) throws IOException {
+		return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fn)));
+	}
+	
+	static DataInputStream readTmp(String fn) throws IOException {
+		return new DataInputStream(new BufferedInputStream(new FileInputStream(fn), 65536));
 	}
 	
 	/**
-	 * writeOpening: write the first few lines to the output file
+	 * closeTmpWriters: close the writers of the temporary files
+	 * @throws IOException
 	 */
-	public void writeOpening() {
-		float[] bounds = NodeToTileNumber.getBounds(tn);
+	public void closeTmpWriters() throws IOException {
+		nodesWriter.close();
+		nodesExtraWriter.close();
+		waysWriter.close();
+		metrics.gauge("osmt_tile_files_open").addAndGet(-3);
+	}
+	
+	/**
+	 * openTileWriter: create the writer for the output file
+	 * @throws IOException
+	 */
+	public void openTileWriter() throws IOException {
+		tileOut = new TileOutputStream(sink.open(tn, ".osm"));
+		tileWriter = new OutputStreamWriter(tileOut, "UTF-8");
+		metrics.gauge("osmt_tile_files_open").incrementAndGet();
+	}
+	
+	/**
+	 * flush: flush a writer and record it for JFR
+	 * @param w
+	 * @param file - "tile", "nodes", "nodes-extra" or "ways"
+	 * @param chars - bytes written since the last flush, for the temporary files
+	 * @throws IOException
+	 */
+	void flush(Flushable w, String file, long chars) throws IOException {
+		Events.TileFlush event = new Events.TileFlush();
+		long count = tileOut != null ? tileOut.count : 0;
+		event.begin();
 		
-		try {
-			tileWriter.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
-			tileWriter.write("<osm version=\"0.6\" generator=\"osmt\">\n");
-			tileWriter.write("<bounds minlat=\"" + bounds[0] + "\" minlon=\"" + bounds[1] + "\" maxlat=\"" + bounds[2] + "\" maxlon=\"" + bounds[3] + "\"/>\n");
-		} catch (IOException e) {
-			System.err.println("error writing to file: " + tileFn);
-			e.printStackTrace();
-		} finally {
-			try {
-				tileWriter.flush();
-			} catch (IOException e) {
-				System.err.println("error flushing file: " + tileFn);
-				e.printStackTrace();
-			}
+		w.flush();
+		
+		if (event.shouldCommit()) {
+			event.tn = tn;
+			event.file = file;
+			event.bytes = w == tileWriter ? tileOut.count - count : chars;
+			event.commit();
 		}
 	}
+	
+	/**
+	 * offset: get the number of bytes written to the output file
+	 * @return
+	 * @throws IOException
+	 */
+	long offset() throws IOException {
+		flush(tileWriter, "tile", 0);
+		return tileOut.count;
+	}
+	
+	/**
+	 * manifestEntry: describe the written output file
+	 * @return
+	 */
+	public Manifest.Entry manifestEntry() {
+		Manifest.Entry e = new Manifest.Entry();
+		e.tn = tn;
+		e.bounds = grid.getBounds(tn);
+		e.nodes = nodeCount - boundaryCount;
+		e.ways = wayCount;
+		e.extraNodes = extraNodeCount;
+		e.bytes = tileOut.count;
+		e.checksum = tileOut.getChecksum().getValue();
+		e.nodesOffset = nodesOffset;
+		e.waysOffset = waysOffset;
+		e.endOffset = endOffset;
+		return e;
+	}
+	
+	/**
+	 * writeOpening: write the first few lines to the output file
+	 * @throws IOException
+	 */
+	public void writeOpening() throws IOException {
+		tileWriter.write(opening(grid.getBounds(tn)));
+		nodesOffset = offset();
+	}
+
+	/**
+	 * opening: the first few lines of a tile
+	 * @param bounds
+	 * @return
+	 */
+	static String opening(float[] bounds) {
+		return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+				+ "<osm version=\"0.6\" generator=\"osmt\">\n"
+				+ "<bounds minlat=\"" + bounds[0] + "\" minlon=\"" + bounds[1] + "\" maxlat=\"" + bounds[2] + "\" maxlon=\"" + bounds[3] + "\"/>\n";
+	}
 
 	/**
 	 * writeLine: write a line to the output file
 	 * @param s - the line to be written
+	 * @throws IOException
 	 */
-	public void writeLine(String s) {
+	public void writeLine(String s) throws IOException {
+		tileWriter.write(s+"\n");
+		flush(tileWriter, "tile", 0);
+	}
+	
+	/**
+	 * writeRemoteNode: copy a node record from another tile's temporary file
+	 * @param id
+	 * @param remote
+	 * @return false if the remote tile does not have the node
+	 * @throws IOException
+	 */
+	public boolean writeRemoteNode(long id, Tile remote) throws IOException {
+		Events.RemoteNodeCopy event = new Events.RemoteNodeCopy();
+		event.begin();
+		
+		//the remote tile's records are buffered until needed here
+		flush(remote.nodesWriter, "nodes", remote.nodesWriter.size() - remote.nodesFlushed);
+		remote.nodesFlushed = remote.nodesWriter.size();
+		
+		DataInputStream in = readTmp(remote.nodesFn);
+		byte[] body;
+		boolean found = false;
+
 		try {
-			tileWriter.write(s+"\n");
-		} catch (IOException e) {
-			System.err.println("error writing to file: " + tileFn);
-			e.printStackTrace();
-		} finally {
-			try {
-				tileWriter.flush();
-			} catch (IOException e) {
-				System.err.println("error flushing file: " + tileFn);
-				e.printStackTrace();
+			while ((body = Element.readRecord(in)) != null) {
+				if (Element.id(body) == id) {
+					nodesExtraWriter.writeInt(body.length);
+					nodesExtraWriter.write(body);
+					found = true;
+					break;
+				}
 			}
+		} finally {
+			in.close();
+		}
+		if (event.shouldCommit()) {
+			event.nodeId = id;
+			event.fromTn = remote.tn;
+			event.toTn = tn;
+			event.slim = true;
+			event.commit();
+		}
+		return found;
+	}
+
+	/**
+	 * writeTmpNode: write a node to the temporary file
+	 * @param node
+	 * @throws IOException
+	 */
+	public void writeTmpNode(Element node) throws IOException {
+		node.write(nodesWriter, recordBuf);
+	}
+
+	/**
+	 * storeNode: keep a node in memory
+	 * @param node
+	 * @return change of the heap used
+	 */
+	public long storeNode(Element node) {
+		return nodeStore.put(node.id, node.toBytes(recordBuf));
+	}
+
+	/**
+	 * addBoundaryNode: move a node of the tile to the boundary file, in ascending order of IDs
+	 * @param id
+	 */
+	public void addBoundaryNode(long id) {
+		if (boundaryCount == boundaryIds.length) {
+			boundaryIds = Arrays.copyOf(boundaryIds, Math.max(boundaryIds.length * 2, 1024));
 		}
+		boundaryIds[boundaryCount++] = id;
 	}
 	
 	/**
-	 * writeRemoteNode
+	 * collectBoundaryNodes: copy the records of the boundary nodes to a store, from the node store
+	 * or from the temporary file (slim) after closeTmpWriters(); the tile leaves them out
+	 * @param store
+	 * @param slim - the nodes are in the temporary file
+	 * @return change of the heap used
+	 * @throws IOException also if a boundary node is not in the tile, i.e. missing from the input
 	 */
-	public void writeRemoteNode(long id, Tile remote) throws IOException {
-		String line;
-		boolean parse = false;
+	public long collectBoundaryNodes(NodeStore store, boolean slim) throws IOException {
+		long delta = 0;
+		int found = 0;
 		
-		try {
-			FileReader fr = new FileReader(remote.nodesFn);
-			BufferedReader br = new BufferedReader(fr);
-
-			while ((line = br.readLine()) != null) {
-				if (parse) {
-					if (line.contains(" id=\"")) {
-						break;
-					}
-					else try {
-						nodesExtraWriter.write(line + "\n");
-					} catch (IOException e) {
-						System.err.println("error writing to file: " + nodesExtraFn);
-						e.printStackTrace();
-					}
-				}
-				else if (line.contains(" id=\"" + id + "\"")) {
-					try {
-						nodesExtraWriter.write(line + "\n");
-					} catch (IOException e) {
-						System.err.println("error writing to file: " + nodesExtraFn);
-						e.printStackTrace();
-					}
-					parse = true;
+		if (boundaryCount == 0) {
+			return 0;
+		}
+		if (!slim) {
+			for (int i = 0; i < boundaryCount; i++) {
+				byte[] body = nodeStore.get(boundaryIds[i]);
+				
+				if (body == null) {
+					throw new IOException("a way refers to node " + boundaryIds[i] + ", which is missing from the input");
 				}
+				delta += store.put(boundaryIds[i], body);
 			}
-			//close BufferedReader
+		}
+		else {
+			//one pass over the file, which is in input order
+			DataInputStream in = readTmp(nodesFn);
+			byte[] body;
+			
 			try {
-				br.close();
-			} catch (Exception e) {
-				System.err.println("error closing BufferedReader");
-				e.printStackTrace();
+				while ((body = Element.readRecord(in)) != null) {
+					long id = Element.id(body);
+					
+					if (Arrays.binarySearch(boundaryIds, 0, boundaryCount, id) >= 0) {
+						delta += store.put(id, body);
+						found++;
+					}
+				}
+			} finally {
+				in.close();
 			}
-		} catch (IOException e) {
-			System.err.println("error opening file: " + remote.nodesFn);
-			e.printStackTrace();
-		} finally {
-			try {
-				nodesExtraWriter.flush();
-			} catch (IOException e) {
-				System.err.println("error flushing file: " + nodesExtraFn);
-				e.printStackTrace();
+			if (found < boundaryCount) {
+				throw new IOException((boundaryCount - found) + " nodes of tile " + tn + " which ways refer to are missing from the input");
 			}
 		}
+		return delta;
 	}
 
 	/**
-	 * writeTmpNodes: write node data to temporary file
-	 * @param s
+	 * writeNodesFromStore: write the nodes kept in memory or spilled to output file, but the boundary nodes
+	 * @throws IOException
 	 */
-	public void writeTmpNodes(String s) {
-		try {
-			nodesWriter.write(s + "\n");
-		} catch (IOException e) {
-			System.err.println("error writing to file: " + nodesFn);
-		} finally {
-			try {
-				nodesWriter.flush();
-			} catch (IOException e) {
-				System.err.println("error flushing file: " + nodesFn);
-			}
-		}
+	public void writeNodesFromStore() throws IOException {
+		//the copies, as a node copied twice is stored once
+		extraNodeCount = nodeStore.writeTo(tileWriter, boundaryIds, boundaryCount) - (nodeCount - boundaryCount);
+		nodeStore.close();
+		flush(tileWriter, "tile", 0);
 	}
 
 	/**
-	 * writeTmpWays: write way data to temporary file
-	 * @param s
+	 * writeTmpWay: write a way to the temporary file
+	 * @param way
+	 * @throws IOException
 	 */
-	public void writeTmpWays(String s) {
-		try {
-			waysWriter.write(s + "\n");
-		} catch (IOException e) {
-			System.err.println("error writing to file: " + waysFn);
-		} finally {
-			try {
-				waysWriter.flush();
-			} catch (IOException e) {
-				System.err.println("error flushing file: " + waysFn);
-			}
+	public void writeTmpWay(Element way) throws IOException {
+		way.write(waysWriter, recordBuf);
+	}
+
+	/**
+	 * writeSegment: write a split way's refs and their tile numbers (0 for local refs)
+	 * to the segments file
+	 * 
+	 * Format: magic int, then per way: way ID (long), number of refs (int),
+	 * and for each ref the node ID (long) and tile number (int)
+	 * @param wayId
+	 * @param refs
+	 * @param refTn
+	 * @throws IOException
+	 */
+	public void writeSegment(long wayId, ArrayList<Long> refs, ArrayList<Integer> refTn) throws IOException {
+		//opened on demand, most tiles have few split ways
+		if (segmentsWriter == null) {
+			segmentsWriter = new DataOutputStream(new BufferedOutputStream(sink.open(tn, SEGMENTS_SUFFIX), 65536));
+			segmentsWriter.writeInt(SEGMENTS_MAGIC);
+			metrics.gauge("osmt_tile_files_open").incrementAndGet();
+		}
+		segmentsWriter.writeLong(wayId);
+		segmentsWriter.writeInt(refs.size());
+		
+		for (int i = 0; i < refs.size(); i++) {
+			segmentsWriter.writeLong(refs.get(i));
+			segmentsWriter.writeInt(i < refTn.size() ? refTn.get(i) : 0);
 		}
 	}
+	
+	/**
+	 * writeBox: write the bounding box of a way's nodes in this tile to the boxes file
+	 * 
+	 * Format: magic int, then per way: way ID (long), min. latitude, min. longitude,
+	 * max. latitude and max. longitude in 1e-7 degrees (int each)
+	 * @param wayId
+	 * @param box - minlat, minlon, maxlat, maxlon
+	 * @throws IOException
+	 */
+	public void writeBox(long wayId, int[] box) throws IOException {
+		if (boxesWriter == null) {
+			boxesWriter = new DataOutputStream(new BufferedOutputStream(sink.open(tn, BOXES_SUFFIX), 8192));
+			boxesWriter.writeInt(BOXES_MAGIC);
+			metrics.gauge("osmt_tile_files_open").incrementAndGet();
+		}
+		boxesWriter.writeLong(wayId);
+		
+		for (int i = 0; i < 4; i++) {
+			boxesWriter.writeInt(box[i]);
+		}
+	}
+	
+	/**
+	 * closeBoxes: close the boxes file, create it if the tile has no ways
+	 * @throws IOException
+	 */
+	public void closeBoxes() throws IOException {
+		if (boxesWriter == null) {
+			boxesWriter = new DataOutputStream(sink.open(tn, BOXES_SUFFIX));
+			boxesWriter.writeInt(BOXES_MAGIC);
+		}
+		else {
+			metrics.gauge("osmt_tile_files_open").decrementAndGet();
+		}
+		boxesWriter.close();
+	}
+	
+	/**
+	 * closeSegments: close the segments file, create it if the tile has no split ways
+	 * @throws IOException
+	 */
+	public void closeSegments() throws IOException {
+		if (segmentsWriter == null) {
+			segmentsWriter = new DataOutputStream(sink.open(tn, SEGMENTS_SUFFIX));
+			segmentsWriter.writeInt(SEGMENTS_MAGIC);
+		}
+		else {
+			metrics.gauge("osmt_tile_files_open").decrementAndGet();
+		}
+		segmentsWriter.close();
+	}
 
 	/**
-	 * writeNodesFromTmp: write node data from temporary files to output file
+	 * writeNodesFromTmp: write node data from temporary files to output file,
+	 * the copies of remote nodes merged in by ID, but the boundary nodes
+	 * @throws IOException
 	 */
-	public void writeNodesFromTmp() {
-		String line, previousLine = "";
-		boolean parse;
+	public void writeNodesFromTmp() throws IOException {
+		TreeMap<Long, byte[]> extra = new TreeMap<Long, byte[]>();
+		byte[] body;
+		DataInputStream in = readTmp(nodesExtraFn);
 		
 		try {
-			FileReader fr = new FileReader(nodesFn);
-			BufferedReader br = new BufferedReader(fr);
-			
-			try {
-				for (long id : nodes) {
-					parse = false;
+			while ((body = Element.readRecord(in)) != null) {
+				extra.put(Element.id(body), body);
+			}
+		} finally {
+			in.close();
+		}
+		//a node copied twice is written once
+		extraNodeCount = extra.size();
+		in = readTmp(nodesFn);
+				
+		try {
+			while ((body = Element.readRecord(in)) != null) {
+				long id = Element.id(body);
 					
-					//look in nodes-extra
-					if (nodesExtra.contains(id)) {
-						FileReader extraFr = new FileReader(nodesExtraFn);
-						BufferedReader extraBr = new BufferedReader(extraFr);
-						
-						while ((line = extraBr.readLine()) != null) {
-							if (parse) {
-								if (line.contains(" id=\"")) {
-									break;
-								}
-								else try {
-									tileWriter.write(line + "\n");
-								} catch (IOException e) {
-									System.err.println("error writing to file: " + tileFn);
-									e.printStackTrace();
-								}
-							}
-							else if (line.contains(" id=\"" + id + "\"")) {
-								try {
-									tileWriter.write(line + "\n");
-								} catch (IOException e) {
-									System.err.println("error writing to file: " + tileFn);
-									e.printStackTrace();
-								}
-								parse = true;
-							}
-						}
-						//close BufferedReader
-						try {
-							extraBr.close();
-						} catch (Exception e) {
-							System.err.println("error closing BufferedReader");
-							e.printStackTrace();
-						}
-					}
-					//if not found in nodes-extra, continue with nodes
-					else {
-						//previousLine is the line read just before the loop broke the last time
-						if (previousLine.contains(" id=\"" + id + "\"")) {
-							try {
-								tileWriter.write(previousLine + "\n");
-							} catch (IOException e) {
-								System.err.println("error writing to file: " + tileFn);
-								e.printStackTrace();
-							}
-							parse = true;
-						}
-						while ((line = br.readLine()) != null) {
-							if (parse) {
-								if (line.contains(" id=\"")) {
-									previousLine = line;
-									break;
-								}
-								else try {
-									tileWriter.write(line + "\n");
-								} catch (IOException e) {
-									System.err.println("error writing to file: " + tileFn);
-									e.printStackTrace();
-								}
-							}
-							else if (line.contains(" id=\"" + id + "\"")) {
-								try {
-									tileWriter.write(line + "\n");
-								} catch (IOException e) {
-									System.err.println("error writing to file: " + tileFn);
-									e.printStackTrace();
-								}
-								parse = true;
-							}
-						}
-					}
-				}
-			} catch (IOException e) {
-				System.err.println("error opening file: " + nodesExtraFn);
-				e.printStackTrace();
-			} finally {
-				try {
-					tileWriter.flush();
-				} catch (IOException e) {
-					System.err.println("error flushing file: " + tileFn);
-					e.printStackTrace();
+				while (!extra.isEmpty() && extra.firstKey() < id) {
+					Element.decode(extra.pollFirstEntry().getValue()).render(tileWriter);
 				}
-				//close BufferedReader
-				try {
-					br.close();
-				} catch (Exception e) {
-					System.err.println("error closing BufferedReader");
-					e.printStackTrace();
+				if (boundaryCount == 0 || Arrays.binarySearch(boundaryIds, 0, boundaryCount, id) < 0) {
+					Element.decode(body).render(tileWriter);
 				}
 			}
-		} catch (IOException e) {
-			System.err.println("error opening file: " + nodesFn);
-			e.printStackTrace();
+			for (Map.Entry<Long, byte[]> e : extra.entrySet()) {
+				Element.decode(e.getValue()).render(tileWriter);
+			}
+		} finally {
+			in.close();
 		}
+		flush(tileWriter, "tile", 0);
 	}
+	
 	/**
 	 * writeWaysFromTmp: write way data from temporary files to output file
+	 * @throws IOException
 	 */
-	public void writeWaysFromTmp() {
-		String line;
+	public void writeWaysFromTmp() throws IOException {
+		byte[] body;
+		
+		waysOffset = offset();
+		DataInputStream in = readTmp(waysFn);
 
 		try {
-			FileReader fr = new FileReader(waysFn);
-			BufferedReader br = new BufferedReader(fr);
-
-			while ((line = br.readLine()) != null) {
-				//read line, write line
-				try {
-					tileWriter.write(line + "\n");
-				} catch (IOException e) {
-					System.err.println("error writing to file: " + tileFn);
-					e.printStackTrace();
-				}
+			while ((body = Element.readRecord(in)) != null) {
+				Element.decode(body).render(tileWriter);
 			}
-			//close BufferedReader
-			try {
-				br.close();
-			} catch (Exception e) {
-				System.err.println("error closing BufferedReader");
-				e.printStackTrace();
-			}
-		} catch (IOException e) {
-			System.err.println("error opening file: " + waysFn);
-			e.printStackTrace();
 		} finally {
-			try {
-				tileWriter.flush();
-			} catch (IOException e) {
-				System.err.println("error flushing file: " + waysFn);
-				e.printStackTrace();
-			}
+			in.close();
 		}
+		flush(tileWriter, "tile", 0);
 	}
 
 	/**
 	 * writeClosingTags: write "</osm>" and close file handles
+	 * @throws IOException
 	 */
-	public void writeClosingTags() {
+	public void writeClosingTags() throws IOException {
+		endOffset = offset();
+		
 		try {
 			tileWriter.write("</osm>\n");
-		} catch (IOException e) {
-			System.err.println("error writing to file: " + tileFn);
-			e.printStackTrace();
 		} finally {
 			//close handle
-			try {
-				tileWriter.close();
-			} catch (IOException e) {
-				System.err.println("error closing file: " + tileFn);
-				e.printStackTrace();
-			}
+			tileWriter.close();
 		}
+		metrics.gauge("osmt_tile_files_open").decrementAndGet();
+		metrics.add("osmt_tile_bytes_written_total{tn=\"" + tn + "\"}", tileOut.count);
+		metrics.add("osmt_bytes_written_total", tileOut.count);
 	}
 
 	/**
@@ -0,0 +1,42 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * TileOutputStream - counts the bytes written and their CRC32
+ */
+class TileOutputStream extends CheckedOutputStream {
+	long count = 0;
+	
+	TileOutputStream(OutputStream out) {
+		super(out, new CRC32());
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		super.write(b);
+		count++;
+	}
+	
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		count += len;
+	}
+}
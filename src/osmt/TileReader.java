@@ -16,27 +16,57 @@
 package osmt;
 
 import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
 
 public class TileReader {
-	String inputFile;
+	String inputFile, segmentsFile;
 	BufferedReader inputReader;
 	
 	public int tn;
 	public String previousLine;
+	
+	//from the manifest, if there is one
+	Manifest.Entry entry;
 
-	public TileReader(String fn, int tn) {
+	public TileReader(String fn, int tn) throws IOException {
 		inputFile = fn;
+		segmentsFile = fn.replaceAll("\\.osm$", "") + Tile.SEGMENTS_SUFFIX;
 		this.tn = tn;
 		previousLine = "";
 		
 		try {
-			FileReader fr = new FileReader(fn);
-			inputReader = new BufferedReader(fr);
+			open(false);
 		} catch (FileNotFoundException e) {
-			System.err.println("Error: File not found.");
-			System.exit(1);
+			throw new FileNotFoundException("File not found: " + fn);
+		}
+	}
+	
+	/**
+	 * open: (re)open the reader at the beginning of the file
+	 * @param waysOnly - skip to the first way if the manifest knows where it is
+	 * @throws IOException
+	 */
+	void open(boolean waysOnly) throws IOException {
+		FileInputStream in = new FileInputStream(inputFile);
+		
+		if (waysOnly && entry != null && entry.waysOffset > 0) {
+			in.getChannel().position(entry.waysOffset);
+		}
+		inputReader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		previousLine = "";
+	}
+	
+	/**
+	 * close: close the reader
+	 * @throws IOException
+	 */
+	void close() throws IOException {
+		if (inputReader != null) {
+			inputReader.close();
+			inputReader = null;
 		}
 	}
 }
@@ -0,0 +1,51 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * TileSink - receives the tiles of a split
+ *
+ * The ".segments" stream of a tile is opened while the input is read, the
+ * ".osm" streams of all tiles are written afterwards, all at the same time.
+ * done() is called when both streams of a tile are closed. Implementations
+ * are called from the thread running the split only.
+ */
+public interface TileSink {
+	
+	/**
+	 * open: open an output of a tile
+	 * @param tn - tile number, 0 for a file of all tiles
+	 * @param suffix - ".osm" for the tile, Tile.SEGMENTS_SUFFIX for its split ways, Tile.BOUNDARY_FILE with tile number 0
+	 * @return the stream, closed by the caller
+	 * @throws IOException
+	 */
+	OutputStream open(int tn, String suffix) throws IOException;
+	
+	/**
+	 * done: a tile is complete
+	 * @param entry - bounds, counts, size and checksum of the tile
+	 * @throws IOException
+	 */
+	void done(Manifest.Entry entry) throws IOException;
+	
+	/**
+	 * finish: all tiles are complete
+	 * @param manifest
+	 * @throws IOException
+	 */
+	void finish(Manifest manifest) throws IOException;
+}
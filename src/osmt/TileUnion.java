@@ -0,0 +1,429 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TileUnion - combines the tile sets of several splits with the same tile size into one
+ *
+ * A tile found in one set only is moved. The others are merged by ID; nodes
+ * and ways present in more than one set are written once, and so are the
+ * ways of their .segments and .bboxes files. Each set has its tiles in input order, so
+ * the inputs must be sorted by ID, as OSM files are.
+ */
+public class TileUnion {
+	NodeToTileNumber grid;
+	Metrics metrics;
+	TileSink sink;
+	
+	/**
+	 * Constructor
+	 * @param tilesize
+	 * @param metrics
+	 * @param sink - receives the combined tiles
+	 */
+	public TileUnion(float tilesize, Metrics metrics, TileSink sink) {
+		grid = new NodeToTileNumber(tilesize);
+		this.metrics = metrics;
+		this.sink = sink;
+	}
+	
+	/**
+	 * union: combine the tile sets, removing their tiles
+	 * @param dirs - directories with the tiles and the manifest of a split each
+	 * @return manifest of the combined tiles
+	 * @throws IOException
+	 */
+	public Manifest union(ArrayList<String> dirs) throws IOException {
+		Manifest manifest = new Manifest(grid.tilesizeLat);
+		HashMap<String, Manifest> manifests = new HashMap<String, Manifest>();
+		TreeMap<Integer, ArrayList<String>> sources = new TreeMap<Integer, ArrayList<String>>();
+		
+		for (String dir : dirs) {
+			Manifest m = Manifest.read(dir + Manifest.FILE_NAME);
+			manifests.put(dir, m);
+			
+			for (int tn : m.tiles.keySet()) {
+				if (!sources.containsKey(tn)) {
+					sources.put(tn, new ArrayList<String>());
+				}
+				sources.get(tn).add(dir);
+			}
+		}
+		AtomicLong merged = metrics.counter("osmt_union_merged_tiles_total");
+		
+		for (int tn : sources.keySet()) {
+			ArrayList<String> tileDirs = sources.get(tn);
+			Manifest.Entry e;
+			
+			if (tileDirs.size() == 1) {
+				e = move(tn, tileDirs.get(0), manifests.get(tileDirs.get(0)).tiles.get(tn));
+			}
+			else {
+				e = merge(tn, tileDirs);
+				merged.incrementAndGet();
+			}
+			manifest.tiles.put(tn, e);
+			sink.done(e);
+		}
+		unionBoundary(dirs, manifest);
+		sink.finish(manifest);
+		return manifest;
+	}
+	
+	/**
+	 * unionBoundary: combine the boundary files of sets split with shared boundary nodes, each node once
+	 * @param dirs
+	 * @param manifest - receives the size and checksum of the combined file
+	 * @throws IOException
+	 */
+	void unionBoundary(ArrayList<String> dirs, Manifest manifest) throws IOException {
+		ArrayList<String> files = new ArrayList<String>();
+		
+		for (String dir : dirs) {
+			if (new File(dir + Tile.BOUNDARY_FILE).exists()) {
+				files.add(dir + Tile.BOUNDARY_FILE);
+			}
+		}
+		if (files.isEmpty()) {
+			return;
+		}
+		SortedMerge m = new SortedMerge(files);
+		m.setLog(new PrintStream(new NullOutputStream()));
+		TileOutputStream out = new TileOutputStream(sink.open(0, Tile.BOUNDARY_FILE));
+		Writer w = new OutputStreamWriter(new BufferedOutputStream(out, 65536), "UTF-8");
+		
+		try {
+			m.merge(w);
+			w.flush();
+			manifest.boundaryBytes = out.count;
+			manifest.boundaryChecksum = out.getChecksum().getValue();
+		} finally {
+			w.close();
+		}
+		for (String fn : files) {
+			new File(fn).delete();
+		}
+	}
+	
+	/**
+	 * move: move a tile found in one set only
+	 * @param tn
+	 * @param dir
+	 * @param e - its manifest entry
+	 * @return
+	 * @throws IOException
+	 */
+	Manifest.Entry move(int tn, String dir, Manifest.Entry e) throws IOException {
+		for (String suffix : new String[] {".osm", Tile.SEGMENTS_SUFFIX, Tile.BOXES_SUFFIX}) {
+			File f = new File(dir + tn + suffix);
+			
+			//bounding boxes are written with a location file only
+			if (!f.exists()) {
+				continue;
+			}
+			if (sink instanceof FileTileSink && f.renameTo(new File(((FileTileSink)sink).dir + tn + suffix))) {
+				continue;
+			}
+			InputStream in = new FileInputStream(f);
+			OutputStream out = sink.open(tn, suffix);
+			
+			try {
+				byte[] buf = new byte[65536];
+				int n;
+				
+				while ((n = in.read(buf)) > 0) {
+					out.write(buf, 0, n);
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+			f.delete();
+		}
+		return e;
+	}
+	
+	/**
+	 * merge: merge the copies of a tile by ID, each node and way once
+	 * @param tn
+	 * @param dirs - the sets having the tile
+	 * @return manifest entry of the merged tile
+	 * @throws IOException
+	 */
+	Manifest.Entry merge(int tn, ArrayList<String> dirs) throws IOException {
+		Manifest.Entry e = new Manifest.Entry();
+		e.tn = tn;
+		e.bounds = grid.getBounds(tn);
+		
+		TileOutputStream out = new TileOutputStream(sink.open(tn, ".osm"));
+		Writer w = new OutputStreamWriter(out, "UTF-8");
+		PriorityQueue<BlockReader> queue = new PriorityQueue<BlockReader>();
+		boolean previousWay = false;
+		long previousId = Long.MIN_VALUE;
+		
+		try {
+			w.write(Tile.opening(e.bounds));
+			w.flush();
+			e.nodesOffset = out.count;
+			
+			for (int i = 0; i < dirs.size(); i++) {
+				BlockReader r = new BlockReader(dirs.get(i) + tn + ".osm", i);
+				if (r.next()) {
+					queue.add(r);
+				}
+				else {
+					r.in.close();
+				}
+			}
+			while (!queue.isEmpty()) {
+				BlockReader r = queue.poll();
+				
+				//the first set wins among equal IDs, see BlockReader.compareTo
+				if (r.way != previousWay || r.id != previousId) {
+					if (r.way && e.waysOffset == 0) {
+						w.flush();
+						e.waysOffset = out.count;
+					}
+					w.write(r.block);
+					
+					if (r.way) {
+						e.ways++;
+					}
+					else if (grid.calcTn(Float.valueOf(Split.getAttr(r.head, "lat")), Float.valueOf(Split.getAttr(r.head, "lon"))) == tn) {
+						e.nodes++;
+					}
+					else {
+						e.extraNodes++;
+					}
+					previousWay = r.way;
+					previousId = r.id;
+				}
+				if (r.next()) {
+					queue.add(r);
+				}
+				else {
+					r.in.close();
+				}
+			}
+			w.flush();
+			
+			if (e.waysOffset == 0) {
+				e.waysOffset = out.count;
+			}
+			e.endOffset = out.count;
+			w.write("</osm>\n");
+		} finally {
+			for (BlockReader r : queue) {
+				r.in.close();
+			}
+			w.close();
+		}
+		e.bytes = out.count;
+		e.checksum = out.getChecksum().getValue();
+		metrics.add("osmt_bytes_written_total", out.count);
+		
+		mergeSegments(tn, dirs);
+		
+		if (new File(dirs.get(0) + tn + Tile.BOXES_SUFFIX).exists()) {
+			mergeBoxes(tn, dirs);
+		}
+		for (String dir : dirs) {
+			new File(dir + tn + ".osm").delete();
+			new File(dir + tn + Tile.SEGMENTS_SUFFIX).delete();
+			new File(dir + tn + Tile.BOXES_SUFFIX).delete();
+		}
+		return e;
+	}
+	
+	/**
+	 * mergeSegments: write the split ways of all copies of a tile by ID, each way once
+	 * @param tn
+	 * @param dirs
+	 * @throws IOException
+	 */
+	void mergeSegments(int tn, ArrayList<String> dirs) throws IOException {
+		TreeMap<Long, byte[]> segments = new TreeMap<Long, byte[]>();
+		
+		for (String dir : dirs) {
+			DataInputStream in = Tile.readTmp(dir + tn + Tile.SEGMENTS_SUFFIX);
+			
+			try {
+				if (in.readInt() != Tile.SEGMENTS_MAGIC) {
+					throw new IOException("invalid segments file: " + dir + tn + Tile.SEGMENTS_SUFFIX);
+				}
+				while (true) {
+					long wayId;
+					
+					try {
+						wayId = in.readLong();
+					} catch (EOFException ex) {
+						break;
+					}
+					//refs and tile numbers as they are in the file
+					byte[] refs = new byte[in.readInt() * 12];
+					in.readFully(refs);
+					
+					if (!segments.containsKey(wayId)) {
+						segments.put(wayId, refs);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sink.open(tn, Tile.SEGMENTS_SUFFIX), 65536));
+		
+		try {
+			out.writeInt(Tile.SEGMENTS_MAGIC);
+			
+			for (Map.Entry<Long, byte[]> e : segments.entrySet()) {
+				out.writeLong(e.getKey());
+				out.writeInt(e.getValue().length / 12);
+				out.write(e.getValue());
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * mergeBoxes: write the bounding boxes of all copies of a tile by way ID, each way once
+	 * @param tn
+	 * @param dirs
+	 * @throws IOException
+	 */
+	void mergeBoxes(int tn, ArrayList<String> dirs) throws IOException {
+		TreeMap<Long, int[]> boxes = new TreeMap<Long, int[]>();
+		
+		for (String dir : dirs) {
+			DataInputStream in = Tile.readTmp(dir + tn + Tile.BOXES_SUFFIX);
+			
+			try {
+				if (in.readInt() != Tile.BOXES_MAGIC) {
+					throw new IOException("invalid bounding box file: " + dir + tn + Tile.BOXES_SUFFIX);
+				}
+				while (true) {
+					long wayId;
+					
+					try {
+						wayId = in.readLong();
+					} catch (EOFException ex) {
+						break;
+					}
+					int[] box = {in.readInt(), in.readInt(), in.readInt(), in.readInt()};
+					
+					if (!boxes.containsKey(wayId)) {
+						boxes.put(wayId, box);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		}
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sink.open(tn, Tile.BOXES_SUFFIX), 65536));
+		
+		try {
+			out.writeInt(Tile.BOXES_MAGIC);
+			
+			for (Map.Entry<Long, int[]> e : boxes.entrySet()) {
+				out.writeLong(e.getKey());
+				
+				for (int i : e.getValue()) {
+					out.writeInt(i);
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+	
+	/**
+	 * BlockReader - reads the nodes and ways of a tile as text, one element at a time
+	 */
+	static class BlockReader implements Comparable<BlockReader> {
+		BufferedReader in;
+		int set;
+		boolean way;
+		long id;
+		String head, block;
+		
+		BlockReader(String fn, int set) throws IOException {
+			in = new BufferedReader(new InputStreamReader(new FileInputStream(fn), "UTF-8"), 65536);
+			this.set = set;
+		}
+		
+		boolean next() throws IOException {
+			String line;
+			
+			while ((line = in.readLine()) != null) {
+				boolean node = line.startsWith("  <node ");
+				
+				//skip the opening and closing tags of the tile
+				if (!node && !line.startsWith("  <way ")) {
+					continue;
+				}
+				StringBuilder sb = new StringBuilder(line).append('\n');
+				
+				if (!line.endsWith("/>")) {
+					String child;
+					
+					while ((child = in.readLine()) != null) {
+						sb.append(child).append('\n');
+						
+						if (child.startsWith("  </")) {
+							break;
+						}
+					}
+				}
+				way = !node;
+				id = Long.parseLong(Split.getAttr(line, "id"));
+				head = line;
+				block = sb.toString();
+				return true;
+			}
+			return false;
+		}
+		
+		public int compareTo(BlockReader o) {
+			if (way != o.way) {
+				return way ? 1 : -1;
+			}
+			if (id != o.id) {
+				return id < o.id ? -1 : 1;
+			}
+			return set - o.set;
+		}
+	}
+}
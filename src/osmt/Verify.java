@@ -0,0 +1,306 @@
+/*
+ *	This file is part of OSMT.
+ *
+ *	OSMT is free software; you can redistribute it and/or modify
+ *	it under the terms of the GNU General Public License version 2 as
+ *	published by the Free Software Foundation.
+ *
+ *	OSMT is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.	See the
+ *	GNU General Public License for more details.
+ */
+
+package osmt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Verify - compares a merged file with the original of the split, streaming both in ID order
+ *
+ * Nodes and ways are matched by ID and compared by their content hashes,
+ * way refs as sequences. A way Merge could not stitch together completely
+ * is written as pieces, the first with the way's ID and the others with
+ * new IDs after all ways; it counts as equal if all pieces have its content
+ * and together cover its refs. Only these ways are held in memory.
+ * Relations are skipped, Split leaves them out.
+ */
+public class Verify {
+	//differences printed
+	final static int MAX_REPORTS = 20;
+	
+	String originalFile, mergedFile;
+	ElementReader original, merged;
+	Metrics metrics = new Metrics();
+	PrintStream log = System.out;
+	
+	long missingNodes = 0, differentNodes = 0, extraNodes = 0;
+	long missingWays = 0, differentWays = 0, extraWays = 0, stitchedWays = 0;
+	long relations = 0, reports = 0;
+	AtomicLong nodeCounter, wayCounter;
+	
+	//ways written as pieces, by content hash
+	HashMap<Long, ArrayList<Pieces>> pieces = new HashMap<Long, ArrayList<Pieces>>();
+	
+	/**
+	 * Constructor
+	 * @param originalFile - the input of the split, or Split.STDIN
+	 * @param mergedFile - the output of the merge
+	 */
+	public Verify(String originalFile, String mergedFile) {
+		this.originalFile = originalFile;
+		this.mergedFile = mergedFile;
+	}
+	
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+	
+	public Metrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * verify: compare the files
+	 * @return number of differences
+	 * @throws IOException
+	 */
+	public long verify() throws IOException {
+		original = new ElementReader(originalFile, false);
+		
+		try {
+			merged = new ElementReader(mergedFile, false);
+		} catch (IOException e) {
+			original.close();
+			throw e;
+		}
+		metrics.setInput(original.bytesRead, originalFile.equals(Split.STDIN) ? 0 : new File(originalFile).length());
+		nodeCounter = metrics.counter("osmt_verify_nodes_total");
+		wayCounter = metrics.counter("osmt_verify_ways_total");
+		long phaseStart = System.nanoTime(), steps = 0;
+		
+		try {
+			ElementReader.Block a = next(original), b = next(merged), previousA = null, previousB = null;
+			//the pieces of ways with new IDs come after all ways
+			boolean tail = false;
+			
+			while (a != null || b != null) {
+				if (a != null && previousA != null && a.compareTo(previousA) <= 0) {
+					throw new IOException(originalFile + " is not sorted by ID at " + a);
+				}
+				if (b != null && previousB != null && b.compareTo(previousB) <= 0) {
+					if (b.type != ElementReader.WAY) {
+						throw new IOException(mergedFile + " is not sorted by ID at " + b);
+					}
+					tail = true;
+				}
+				int c = a == null ? 1 : b == null ? -1 : tail ? -1 : a.compareTo(b);
+				
+				if (c < 0) {
+					missing(a);
+					previousA = a;
+					a = next(original);
+				}
+				else if (c > 0) {
+					extra(b);
+					previousB = b;
+					b = next(merged);
+				}
+				else {
+					compare(a, b);
+					previousA = a;
+					previousB = b;
+					a = next(original);
+					b = next(merged);
+				}
+				if (++steps % 10000000 == 0) {
+					log.println(metrics.progressLine());
+				}
+			}
+		} finally {
+			original.close();
+			merged.close();
+		}
+		for (ArrayList<Pieces> list : pieces.values()) {
+			for (Pieces p : list) {
+				if (p.uncovered == 0) {
+					stitchedWays++;
+				}
+				else {
+					differentWays++;
+					report("way " + p.id + " is not covered by its pieces (" + p.uncovered + " of " + (p.refs.length - 1) + " segments missing)");
+				}
+			}
+		}
+		pieces.clear();
+		metrics.time("verify", phaseStart);
+		
+		long differences = missingNodes + differentNodes + extraNodes + missingWays + differentWays + extraWays;
+		metrics.add("osmt_verify_differences_total", differences);
+		
+		log.println("verified " + nodeCounter.get() + " nodes and " + wayCounter.get() + " ways (" + stitchedWays + " of them in pieces), skipped "
+				+ relations + " relations");
+		log.println("nodes " + missingNodes + " missing, " + differentNodes + " different, " + extraNodes + " extra; ways "
+				+ missingWays + " missing, " + differentWays + " different, " + extraWays + " extra");
+		return differences;
+	}
+	
+	/**
+	 * next: get the next node or way
+	 * @param r
+	 * @return null after the last
+	 * @throws IOException
+	 */
+	ElementReader.Block next(ElementReader r) throws IOException {
+		ElementReader.Block b;
+		
+		while ((b = r.next()) != null && b.type == ElementReader.RELATION) {
+			if (r == original) {
+				relations++;
+			}
+		}
+		return b;
+	}
+	
+	/**
+	 * missing: an element of the original not in the merged file
+	 * @param a
+	 */
+	void missing(ElementReader.Block a) {
+		count(a);
+		
+		if (a.type == ElementReader.NODE) {
+			missingNodes++;
+		}
+		else {
+			missingWays++;
+		}
+		report(a + " missing");
+	}
+	
+	/**
+	 * extra: an element of the merged file not in the original, unless it is a piece of a way
+	 * @param b
+	 */
+	void extra(ElementReader.Block b) {
+		if (b.type == ElementReader.WAY && pieces.containsKey(b.hash)) {
+			for (Pieces p : pieces.get(b.hash)) {
+				if (p.cover(b.refs)) {
+					return;
+				}
+			}
+		}
+		if (b.type == ElementReader.NODE) {
+			extraNodes++;
+		}
+		else {
+			extraWays++;
+		}
+		report(b + " extra");
+	}
+	
+	/**
+	 * compare: compare the elements with the same ID
+	 * @param a - original
+	 * @param b - merged
+	 */
+	void compare(ElementReader.Block a, ElementReader.Block b) {
+		count(a);
+		
+		if (a.type == ElementReader.NODE) {
+			if (a.hash != b.hash) {
+				differentNodes++;
+				report(a + " different");
+			}
+			return;
+		}
+		if (a.hash == b.hash) {
+			if (Arrays.equals(a.refs, b.refs)) {
+				return;
+			}
+			//the first piece of a way
+			Pieces p = new Pieces(a.id, a.refs);
+			
+			if (p.cover(b.refs)) {
+				if (!pieces.containsKey(a.hash)) {
+					pieces.put(a.hash, new ArrayList<Pieces>());
+				}
+				pieces.get(a.hash).add(p);
+				return;
+			}
+		}
+		differentWays++;
+		report(a + " different");
+	}
+	
+	void count(ElementReader.Block a) {
+		if (a.type == ElementReader.NODE) {
+			nodeCounter.incrementAndGet();
+		}
+		else {
+			wayCounter.incrementAndGet();
+		}
+	}
+	
+	void report(String difference) {
+		if (reports++ < MAX_REPORTS) {
+			log.println(difference);
+		}
+		else if (reports == MAX_REPORTS + 1) {
+			log.println("...");
+		}
+	}
+	
+	/**
+	 * Pieces - a way of the original written in pieces, and which of its segments they cover
+	 */
+	static class Pieces {
+		long id;
+		long[] refs;
+		//segment i is from refs[i] to refs[i + 1]
+		boolean[] covered;
+		int uncovered;
+		
+		Pieces(long id, long[] refs) {
+			this.id = id;
+			this.refs = refs;
+			covered = new boolean[Math.max(refs.length - 1, 0)];
+			uncovered = covered.length;
+		}
+		
+		/**
+		 * cover: find a piece in the refs of the way and mark its segments covered
+		 * @param piece
+		 * @return false if the piece is not part of the way
+		 */
+		boolean cover(long[] piece) {
+			if (piece.length < 2) {
+				return false;
+			}
+			for (int start = 0; start + piece.length <= refs.length; start++) {
+				int i = 0;
+				
+				while (i < piece.length && refs[start + i] == piece[i]) {
+					i++;
+				}
+				if (i < piece.length) {
+					continue;
+				}
+				for (int j = start; j < start + piece.length - 1; j++) {
+					if (!covered[j]) {
+						covered[j] = true;
+						uncovered--;
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+	}
+}